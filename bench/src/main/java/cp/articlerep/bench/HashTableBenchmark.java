@@ -0,0 +1,112 @@
+package cp.articlerep.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp.articlerep.ds.HashTable;
+import cp.articlerep.ds.VersionedLock;
+
+/**
+ * {@link HashTable} get, put and remove, following the locking protocol of
+ * its callers: reads are optimistic with a read lock fallback, as in
+ * {@link cp.articlerep.ds.TermDictionary}, and writes hold the key's write
+ * lock. The table keeps its size, since every write removes a key and puts
+ * it back.
+ *
+ * Run with -t N for N threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashTableBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int keys;
+
+	/**
+	 * Percentage of gets in {@link #mixed()}, the rest being writes
+	 */
+	@Param({ "90", "50" })
+	public int readPercent;
+
+	@Param({ "0" })
+	public int stripes;
+
+	private HashTable<String, Integer> table;
+
+	private String[] keyArray;
+
+	@Setup
+	public void setup() {
+		table = stripes > 0 ? new HashTable<String, Integer>(keys * 2,
+				stripes) : new HashTable<String, Integer>(keys * 2);
+		keyArray = new String[keys];
+		for (int i = 0; i < keys; i++) {
+			keyArray[i] = "key" + i;
+			table.put(keyArray[i], i);
+		}
+	}
+
+	private String randomKey() {
+		return keyArray[ThreadLocalRandom.current().nextInt(keys)];
+	}
+
+	@Benchmark
+	public Integer get() {
+		return read(randomKey());
+	}
+
+	@Benchmark
+	public Integer putRemove() {
+		return write(randomKey());
+	}
+
+	@Benchmark
+	public Integer mixed() {
+		String key = randomKey();
+		if (ThreadLocalRandom.current().nextInt(100) < readPercent)
+			return read(key);
+		return write(key);
+	}
+
+	private Integer read(String key) {
+		VersionedLock lock = table.getLock(key);
+
+		long stamp = lock.tryOptimisticRead();
+		if ((stamp & 1) == 0) {
+			Integer v = table.get(key);
+			if (lock.validate(stamp))
+				return v;
+		}
+
+		lock.readLock().lock();
+		Integer v = table.get(key);
+		lock.readLock().unlock();
+		return v;
+	}
+
+	private Integer write(String key) {
+		VersionedLock lock = table.getLock(key);
+
+		lock.writeLock().lock();
+		Integer v = table.remove(key);
+		table.put(key, v);
+		lock.writeLock().unlock();
+		return v;
+	}
+}
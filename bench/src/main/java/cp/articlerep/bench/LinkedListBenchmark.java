@@ -0,0 +1,83 @@
+package cp.articlerep.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.LinkedList;
+import cp.articlerep.ds.PostingList;
+
+/**
+ * Iteration and removal of {@link LinkedList}, next to the
+ * {@link PostingList} that replaced it in the repository indexes. Each thread
+ * works on its own lists; a removal puts the element back, so the length
+ * stays the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkedListBenchmark {
+
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private LinkedList<Integer> list;
+
+	private PostingList<Integer> postings;
+
+	@Setup
+	public void setup() {
+		list = new LinkedList<Integer>();
+		postings = new PostingList<Integer>();
+		for (int i = 0; i < length; i++) {
+			list.addLast(i);
+			postings.add(i, i);
+		}
+	}
+
+	@Benchmark
+	public void iterateLinkedList(Blackhole bh) {
+		Iterator<Integer> it = list.iterator();
+		while (it.hasNext())
+			bh.consume(it.next());
+	}
+
+	@Benchmark
+	public Integer removeLinkedList() {
+		int pos = ThreadLocalRandom.current().nextInt(length);
+		Integer v = list.remove(pos);
+		list.add(pos, v);
+		return v;
+	}
+
+	@Benchmark
+	public void iteratePostingList(Blackhole bh) {
+		Iterator<Integer> it = postings.iterator();
+		while (it.hasNext())
+			bh.consume(it.next());
+	}
+
+	@Benchmark
+	public Integer removePostingList() {
+		int id = ThreadLocalRandom.current().nextInt(length);
+		Integer v = postings.remove(id);
+		postings.add(id, v);
+		return v;
+	}
+}
@@ -0,0 +1,194 @@
+package cp.articlerep.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp.articlerep.Article;
+import cp.articlerep.Repository;
+import cp.articlerep.ds.List;
+
+/**
+ * {@link Repository} operations on articles generated like the ones of
+ * {@link cp.articlerep.Worker}, but with the generation kept out of the
+ * measured work: the articles inserted come from a pool each thread fills
+ * before every iteration (see {@link Articles}). The repository starts
+ * with about half of the keys inserted.
+ *
+ * Run with -t N for N threads; {@link #mixed()} takes its operation mix from
+ * put, del and get like MainRep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int keys;
+
+	@Param({ "3" })
+	public int authors;
+
+	@Param({ "3" })
+	public int keywords;
+
+	/**
+	 * Number of terms looked up by each find
+	 */
+	@Param({ "3" })
+	public int findList;
+
+	@Param({ "10" })
+	public int put;
+
+	@Param({ "10" })
+	public int del;
+
+	@Param({ "80" })
+	public int get;
+
+	@Param({ "0" })
+	public int stripes;
+
+	private Repository repository;
+
+	/*
+	 * Term id of each key, as Worker interns its words
+	 */
+	private int[] terms;
+
+	@Setup
+	public void setup() {
+		if (put + del + get != 100)
+			throw new IllegalArgumentException(
+					"put + del + get must add to 100");
+
+		repository = stripes > 0 ? new Repository(keys, stripes)
+				: new Repository(keys);
+		terms = new int[keys];
+		for (int i = 0; i < keys; i++)
+			terms[i] = repository.getDictionary().intern("word" + i);
+
+		for (int i = 0; i < keys / 2; i++)
+			repository.insertArticle(generateArticle());
+	}
+
+	/**
+	 * Articles of one thread, generated again before each iteration and
+	 * taken in turn. A pool that wraps within an iteration inserts the same
+	 * objects again, which the repository allows since the benchmarks open
+	 * no snapshot that could still read their versions.
+	 */
+	@State(Scope.Thread)
+	public static class Articles {
+
+		private static final int POOL = 1 << 14;
+
+		private final Article[] pool = new Article[POOL];
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void fill(RepositoryBenchmark b) {
+			for (int i = 0; i < POOL; i++)
+				pool[i] = b.generateArticle();
+			next = 0;
+		}
+
+		Article next() {
+			Article a = pool[next];
+			next = (next + 1) & (POOL - 1);
+			return a;
+		}
+	}
+
+	private Article generateArticle() {
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int i = rand.nextInt(keys);
+		Article a = new Article(i, "word" + i);
+
+		int n = authors;
+		while (n > 0) {
+			int word = terms[rand.nextInt(keys)];
+			if (!a.hasAuthor(word)) {
+				a.addAuthor(word);
+				n--;
+			}
+		}
+
+		n = keywords;
+		while (n > 0) {
+			int word = terms[rand.nextInt(keys)];
+			if (!a.hasKeyword(word)) {
+				a.addKeyword(word);
+				n--;
+			}
+		}
+
+		return a;
+	}
+
+	private int[] generateListOfWords() {
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int[] res = new int[findList];
+		for (int i = 0; i < findList; i++)
+			res[i] = terms[rand.nextInt(keys)];
+		return res;
+	}
+
+	/**
+	 * Inserts an article and removes it again, leaving the repository as it
+	 * was unless its id was already taken
+	 */
+	@Benchmark
+	public boolean insertRemove(Articles articles) {
+		Article a = articles.next();
+		boolean inserted = repository.insertArticle(a);
+		if (inserted)
+			repository.removeArticle(a.getId());
+		return inserted;
+	}
+
+	@Benchmark
+	public List<Article> findByAuthor() {
+		return repository.findArticleByAuthor(generateListOfWords());
+	}
+
+	@Benchmark
+	public List<Article> findByKeyword() {
+		return repository.findArticleByKeyword(generateListOfWords());
+	}
+
+	/**
+	 * One operation of the MainRep workload
+	 */
+	@Benchmark
+	public Object mixed(Articles articles) {
+		int op = ThreadLocalRandom.current().nextInt(100);
+
+		if (op < put)
+			return repository.insertArticle(articles.next());
+		else if (op < put + del) {
+			repository.removeArticle(ThreadLocalRandom.current().nextInt(
+					keys));
+			return null;
+		} else if (op < put + del + (get / 2))
+			return repository.findArticleByAuthor(generateListOfWords());
+		else
+			return repository.findArticleByKeyword(generateListOfWords());
+	}
+}
@@ -1,29 +1,92 @@
 package cp.articlerep;
 
-import cp.articlerep.ds.LinkedList;
-import cp.articlerep.ds.List;
-import cp.articlerep.ds.Iterator;
-
+import java.util.Arrays;
+
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Authors and keywords are kept as term ids of the repository's
+ * {@link TermDictionary}.
+ *
+ * The repository also stamps each article with the versions of the writes
+ * that inserted and removed it, which snapshots use to tell whether it
+ * existed at their point in time.
+ */
 public class Article {
 
+	private static final int[] NONE = new int[0];
+
 	private int id;
 	private String name;
-	private List<String> authors;
-	private List<String> keywords;
+	private int[] authors;
+	private int[] keywords;
+
+	/*
+	 * Set by the repository under the article's locks
+	 */
+	private long created;
+	private long deleted;
 
 	public Article(int id, String name) {
 		this.id = id;
 		this.name = name;
-		this.authors = new LinkedList<String>();
-		this.keywords = new LinkedList<String>();
+		this.authors = NONE;
+		this.keywords = NONE;
+	}
+
+	public void addAuthor(int author) {
+		this.authors = append(this.authors, author);
+	}
+
+	public void addKeyword(int keyword) {
+		this.keywords = append(this.keywords, keyword);
+	}
+
+	private static int[] append(int[] terms, int term) {
+		int[] res = Arrays.copyOf(terms, terms.length + 1);
+		res[terms.length] = term;
+		return res;
+	}
+
+	public boolean hasAuthor(int author) {
+		return indexOf(authors, author) >= 0;
+	}
+
+	public boolean hasKeyword(int keyword) {
+		return indexOf(keywords, keyword) >= 0;
+	}
+
+	private static int indexOf(int[] terms, int term) {
+		for (int i = 0; i < terms.length; i++) {
+			if (terms[i] == term)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the version of the write that inserted the article, 0 if it
+	 *         was never inserted
+	 */
+	public long getCreatedVersion() {
+		return created;
 	}
 
-	public void addAuthor(String author) {
-		this.authors.add(author);
+	/**
+	 * @return the version of the write that removed the article, 0 while it
+	 *         is in the repository
+	 */
+	public long getDeletedVersion() {
+		return deleted;
 	}
 
-	public void addKeyword(String keyword) {
-		this.keywords.add(keyword);
+	void setCreatedVersion(long version) {
+		this.created = version;
+		this.deleted = 0;
+	}
+
+	void setDeletedVersion(long version) {
+		this.deleted = version;
 	}
 
 	public int getId() {
@@ -42,32 +105,42 @@ public class Article {
 		this.name = name;
 	}
 
-	public List<String> getAuthors() {
+	/**
+	 * @return the author term ids; the array is shared and must not be
+	 *         modified
+	 */
+	public int[] getAuthors() {
 		return authors;
 	}
 
-	public List<String> getKeywords() {
+	/**
+	 * @return the keyword term ids; the array is shared and must not be
+	 *         modified
+	 */
+	public int[] getKeywords() {
 		return keywords;
 	}
 
 	public String toString() {
+		return "(" + id + ", " + name + "," + Arrays.toString(authors) + ","
+				+ Arrays.toString(keywords) + ")";
+	}
+
+	/**
+	 * Like {@link #toString()}, with the terms spelled out
+	 */
+	public String toString(TermDictionary dictionary) {
 		String r = "(" + id + ", " + name;
 		int i;
 
 		r += ",[";
-		i = 0;
-
-		for (Iterator<String> it = authors.iterator(); it.hasNext();) {
-			r += (i > 0 ? "," : "") + it.next();
-			i++;
+		for (i = 0; i < authors.length; i++) {
+			r += (i > 0 ? "," : "") + dictionary.term(authors[i]);
 		}
 
 		r += "],[";
-		i = 0;
-
-		for (Iterator<String> it = keywords.iterator(); it.hasNext();) {
-			r += (i > 0 ? "," : "") + it.next();
-			i++;
+		for (i = 0; i < keywords.length; i++) {
+			r += (i > 0 ? "," : "") + dictionary.term(keywords[i]);
 		}
 
 		r += "])";
@@ -0,0 +1,50 @@
+package cp.articlerep;
+
+import cp.articlerep.ds.List;
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Operations of the workload, which {@link Worker} runs and
+ * {@link RepositoryServer} serves, common to a single {@link Repository}
+ * and to the stores built on top of repositories.
+ */
+public interface ArticleStore {
+
+	/**
+	 * @return the dictionary of the term ids taken and returned
+	 */
+	public TermDictionary getDictionary();
+
+	/**
+	 * @return false if an article with the same id already exists
+	 */
+	public boolean insertArticle(Article a);
+
+	/**
+	 * @return false if there is no article with the id
+	 */
+	public boolean removeArticle(int id);
+
+	/**
+	 * @return the number of articles inserted
+	 */
+	public int insertArticles(List<Article> articles);
+
+	/**
+	 * @return the number of articles removed
+	 */
+	public int removeArticles(int[] ids);
+
+	public List<Article> findArticleByAuthor(List<String> authors);
+
+	public List<Article> findArticleByKeyword(List<String> keywords);
+
+	public List<Article> findArticleByAuthor(int[] authors);
+
+	public List<Article> findArticleByKeyword(int[] keywords);
+
+	/**
+	 * Checks the consistency of the articles and of their indexes
+	 */
+	public boolean validate();
+}
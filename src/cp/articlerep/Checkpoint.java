@@ -0,0 +1,401 @@
+package cp.articlerep;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.List;
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Image of a repository in a file laid out to be memory-mapped, written by
+ * {@link Repository#writeCheckpoint(String)} and opened by
+ * {@link Repository#openCheckpoint(String, int)}.
+ *
+ * The file holds a header followed by these sections, in big-endian ints:
+ * <ul>
+ * <li>terms: term count + 1 offsets into the UTF-8 bytes of the terms, in
+ * id order</li>
+ * <li>articles: their ids in ascending order, then article count + 1
+ * offsets into their records, each [name length][name][author count]
+ * [author ids][keyword count][keyword ids]</li>
+ * <li>authors and keywords: term count + 1 offsets into the positions, in
+ * the articles section, of the articles of each term, ascending</li>
+ * </ul>
+ *
+ * Sections are read in place through the mapping, so opening a checkpoint
+ * reads the header and the terms, and the pages of the articles and
+ * postings are only faulted in as they are used. Each article is decoded
+ * once, and the same object is handed to every posting list and map slot
+ * it goes into.
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x41524350;
+	private static final int FORMAT = 1;
+
+	/*
+	 * magic, format, article count, term count, then the offsets of the 9
+	 * sections and of the end of the file
+	 */
+	private static final int HEADER_SIZE = 4 * 4 + 10 * 8;
+
+	/**
+	 * Version the articles of a checkpoint were created at, once opened
+	 */
+	public static final long VERSION = 1;
+
+	private final ByteBuffer buffer;
+	private final int articleCount;
+	private final int termCount;
+
+	private final int termOffsets;
+	private final int termData;
+	private final int articleIds;
+	private final int articleOffsets;
+	private final int articleData;
+	private final int authorOffsets;
+	private final int authorPostings;
+	private final int keywordOffsets;
+	private final int keywordPostings;
+
+	private final AtomicReferenceArray<Article> articles;
+
+	/*
+	 * Bitsets of what the repository already moved into its maps, by
+	 * article position and by term id
+	 */
+	private final AtomicLongArray hydratedArticles;
+	private final AtomicLongArray hydratedAuthors;
+	private final AtomicLongArray hydratedKeywords;
+	private final AtomicInteger pendingArticles;
+
+	private Checkpoint(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("not a checkpoint");
+		if (buffer.getInt(4) != FORMAT)
+			throw new IOException("unknown checkpoint format "
+					+ buffer.getInt(4));
+
+		this.articleCount = buffer.getInt(8);
+		this.termCount = buffer.getInt(12);
+		this.termOffsets = section(0);
+		this.termData = section(1);
+		this.articleIds = section(2);
+		this.articleOffsets = section(3);
+		this.articleData = section(4);
+		this.authorOffsets = section(5);
+		this.authorPostings = section(6);
+		this.keywordOffsets = section(7);
+		this.keywordPostings = section(8);
+		if (buffer.getLong(16 + 9 * 8) != buffer.capacity())
+			throw new IOException("truncated checkpoint");
+
+		this.articles = new AtomicReferenceArray<Article>(articleCount);
+		this.hydratedArticles = new AtomicLongArray((articleCount + 63) / 64);
+		this.hydratedAuthors = new AtomicLongArray((termCount + 63) / 64);
+		this.hydratedKeywords = new AtomicLongArray((termCount + 63) / 64);
+		this.pendingArticles = new AtomicInteger(articleCount);
+	}
+
+	private int section(int i) throws IOException {
+		long offset = buffer.getLong(16 + i * 8);
+		if (offset < HEADER_SIZE || offset > buffer.capacity())
+			throw new IOException("corrupt checkpoint header");
+		return (int) offset;
+	}
+
+	/**
+	 * Maps the file read-only. The mapping stays valid after the file is
+	 * replaced, as {@link #write} does.
+	 */
+	public static Checkpoint open(String path) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path),
+				StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("checkpoint larger than 2 GB");
+			return new Checkpoint(channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the articles, with the first termCount terms of the dictionary,
+	 * to a temporary file that then replaces the one at path, so a crash
+	 * never leaves a partial checkpoint behind
+	 *
+	 * @param termCount
+	 *            number of terms to write, covering every term of the
+	 *            articles
+	 */
+	public static void write(String path, List<Article> list,
+			TermDictionary dictionary, int termCount) throws IOException {
+		Article[] sorted = new Article[list.size()];
+		int n = 0;
+		Iterator<Article> it = list.iterator();
+		while (it.hasNext())
+			sorted[n++] = it.next();
+		Arrays.sort(sorted, new Comparator<Article>() {
+			public int compare(Article a, Article b) {
+				return Integer.compare(a.getId(), b.getId());
+			}
+		});
+
+		byte[][] terms = new byte[termCount][];
+		int termBytes = 0;
+		for (int i = 0; i < termCount; i++) {
+			terms[i] = dictionary.term(i).getBytes(StandardCharsets.UTF_8);
+			termBytes += terms[i].length;
+		}
+
+		byte[][] names = new byte[n][];
+		long articleBytes = 0;
+		int[] authorCounts = new int[termCount + 1];
+		int[] keywordCounts = new int[termCount + 1];
+		for (int i = 0; i < n; i++) {
+			names[i] = sorted[i].getName().getBytes(StandardCharsets.UTF_8);
+			int[] authors = sorted[i].getAuthors();
+			int[] keywords = sorted[i].getKeywords();
+			articleBytes += 4 + names[i].length + 4 + 4 * authors.length + 4
+					+ 4 * keywords.length;
+			for (int j = 0; j < authors.length; j++)
+				authorCounts[authors[j] + 1]++;
+			for (int j = 0; j < keywords.length; j++)
+				keywordCounts[keywords[j] + 1]++;
+		}
+
+		/*
+		 * Prefix sums: counts[t] becomes the first entry of term t
+		 */
+		for (int t = 0; t < termCount; t++) {
+			authorCounts[t + 1] += authorCounts[t];
+			keywordCounts[t + 1] += keywordCounts[t];
+		}
+		int[] authorPostings = new int[authorCounts[termCount]];
+		int[] keywordPostings = new int[keywordCounts[termCount]];
+		int[] authorNext = Arrays.copyOf(authorCounts, termCount);
+		int[] keywordNext = Arrays.copyOf(keywordCounts, termCount);
+		for (int i = 0; i < n; i++) {
+			int[] authors = sorted[i].getAuthors();
+			int[] keywords = sorted[i].getKeywords();
+			for (int j = 0; j < authors.length; j++)
+				authorPostings[authorNext[authors[j]]++] = i;
+			for (int j = 0; j < keywords.length; j++)
+				keywordPostings[keywordNext[keywords[j]]++] = i;
+		}
+
+		long[] sections = new long[10];
+		sections[0] = HEADER_SIZE;
+		sections[1] = sections[0] + 4L * (termCount + 1);
+		sections[2] = sections[1] + termBytes;
+		sections[3] = sections[2] + 4L * n;
+		sections[4] = sections[3] + 4L * (n + 1);
+		sections[5] = sections[4] + articleBytes;
+		sections[6] = sections[5] + 4L * (termCount + 1);
+		sections[7] = sections[6] + 4L * authorPostings.length;
+		sections[8] = sections[7] + 4L * (termCount + 1);
+		sections[9] = sections[8] + 4L * keywordPostings.length;
+		if (sections[9] > Integer.MAX_VALUE)
+			throw new IOException("checkpoint larger than 2 GB");
+
+		Path target = Paths.get(path).toAbsolutePath();
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp.toFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(n);
+			out.writeInt(termCount);
+			for (int i = 0; i < sections.length; i++)
+				out.writeLong(sections[i]);
+
+			int offset = 0;
+			for (int i = 0; i < termCount; i++) {
+				out.writeInt(offset);
+				offset += terms[i].length;
+			}
+			out.writeInt(offset);
+			for (int i = 0; i < termCount; i++)
+				out.write(terms[i]);
+
+			for (int i = 0; i < n; i++)
+				out.writeInt(sorted[i].getId());
+			offset = 0;
+			for (int i = 0; i < n; i++) {
+				out.writeInt(offset);
+				offset += 4 + names[i].length + 4
+						+ 4 * sorted[i].getAuthors().length + 4
+						+ 4 * sorted[i].getKeywords().length;
+			}
+			out.writeInt(offset);
+			for (int i = 0; i < n; i++) {
+				out.writeInt(names[i].length);
+				out.write(names[i]);
+				writeInts(out, sorted[i].getAuthors());
+				writeInts(out, sorted[i].getKeywords());
+			}
+
+			for (int t = 0; t <= termCount; t++)
+				out.writeInt(authorCounts[t]);
+			for (int i = 0; i < authorPostings.length; i++)
+				out.writeInt(authorPostings[i]);
+			for (int t = 0; t <= termCount; t++)
+				out.writeInt(keywordCounts[t]);
+			for (int i = 0; i < keywordPostings.length; i++)
+				out.writeInt(keywordPostings[i]);
+
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (int i = 0; i < values.length; i++)
+			out.writeInt(values[i]);
+	}
+
+	public int getArticleCount() {
+		return articleCount;
+	}
+
+	public int getTermCount() {
+		return termCount;
+	}
+
+	public String term(int id) {
+		int start = buffer.getInt(termOffsets + 4 * id);
+		int end = buffer.getInt(termOffsets + 4 * (id + 1));
+		byte[] bytes = new byte[end - start];
+		buffer.get(termData + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int idAt(int pos) {
+		return buffer.getInt(articleIds + 4 * pos);
+	}
+
+	/**
+	 * @return the position of the article with the given id, or -1 if it is
+	 *         not in the checkpoint
+	 */
+	public int indexOf(int id) {
+		int lo = 0;
+		int hi = articleCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = idAt(mid);
+			if (v < id)
+				lo = mid + 1;
+			else if (v > id)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the article at the position, decoded on first use and the
+	 *         same object on every later call
+	 */
+	public Article article(int pos) {
+		Article a = articles.get(pos);
+		if (a != null)
+			return a;
+
+		int p = articleData + buffer.getInt(articleOffsets + 4 * pos);
+		byte[] name = new byte[buffer.getInt(p)];
+		buffer.get(p + 4, name);
+		p += 4 + name.length;
+
+		a = new Article(idAt(pos), new String(name, StandardCharsets.UTF_8));
+		int authors = buffer.getInt(p);
+		for (int i = 0; i < authors; i++)
+			a.addAuthor(buffer.getInt(p + 4 + 4 * i));
+		p += 4 + 4 * authors;
+		int keywords = buffer.getInt(p);
+		for (int i = 0; i < keywords; i++)
+			a.addKeyword(buffer.getInt(p + 4 + 4 * i));
+		a.setCreatedVersion(VERSION);
+
+		if (!articles.compareAndSet(pos, null, a))
+			a = articles.get(pos);
+		return a;
+	}
+
+	/**
+	 * @return the positions of the articles of an author (or keyword), in
+	 *         ascending order
+	 */
+	public int[] postings(boolean authors, int term) {
+		int offsets = authors ? authorOffsets : keywordOffsets;
+		int postings = authors ? authorPostings : keywordPostings;
+		int start = buffer.getInt(offsets + 4 * term);
+		int end = buffer.getInt(offsets + 4 * (term + 1));
+
+		int[] res = new int[end - start];
+		for (int i = 0; i < res.length; i++)
+			res[i] = buffer.getInt(postings + 4 * (start + i));
+		return res;
+	}
+
+	public boolean isArticleHydrated(int pos) {
+		return isSet(hydratedArticles, pos);
+	}
+
+	/**
+	 * @return the number of articles not yet hydrated
+	 */
+	public int setArticleHydrated(int pos) {
+		set(hydratedArticles, pos);
+		return pendingArticles.decrementAndGet();
+	}
+
+	public boolean isTermHydrated(boolean authors, int term) {
+		return isSet(authors ? hydratedAuthors : hydratedKeywords, term);
+	}
+
+	public void setTermHydrated(boolean authors, int term) {
+		set(authors ? hydratedAuthors : hydratedKeywords, term);
+	}
+
+	private static boolean isSet(AtomicLongArray bits, int i) {
+		return (bits.get(i >>> 6) & (1L << i)) != 0;
+	}
+
+	private static void set(AtomicLongArray bits, int i) {
+		long mask = 1L << i;
+		long old;
+		while (((old = bits.get(i >>> 6)) & mask) == 0
+				&& !bits.compareAndSet(i >>> 6, old, old | mask))
+			;
+	}
+}
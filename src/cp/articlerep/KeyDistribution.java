@@ -0,0 +1,247 @@
+package cp.articlerep;
+
+import java.util.Random;
+
+/**
+ * Distribution of the keys drawn by the workload, over [0, n). Each draw
+ * takes O(1) time and allocates nothing, and instances are shared by the
+ * jobs, each drawing with its own Random.
+ *
+ * Distributions are given as a name followed by its parameters, separated
+ * by colons:
+ * <ul>
+ * <li>uniform</li>
+ * <li>zipfian[:exponent] - key k has weight 1 / (k + 1)^exponent; 0.99 by
+ * default</li>
+ * <li>hotspot[:hotFraction[:hotProbability]] - the first hotFraction of
+ * the keys get hotProbability of the draws, uniformly; 0.2 and 0.8 by
+ * default</li>
+ * <li>latest[:exponent] - zipfian over the distance back from the last
+ * key inserted, so recent articles and their words are the popular
+ * ones</li>
+ * </ul>
+ */
+public abstract class KeyDistribution {
+
+	protected final int n;
+
+	protected KeyDistribution(int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("no keys to draw from");
+		this.n = n;
+	}
+
+	/**
+	 * @return a key in [0, n)
+	 */
+	public abstract int next(Random rand);
+
+	/**
+	 * @return the number of keys that can be drawn
+	 */
+	public int support() {
+		return n;
+	}
+
+	/**
+	 * Tells the distribution a key was inserted
+	 */
+	public void observe(int key) {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the spec is not a known distribution
+	 */
+	public static KeyDistribution parse(String spec, int n) {
+		String[] f = spec.trim().toLowerCase().split(":");
+		try {
+			if (f[0].equals("uniform") && f.length == 1)
+				return new Uniform(n);
+			if (f[0].equals("zipfian") && f.length <= 2)
+				return new Zipfian(n, param(f, 1, 0.99));
+			if (f[0].equals("hotspot") && f.length <= 3)
+				return new Hotspot(n, param(f, 1, 0.2), param(f, 2, 0.8));
+			if (f[0].equals("latest") && f.length <= 2)
+				return new Latest(n, param(f, 1, 0.99));
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("unknown distribution " + spec
+				+ ", expected uniform, zipfian[:exponent],"
+				+ " hotspot[:hotFraction[:hotProbability]]"
+				+ " or latest[:exponent]");
+	}
+
+	private static double param(String[] f, int i, double def) {
+		return i < f.length ? Double.parseDouble(f[i]) : def;
+	}
+
+	public static class Uniform extends KeyDistribution {
+
+		public Uniform(int n) {
+			super(n);
+		}
+
+		@Override
+		public int next(Random rand) {
+			return rand.nextInt(n);
+		}
+
+		public String toString() {
+			return "uniform";
+		}
+	}
+
+	/**
+	 * Draws by rejection-inversion (Hormann and Derflinger, "Rejection-
+	 * inversion to generate variates from monotone discrete distributions",
+	 * 1996): inverts the integral of a continuous hat over the weights and
+	 * rejects the rare draws that fall outside them. It needs no table, so
+	 * setting it up is O(1) too, and it takes about one uniform draw per
+	 * key for any exponent.
+	 */
+	public static class Zipfian extends KeyDistribution {
+
+		private final double exponent;
+		private final double hIntegralX1;
+		private final double hIntegralN;
+		private final double s;
+
+		public Zipfian(int n, double exponent) {
+			super(n);
+			if (!(exponent > 0))
+				throw new IllegalArgumentException(
+						"the zipfian exponent must be positive");
+			this.exponent = exponent;
+			this.hIntegralX1 = hIntegral(1.5) - 1;
+			this.hIntegralN = hIntegral(n + 0.5);
+			this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+		}
+
+		/**
+		 * @return the rank of the key drawn, from 1 (the most popular) to n
+		 */
+		protected int rank(Random rand) {
+			while (true) {
+				double u = hIntegralN + rand.nextDouble()
+						* (hIntegralX1 - hIntegralN);
+				double x = hIntegralInverse(u);
+				int k = (int) (x + 0.5);
+				if (k < 1)
+					k = 1;
+				else if (k > n)
+					k = n;
+
+				if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+					return k;
+			}
+		}
+
+		@Override
+		public int next(Random rand) {
+			return rank(rand) - 1;
+		}
+
+		private double h(double x) {
+			return Math.exp(-exponent * Math.log(x));
+		}
+
+		private double hIntegral(double x) {
+			double logX = Math.log(x);
+			return helper2((1 - exponent) * logX) * logX;
+		}
+
+		private double hIntegralInverse(double x) {
+			double t = x * (1 - exponent);
+			if (t < -1)
+				t = -1;
+			return Math.exp(helper1(t) * x);
+		}
+
+		/**
+		 * log(1 + x) / x, also near 0
+		 */
+		private static double helper1(double x) {
+			if (Math.abs(x) > 1e-8)
+				return Math.log1p(x) / x;
+			return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+		}
+
+		/**
+		 * (exp(x) - 1) / x, also near 0
+		 */
+		private static double helper2(double x) {
+			if (Math.abs(x) > 1e-8)
+				return Math.expm1(x) / x;
+			return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+		}
+
+		public String toString() {
+			return "zipfian(" + exponent + ")";
+		}
+	}
+
+	public static class Hotspot extends KeyDistribution {
+
+		private final int hot;
+		private final double hotProbability;
+
+		public Hotspot(int n, double hotFraction, double hotProbability) {
+			super(n);
+			if (hotFraction < 0 || hotFraction > 1 || hotProbability < 0
+					|| hotProbability > 1)
+				throw new IllegalArgumentException(
+						"hotspot fractions must be between 0 and 1");
+			this.hot = Math.max(1, Math.min(n, (int) (n * hotFraction)));
+			this.hotProbability = hotProbability;
+		}
+
+		@Override
+		public int next(Random rand) {
+			if (hot == n || rand.nextDouble() < hotProbability)
+				return rand.nextInt(hot);
+			return hot + rand.nextInt(n - hot);
+		}
+
+		@Override
+		public int support() {
+			if (hot == n)
+				return n;
+			if (hotProbability >= 1)
+				return hot;
+			if (hotProbability <= 0)
+				return n - hot;
+			return n;
+		}
+
+		public String toString() {
+			return "hotspot(" + hot + " of " + n + " keys, "
+					+ hotProbability + ")";
+		}
+	}
+
+	public static class Latest extends Zipfian {
+
+		private volatile int latest;
+
+		public Latest(int n, double exponent) {
+			super(n, exponent);
+			this.latest = 0;
+		}
+
+		@Override
+		public int next(Random rand) {
+			int k = latest - (rank(rand) - 1);
+			return k < 0 ? k + n : k;
+		}
+
+		@Override
+		public void observe(int key) {
+			latest = key;
+		}
+
+		public String toString() {
+			return "latest" + super.toString().substring("zipfian".length());
+		}
+	}
+}
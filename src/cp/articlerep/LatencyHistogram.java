@@ -0,0 +1,249 @@
+package cp.articlerep;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * Values are counted in log-linear buckets: up to 2 * 10^digits they are
+ * kept exactly, and above that each power of two is split into the same
+ * number of sub-buckets, so every value is reported within a relative error
+ * of 10^-digits. Counts live in a single array allocated up front, and
+ * {@link #record(long)} neither allocates nor synchronizes: each thread
+ * records into its own histogram, and they are merged with {@link #add}
+ * once the threads are done. When threads must share a histogram,
+ * {@link #recordConcurrently(long)} does the same with atomic updates.
+ */
+public class LatencyHistogram {
+
+	private final int subBucketBits;
+	private final long subBucketMask;
+	private final long highestTrackableValue;
+
+	private final long[] counts;
+	private long totalCount;
+	private long min;
+	private long max;
+	private long sum;
+
+	private static final VarHandle COUNTS = MethodHandles
+			.arrayElementVarHandle(long[].class);
+	private static final VarHandle TOTAL_COUNT;
+	private static final VarHandle SUM;
+	private static final VarHandle MIN;
+	private static final VarHandle MAX;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			TOTAL_COUNT = l.findVarHandle(LatencyHistogram.class,
+					"totalCount", long.class);
+			SUM = l.findVarHandle(LatencyHistogram.class, "sum", long.class);
+			MIN = l.findVarHandle(LatencyHistogram.class, "min", long.class);
+			MAX = l.findVarHandle(LatencyHistogram.class, "max", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * @param highestTrackableValue
+	 *            larger values are counted as this one
+	 * @param significantDigits
+	 *            precision kept, from 1 to 5
+	 */
+	public LatencyHistogram(long highestTrackableValue, int significantDigits) {
+		if (significantDigits < 1 || significantDigits > 5)
+			throw new IllegalArgumentException(
+					"significantDigits must be between 1 and 5");
+
+		long single = 2;
+		for (int i = 0; i < significantDigits; i++)
+			single *= 10;
+		int bits = 64 - Long.numberOfLeadingZeros(single - 1);
+
+		this.subBucketBits = bits;
+		this.subBucketMask = (1L << bits) - 1;
+		this.highestTrackableValue = Math.max(highestTrackableValue,
+				subBucketMask);
+		this.counts = new long[indexOf(this.highestTrackableValue) + 1];
+		reset();
+	}
+
+	private int indexOf(long value) {
+		int bucket = 64 - Long.numberOfLeadingZeros(value | subBucketMask)
+				- subBucketBits;
+		return (bucket << (subBucketBits - 1)) + (int) (value >>> bucket);
+	}
+
+	private int bucketOf(int index) {
+		return Math.max(0, (index >> (subBucketBits - 1)) - 1);
+	}
+
+	private long lowestEquivalentValue(int index) {
+		int bucket = bucketOf(index);
+		return (long) (index - (bucket << (subBucketBits - 1))) << bucket;
+	}
+
+	private long highestEquivalentValue(int index) {
+		return lowestEquivalentValue(index) + (1L << bucketOf(index)) - 1;
+	}
+
+	private long clamp(long value) {
+		if (value < 0)
+			return 0;
+		return Math.min(value, highestTrackableValue);
+	}
+
+	public void record(long value) {
+		value = clamp(value);
+
+		counts[indexOf(value)]++;
+		totalCount++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Like {@link #record(long)}, but safe to call from several threads at
+	 * once; the histogram must only be read once they are done
+	 */
+	public void recordConcurrently(long value) {
+		value = clamp(value);
+
+		COUNTS.getAndAdd(counts, indexOf(value), 1L);
+		TOTAL_COUNT.getAndAdd(this, 1L);
+		SUM.getAndAdd(this, value);
+
+		long m;
+		while (value < (m = (long) MIN.getVolatile(this))
+				&& !MIN.compareAndSet(this, m, value))
+			;
+		while (value > (m = (long) MAX.getVolatile(this))
+				&& !MAX.compareAndSet(this, m, value))
+			;
+	}
+
+	/**
+	 * Adds the counts of another histogram with the same configuration
+	 */
+	public void add(LatencyHistogram other) {
+		if (other.counts.length != counts.length
+				|| other.subBucketBits != subBucketBits)
+			throw new IllegalArgumentException(
+					"histograms have different configurations");
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+		sum += other.sum;
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getMin() {
+		return totalCount == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return totalCount == 0 ? 0 : (double) sum / totalCount;
+	}
+
+	/**
+	 * @return the highest value equivalent to the one below which the given
+	 *         percentage of the recorded values fall
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+
+		long target = countAtPercentile(percentile);
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= target)
+				return Math.min(highestEquivalentValue(i), max);
+		}
+		return max;
+	}
+
+	private long countAtPercentile(double percentile) {
+		long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0
+				* totalCount);
+		return Math.max(target, 1);
+	}
+
+	/**
+	 * Writes the percentile distribution in the text format of
+	 * HdrHistogram, which its plotting tools read. Percentiles get denser
+	 * towards the tail, halving the distance to 100% every 5 lines.
+	 *
+	 * @param scale
+	 *            the values are divided by it, e.g. 1000.0 for microseconds
+	 */
+	public void outputPercentileDistribution(PrintStream out, double scale) {
+		out.println(String.format("%12s %14s %10s %14s", "Value",
+				"Percentile", "TotalCount", "1/(1-Percentile)"));
+		out.println();
+
+		if (totalCount > 0) {
+			int i = 0;
+			long cumulative = counts[0];
+			double level = 0;
+
+			while (true) {
+				long target = countAtPercentile(level);
+				while (cumulative < target) {
+					i++;
+					cumulative += counts[i];
+				}
+
+				long value = Math.min(highestEquivalentValue(i), max);
+				if (cumulative == totalCount) {
+					out.println(String.format("%12.3f %1.12f %10d", value
+							/ scale, 1.0, cumulative));
+					break;
+				}
+
+				double fraction = level / 100.0;
+				out.println(String.format("%12.3f %1.12f %10d %14.2f", value
+						/ scale, fraction, cumulative, 1 / (1 - fraction)));
+
+				long ticks = 5L << (64 - Long
+						.numberOfLeadingZeros((long) (100.0 / (100.0 - level))));
+				level += 100.0 / ticks;
+			}
+		}
+
+		out.println(String.format("#[Mean    = %12.3f, Max        = %12.3f]",
+				getMean() / scale, max / scale));
+		out.println(String.format("#[Min     = %12.3f, Total count = %12d]",
+				getMin() / scale, totalCount));
+		out.println(String.format("#[Buckets = %12d, SubBuckets  = %12d]",
+				bucketOf(counts.length - 1) + 1, 1 << subBucketBits));
+	}
+}
@@ -1,11 +1,94 @@
 package cp.articlerep;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import cp.articlerep.ds.LockStats;
+
 public class MainRep {
 
 	public static final boolean DO_VALIDATION = Boolean.parseBoolean(System
 			.getProperty("cp.articlerep.validate"));
 
-	
+	/**
+	 * Directory where the latency distribution of each operation type is
+	 * written, in the HdrHistogram text format; none if unset
+	 */
+	public static final String HISTOGRAM_DIR = System
+			.getProperty("cp.articlerep.histogramDir");
+
+	/**
+	 * Period in ms of the lock statistics dump, when they are enabled; 0 to
+	 * only dump them at the end
+	 */
+	public static final long LOCKSTATS_INTERVAL = Long.getLong(
+			"cp.articlerep.lockstats.interval", 0);
+
+	/**
+	 * Threads the jobs run on: platform (the default), virtual, or compare
+	 * to run the workload once with each and compare them
+	 */
+	public static final String THREADS = System.getProperty(
+			"cp.articlerep.threads", "platform");
+
+	/**
+	 * Checkpoint file the repository is opened from, if it exists, and
+	 * written to at the end of the run; none if unset
+	 */
+	public static final String CHECKPOINT = System
+			.getProperty("cp.articlerep.checkpoint");
+
+	/**
+	 * Trace file the operations of the run are recorded to; none if unset
+	 */
+	public static final String TRACE_RECORD = System
+			.getProperty("cp.articlerep.trace.record");
+
+	/**
+	 * Trace file replayed instead of generating operations; the run ends
+	 * when it is exhausted or its time is up
+	 */
+	public static final String TRACE_REPLAY = System
+			.getProperty("cp.articlerep.trace.replay");
+
+	/**
+	 * Pace of a replay: full (as fast as possible, the default) or original
+	 * (each operation at its time in the trace)
+	 */
+	public static final String TRACE_TIMING = System.getProperty(
+			"cp.articlerep.trace.timing", "full");
+
+	/**
+	 * Period in ms of the throughput samples; 0 to only report the rate
+	 * over the whole run
+	 */
+	public static final long SAMPLE_INTERVAL = Long.getLong(
+			"cp.articlerep.sample.interval", 1000);
+
+	/**
+	 * Time in ms from the start of the test whose samples are excluded
+	 * from the summary rates
+	 */
+	public static final long WARMUP = Long.getLong("cp.articlerep.warmup", 0);
+
+	/**
+	 * Samples, and their largest coefficient of variation, of the first
+	 * window after the warmup that counts as the steady state
+	 */
+	public static final int STEADY_WINDOW = Integer.getInteger(
+			"cp.articlerep.steady.window", 5);
+	public static final double STEADY_CV = Double.parseDouble(System
+			.getProperty("cp.articlerep.steady.cv", "0.05"));
+
+	/**
+	 * File the throughput time series is written to, as JSON if it ends in
+	 * .json and CSV otherwise; none if unset
+	 */
+	public static final String TIMESERIES = System
+			.getProperty("cp.articlerep.timeseries");
+
 	public static void main(String[] args) {
 
 		if (args.length < 9) {
@@ -32,37 +115,161 @@ public class MainRep {
 		int nkeywords = Integer.parseInt(args[7]);
 		int nfindlist = Integer.parseInt(args[8]);
 
-		Worker run = new Worker(nkeys, "resources/dictionary.txt", put, del,
-				get, nauthors, nkeywords, nfindlist);
+		if (LockStats.ENABLED && LOCKSTATS_INTERVAL > 0)
+			LockStats.startDump(LOCKSTATS_INTERVAL, System.out);
+
+		if (THREADS.equals("compare")) {
+			Worker platform = runTest(false, "platform-", time, nthreads,
+					nkeys, put, del, get, nauthors, nkeywords, nfindlist);
+			if (platform == null)
+				return;
+			Worker virtual = runTest(true, "virtual-", time, nthreads, nkeys,
+					put, del, get, nauthors, nkeywords, nfindlist);
+			if (virtual == null)
+				return;
+			printComparison(platform, virtual);
+		} else {
+			runTest(THREADS.equals("virtual"), "", time, nthreads, nkeys, put,
+					del, get, nauthors, nkeywords, nfindlist);
+		}
+	}
+
+	/**
+	 * Runs the workload once and prints its report
+	 * 
+	 * @param histogramPrefix
+	 *            prepended to the names of the histogram files
+	 * @return the worker, or null if a validation failed
+	 */
+	private static Worker runTest(boolean virtual, String histogramPrefix,
+			int time, int nthreads, int nkeys, int put, int del, int get,
+			int nauthors, int nkeywords, int nfindlist) {
+
+		/*
+		 * The lock statistics only cover the repository of this run
+		 */
+		LockStats.clear();
+
+		/*
+		 * local is the repository, unless the workload runs on shards or on
+		 * a server
+		 */
+		ArticleStore repository;
+		Repository local = null;
+		if (ShardedRepository.SHARDS > 1 || RemoteRepository.ADDRESS != null) {
+			if (CHECKPOINT != null
+					|| System.getProperty("cp.articlerep.wal") != null) {
+				System.out.println("Error: sharded and remote repositories"
+						+ " support neither checkpoints nor the log");
+				System.exit(1);
+			}
+			if (RemoteRepository.ADDRESS != null)
+				repository = new RemoteRepository(RemoteRepository.ADDRESS,
+						nkeys);
+			else
+				repository = new ShardedRepository(nkeys,
+						ShardedRepository.SHARDS);
+		} else {
+			if (CHECKPOINT != null && new File(CHECKPOINT).exists()) {
+				try {
+					long start = System.currentTimeMillis();
+					local = Repository.openCheckpoint(CHECKPOINT, nkeys);
+					System.out.println("Opened checkpoint in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				} catch (IOException e) {
+					System.out.println("Error: cannot open the checkpoint: "
+							+ e);
+					System.exit(1);
+				}
+			}
+			if (local == null)
+				local = new Repository(nkeys);
+			repository = local;
+		}
+
+		Worker run = null;
+		ThroughputSampler sampler = null;
+		try {
+			run = new Worker(repository, nkeys, "resources/dictionary.txt",
+					put, del, get, nauthors, nkeywords, nfindlist);
+			if (SAMPLE_INTERVAL > 0)
+				sampler = new ThroughputSampler(run, SAMPLE_INTERVAL, WARMUP,
+						STEADY_WINDOW, STEADY_CV);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
 
-		run.spawnThread(nthreads);
+		WriteAheadLog wal = null;
+		try {
+			wal = WriteAheadLog.fromProperties();
+			if (wal != null) {
+				long start = System.currentTimeMillis();
+				long records = local.attachLog(wal);
+				System.out.println("Recovered " + records
+						+ " log records in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+		} catch (IOException e) {
+			System.out.println("Error: cannot open the log: " + e);
+			System.exit(1);
+		}
+
+		Trace.Writer recorder = null;
+		try {
+			if (TRACE_RECORD != null) {
+				recorder = new Trace.Writer(TRACE_RECORD, run.getRepository()
+						.getDictionary());
+				run.recordTo(recorder);
+			}
+
+			if (TRACE_REPLAY != null)
+				run.spawnReplay(nthreads, virtual, new Trace.Reader(
+						TRACE_REPLAY, run.getRepository().getDictionary()),
+						TRACE_TIMING.equals("original"));
+			else
+				run.spawnThread(nthreads, virtual);
+		} catch (IOException e) {
+			System.out.println("Error: cannot open the trace: " + e);
+			System.exit(1);
+		}
+
+		if (TRACE_REPLAY == null && Worker.PREGENERATE_OPS > 0)
+			System.out.println("Generated the operations in "
+					+ run.getGenerationMillis() + " ms");
+
+		if (virtual && !run.isVirtual())
+			System.out.println("Warning: virtual threads are not available"
+					+ " in this JDK, using platform threads");
 
 		run.startTest();
+		if (sampler != null)
+			sampler.start();
 
 		long start_time = System.currentTimeMillis();
 
 		try {
 			if (!DO_VALIDATION) {
-				Thread.sleep(time * 1000);
+				run.awaitJobs(time * 1000L);
 			} else {
 				for (int i = 0; i < time; i++) {
-					Thread.sleep(1000);
+					if (run.awaitJobs(1000))
+						break;
 
 					if (i % 5 == 0) {
-						run.pauseTest();
-
+						/*
+						 * Validates a snapshot, with the workload running
+						 */
 						System.out.println("[" + i
 								+ "] -----------VALIDATION-----------");
 
 						if (!run.getRepository().validate()) {
 							System.out.println("[VALIDATION ERROR]");
 							run.stopTest();
-							return;
+							return null;
 
 						}
 
-						run.restartTest();
-
 						System.out.println("Check done");
 					}
 
@@ -73,15 +280,234 @@ public class MainRep {
 		}
 
 		run.stopTest();
+		if (sampler != null)
+			sampler.stop();
 
 		long end_time = System.currentTimeMillis();
 
 		run.joinThreads();
+		run.setElapsedMillis(end_time - start_time);
 
+		if (recorder != null) {
+			try {
+				recorder.close();
+				System.out.println("Recorded " + recorder.getRecords()
+						+ " operations to " + TRACE_RECORD);
+			} catch (IOException e) {
+				System.out.println("Error: cannot write the trace: " + e);
+			}
+		}
+
+		System.out.println("Threads: " + nthreads + " "
+				+ (run.isVirtual() ? "virtual" : "platform"));
 		System.out.println("Total time: " + ((end_time - start_time) / 1000) + " seconds");
 		System.out.println("Operation rate: "
-				+ Math.round(run.getTotalOperations()
-						/ ((end_time - start_time) / 1000.0)) + " ops/s");
+				+ Math.round(run.getOperationRate()) + " ops/s");
+		if (sampler != null)
+			printThroughput(sampler);
+		long heap = usedHeap();
+		System.out.println("Distributions: keys "
+				+ run.getKeyDistribution() + ", words "
+				+ run.getWordDistribution());
+		if (repository instanceof RemoteRepository) {
+			((RemoteRepository) repository).close();
+			System.out.println("Server: " + RemoteRepository.ADDRESS);
+		} else if (repository instanceof ShardedRepository) {
+			ShardedRepository sharded = (ShardedRepository) repository;
+			System.out.println("Lock stripes per map: "
+					+ sharded.getStripes());
+			System.out.println("Shards: " + sharded.getShards());
+		} else {
+			System.out.println("Lock stripes per map: "
+					+ local.getStripes());
+		}
+		System.out.println("Heap used: " + heap / (1024 * 1024) + " MB");
+		printCache(repository);
+
+		printLatencies(run, histogramPrefix);
+		LockStats.dump(System.out);
+
+		if (CHECKPOINT != null) {
+			try {
+				long start = System.currentTimeMillis();
+				int articles = local.writeCheckpoint(CHECKPOINT);
+				System.out.println("Wrote checkpoint of " + articles
+						+ " articles in "
+						+ (System.currentTimeMillis() - start) + " ms");
+
+				/*
+				 * The checkpoint covers every record of the log
+				 */
+				if (wal != null)
+					wal.truncate();
+			} catch (IOException e) {
+				System.out.println("Error: cannot write the checkpoint: " + e);
+			}
+		}
+
+		if (wal != null) {
+			try {
+				wal.close();
+			} catch (IOException e) {
+				System.out.println("Error: cannot close the log: " + e);
+			}
+			System.out.println(String.format(
+					"Log (%s): %d records, %d flushes, %.1f records/flush",
+					wal.getMode(), wal.getRecords(), wal.getFlushes(),
+					(double) wal.getRecords() / Math.max(wal.getFlushes(), 1)));
+		}
+
+		return run;
+	}
+
+	/**
+	 * Prints the rates after the warmup and over the steady state, and
+	 * writes the time series to TIMESERIES
+	 */
+	private static void printThroughput(ThroughputSampler sampler) {
+		if (WARMUP > 0) {
+			double rate = sampler.getRateAfterWarmup();
+			System.out.println("Rate after " + WARMUP + " ms warmup: "
+					+ (Double.isNaN(rate) ? "no samples" : Math.round(rate)
+							+ " ops/s"));
+		}
+
+		int steady = sampler.getSteadyStart();
+		if (steady < 0) {
+			System.out.println("Steady state: not reached in "
+					+ sampler.getSamples() + " samples");
+		} else {
+			ThroughputSampler.Sample first = sampler.getSample(steady);
+			System.out.println(String.format(
+					"Steady state: %d ops/s from %.1f s, cv %.3f",
+					Math.round(sampler.getSteadyRate()),
+					(first.time - first.durationNanos / 1e6) / 1000.0,
+					sampler.getSteadyCv()));
+		}
+
+		if (TIMESERIES != null) {
+			try {
+				sampler.write(TIMESERIES);
+			} catch (FileNotFoundException e) {
+				System.out.println("Error: cannot write " + TIMESERIES);
+			}
+		}
+	}
+
+	/**
+	 * Prints the hit rate of the query caches of the repository, or of its
+	 * shards, if they are enabled
+	 */
+	private static void printCache(ArticleStore repository) {
+		Repository[] repositories;
+		if (repository instanceof ShardedRepository) {
+			ShardedRepository sharded = (ShardedRepository) repository;
+			repositories = new Repository[sharded.getShards()];
+			for (int i = 0; i < repositories.length; i++)
+				repositories[i] = sharded.getShard(i);
+		} else if (repository instanceof Repository) {
+			repositories = new Repository[] { (Repository) repository };
+		} else {
+			return;
+		}
+
+		long hits = 0, misses = 0, stale = 0, evictions = 0, rejections = 0;
+		long bypassed = 0, bytes = 0;
+		int entries = 0;
+		for (int i = 0; i < repositories.length; i++) {
+			QueryCache cache = repositories[i].getCache();
+			if (cache == null)
+				return;
+			hits += cache.getHits();
+			misses += cache.getMisses();
+			stale += cache.getStale();
+			evictions += cache.getEvictions();
+			rejections += cache.getRejections();
+			bypassed += cache.getBypassed();
+			entries += cache.getEntries();
+			bytes += cache.getBytes();
+		}
+
+		System.out.println(String.format(
+				"Query cache: %.1f%% hits (%d hits, %d misses, %d stale),"
+						+ " %d evictions, %d rejections, %d bypassed,"
+						+ " %d entries, %d KB",
+				100.0 * hits / Math.max(hits + misses, 1), hits, misses,
+				stale, evictions, rejections, bypassed, entries,
+				bytes / 1024));
+	}
+
+	/**
+	 * Prints the throughput and tail latencies of both runs side by side
+	 */
+	private static void printComparison(Worker platform, Worker virtual) {
+		System.out.println();
+		System.out.println(String.format("%-22s %14s %14s %8s",
+				"Platform vs virtual", "platform", "virtual", "ratio"));
+		System.out.println(String.format("%-22s %14d %14d %8.2f",
+				"ops/s", Math.round(platform.getOperationRate()),
+				Math.round(virtual.getOperationRate()),
+				virtual.getOperationRate() / platform.getOperationRate()));
+
+		double[] percentiles = { 50, 99, 99.9 };
+		String[] labels = { "p50", "p99", "p99.9" };
+		for (int type = 0; type < Worker.OP_NAMES.length; type++) {
+			LatencyHistogram p = platform.getLatencies(type);
+			LatencyHistogram v = virtual.getLatencies(type);
+			for (int i = 0; i < percentiles.length; i++) {
+				double pv = p.getValueAtPercentile(percentiles[i]) / 1000.0;
+				double vv = v.getValueAtPercentile(percentiles[i]) / 1000.0;
+				System.out.println(String.format("%-22s %14.1f %14.1f %8.2f",
+						Worker.OP_NAMES[type] + " " + labels[i] + " us",
+						pv, vv, pv == 0 ? 0 : vv / pv));
+			}
+		}
+	}
+
+	/**
+	 * Prints the percentiles of the latencies of each operation type, in
+	 * microseconds, and writes their distributions to HISTOGRAM_DIR
+	 */
+	private static void printLatencies(Worker run, String histogramPrefix) {
+		System.out.println(String.format("%-14s %10s %9s %9s %9s %9s %9s %9s",
+				"Latency (us)", "count", "mean", "p50", "p99", "p99.9",
+				"p99.99", "max"));
+
+		for (int type = 0; type < Worker.OP_NAMES.length; type++) {
+			LatencyHistogram h = run.getLatencies(type);
+
+			System.out.println(String.format(
+					"%-14s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+					Worker.OP_NAMES[type], h.getTotalCount(),
+					h.getMean() / 1000.0,
+					h.getValueAtPercentile(50) / 1000.0,
+					h.getValueAtPercentile(99) / 1000.0,
+					h.getValueAtPercentile(99.9) / 1000.0,
+					h.getValueAtPercentile(99.99) / 1000.0,
+					h.getMax() / 1000.0));
+
+			if (HISTOGRAM_DIR != null) {
+				File file = new File(HISTOGRAM_DIR, histogramPrefix
+						+ Worker.OP_NAMES[type] + ".hgrm");
+				try {
+					PrintStream out = new PrintStream(file);
+					h.outputPercentileDistribution(out, 1000.0);
+					out.close();
+				} catch (FileNotFoundException e) {
+					System.out.println("Error: cannot write " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Heap still in use after a full collection, with the repository alive
+	 */
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
 	}
 
 }
@@ -0,0 +1,358 @@
+package cp.articlerep;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Binary protocol between {@link RepositoryServer} and
+ * {@link RemoteRepository}. Every message is a frame: a 4 byte length, a
+ * type byte and unsigned varints, like the records of a {@link Trace}.
+ *
+ * Requests:
+ * <ul>
+ * <li>TERM: term id, byte length, UTF-8 bytes; defines a term of the
+ * sender's dictionary before its first use on the connection. The server
+ * only adds it to its own dictionary once an insert uses it, and accepts
+ * at most MAX_DEFINITIONS of them per connection.</li>
+ * <li>insert: id, name length and UTF-8 bytes, author count and terms,
+ * keyword count and terms</li>
+ * <li>remove: id</li>
+ * <li>findByAuthor, findByKeyword: term count and terms; terms the
+ * server does not know match no article</li>
+ * <li>VALIDATE</li>
+ * </ul>
+ * Responses, one per request other than TERM and in the same order:
+ * <ul>
+ * <li>TERM, as above, before the articles that use the term</li>
+ * <li>RESULT: 1 if an insert, remove or validate succeeded, 0
+ * otherwise</li>
+ * <li>ARTICLES: article count, then the id, name, authors and keywords of
+ * each, as in an insert</li>
+ * <li>ERROR: byte length, UTF-8 message; the server then closes the
+ * connection</li>
+ * </ul>
+ * A client may send several requests before reading their responses, and
+ * the server answers all the requests it read at once with a single write.
+ */
+public class Protocol {
+
+	/*
+	 * Frame types; requests for operations are 1 + their Worker.OP_* type
+	 */
+	static final int TERM = 0;
+	static final int VALIDATE = 1 + Worker.OP_NAMES.length;
+
+	static final int RESULT = 1;
+	static final int ARTICLES = 2;
+	static final int ERROR = 3;
+
+	/**
+	 * Largest frame accepted, which bounds the buffers of a connection
+	 */
+	static final int MAX_FRAME = 1 << 24;
+
+	/**
+	 * Largest term id accepted, which bounds the remapping of a connection
+	 */
+	static final int MAX_TERM = 1 << 26;
+
+	/**
+	 * Most TERM frames the server accepts on a connection, and longest term
+	 * in bytes, which bound the terms a client makes it keep
+	 */
+	static final int MAX_DEFINITIONS = 1 << 18;
+	static final int MAX_TERM_LENGTH = 256;
+
+	private Protocol() {
+	}
+
+	/**
+	 * @param spec
+	 *            host:port, or unix:path for a Unix domain socket
+	 */
+	public static SocketAddress address(String spec) {
+		if (spec.startsWith("unix:"))
+			return UnixDomainSocketAddress.of(spec.substring("unix:".length()));
+
+		int colon = spec.lastIndexOf(':');
+		if (colon < 0)
+			throw new IllegalArgumentException("expected host:port or"
+					+ " unix:path, not " + spec);
+		return new InetSocketAddress(spec.substring(0, colon),
+				Integer.parseInt(spec.substring(colon + 1)));
+	}
+
+	/**
+	 * @return the buffer, or a larger copy with room for n more bytes
+	 */
+	static ByteBuffer ensure(ByteBuffer buf, int n) {
+		if (buf.remaining() >= n)
+			return buf;
+		ByteBuffer res = ByteBuffer.allocate(Math.max(buf.capacity() * 2,
+				buf.position() + n));
+		buf.flip();
+		res.put(buf);
+		return res;
+	}
+
+	/**
+	 * One end of a connection: encodes its frames into out, defining the
+	 * terms they use first, and decodes the frames of the other end,
+	 * mapping its term ids to ids of the local dictionary. Not thread safe.
+	 */
+	static class Codec {
+
+		private final TermDictionary dictionary;
+		ByteBuffer out;
+
+		/*
+		 * Local terms defined to the other end, as a bitset
+		 */
+		private long[] sent;
+
+		/*
+		 * Local id of each term the other end defined, -1 if it did not or
+		 * if the term is not in the local dictionary yet, in which case
+		 * pending holds it
+		 */
+		private int[] remap;
+		private String[] pending;
+
+		private final boolean limited;
+		private int definitions;
+
+		private int frameStart;
+		private int frameEnd;
+
+		/**
+		 * @param limited
+		 *            whether to accept at most MAX_DEFINITIONS TERM frames
+		 *            from the other end, of at most MAX_TERM_LENGTH bytes
+		 */
+		Codec(TermDictionary dictionary, int bufferSize, boolean limited) {
+			this.dictionary = dictionary;
+			this.out = ByteBuffer.allocate(bufferSize);
+			this.sent = new long[16];
+			this.remap = new int[256];
+			this.pending = new String[256];
+			Arrays.fill(remap, -1);
+			this.limited = limited;
+			this.definitions = 0;
+		}
+
+		void define(int[] terms) {
+			for (int i = 0; i < terms.length; i++)
+				define(terms[i]);
+		}
+
+		void define(int term) {
+			int word = term >>> 6;
+			if (word >= sent.length)
+				sent = Arrays.copyOf(sent, Math.max(word + 1, sent.length * 2));
+			if ((sent[word] & (1L << term)) != 0)
+				return;
+			sent[word] |= 1L << term;
+
+			begin(TERM);
+			varint(term);
+			string(dictionary.term(term));
+			end();
+		}
+
+		void begin(int type) {
+			out = ensure(out, 5);
+			frameStart = out.position();
+			out.putInt(0);
+			out.put((byte) type);
+		}
+
+		void end() {
+			out.putInt(frameStart, out.position() - frameStart - 4);
+		}
+
+		void varint(long v) {
+			out = ensure(out, 10);
+			while ((v & ~0x7FL) != 0) {
+				out.put((byte) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			out.put((byte) v);
+		}
+
+		void terms(int[] terms) {
+			varint(terms.length);
+			for (int i = 0; i < terms.length; i++)
+				varint(terms[i]);
+		}
+
+		/**
+		 * Encodes an article, whose terms must have been defined
+		 */
+		void article(Article a) {
+			varint(a.getId());
+			string(a.getName());
+			terms(a.getAuthors());
+			terms(a.getKeywords());
+		}
+
+		/**
+		 * Moves to the next frame of in, between its position and limit,
+		 * handling TERM frames on the way. A defined term is only looked up
+		 * in the local dictionary, see {@link #readTerm(ByteBuffer, boolean)}.
+		 *
+		 * @return the type of the frame, with in at its body, or -1 if in
+		 *         does not hold a whole frame yet, leaving in as it was
+		 */
+		int next(ByteBuffer in) throws IOException {
+			while (true) {
+				int length = frameLength(in);
+				if (length < 0 || in.remaining() < 4 + length)
+					return -1;
+				in.getInt();
+				frameEnd = in.position() + length;
+				int type = in.get() & 0xFF;
+				if (type != TERM)
+					return type;
+
+				if (limited && ++definitions > MAX_DEFINITIONS)
+					throw new IOException("more than " + MAX_DEFINITIONS
+							+ " terms defined");
+				long id = readVarint(in);
+				if (id < 0 || id > MAX_TERM)
+					throw new IOException("term id " + id + " out of range");
+				String term = readString(in,
+						limited ? MAX_TERM_LENGTH : Integer.MAX_VALUE);
+				if (id >= remap.length) {
+					int old = remap.length;
+					remap = Arrays.copyOf(remap, Math.max((int) id + 1,
+							old * 2));
+					pending = Arrays.copyOf(pending, remap.length);
+					Arrays.fill(remap, old, remap.length, -1);
+				}
+				int local = dictionary.lookup(term);
+				remap[(int) id] = local;
+				pending[(int) id] = local < 0 ? term : null;
+				finish(in);
+			}
+		}
+
+		/**
+		 * @return the length of the frame at the position of in, or -1 if
+		 *         not all of it was read
+		 */
+		static int frameLength(ByteBuffer in) throws IOException {
+			if (in.remaining() < 4)
+				return -1;
+			int length = in.getInt(in.position());
+			if (length < 1 || length > MAX_FRAME)
+				throw new IOException("bad frame length " + length);
+			return length;
+		}
+
+		/**
+		 * Skips whatever is left of the current frame
+		 */
+		void finish(ByteBuffer in) {
+			in.position(frameEnd);
+		}
+
+		long readVarint(ByteBuffer in) throws IOException {
+			long v = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (in.position() >= frameEnd || shift > 63)
+					throw new IOException("truncated frame");
+				b = in.get();
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		/**
+		 * @param create
+		 *            whether to add the term to the local dictionary if it
+		 *            is not there yet, as inserts do; finds only look it up
+		 * @return the local id of the term, or -1 if it is not in the local
+		 *         dictionary and create is false
+		 */
+		int readTerm(ByteBuffer in, boolean create) throws IOException {
+			long id = readVarint(in);
+			if (id < 0 || id >= remap.length)
+				throw new IOException("undefined term " + id);
+			int res = remap[(int) id];
+			if (res >= 0)
+				return res;
+
+			String term = pending[(int) id];
+			if (term == null)
+				throw new IOException("undefined term " + id);
+			res = create ? dictionary.intern(term) : dictionary.lookup(term);
+			if (res >= 0) {
+				remap[(int) id] = res;
+				pending[(int) id] = null;
+			}
+			return res;
+		}
+
+		int[] readTerms(ByteBuffer in, boolean create) throws IOException {
+			long n = readVarint(in);
+			if (n < 0 || n > frameEnd - in.position())
+				throw new IOException("truncated frame");
+			int[] res = new int[(int) n];
+			for (int i = 0; i < res.length; i++)
+				res[i] = readTerm(in, create);
+			return res;
+		}
+
+		/**
+		 * Decodes an article, adding its terms to the local dictionary
+		 */
+		Article readArticle(ByteBuffer in) throws IOException {
+			int id = (int) readVarint(in);
+			Article a = new Article(id, readString(in));
+			int[] authors = readTerms(in, true);
+			for (int i = 0; i < authors.length; i++)
+				a.addAuthor(authors[i]);
+			int[] keywords = readTerms(in, true);
+			for (int i = 0; i < keywords.length; i++)
+				a.addKeyword(keywords[i]);
+			return a;
+		}
+
+		String readString(ByteBuffer in) throws IOException {
+			return readString(in, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @param maxLength
+		 *            most bytes accepted
+		 */
+		String readString(ByteBuffer in, int maxLength) throws IOException {
+			long length = readVarint(in);
+			if (length > maxLength)
+				throw new IOException("string longer than " + maxLength
+						+ " bytes");
+			if (length < 0 || length > frameEnd - in.position())
+				throw new IOException("truncated frame");
+			byte[] bytes = new byte[(int) length];
+			in.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		void string(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			varint(bytes.length);
+			out = ensure(out, bytes.length);
+			out.put(bytes);
+		}
+	}
+}
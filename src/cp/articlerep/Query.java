@@ -0,0 +1,94 @@
+package cp.articlerep;
+
+import cp.articlerep.ds.LinkedList;
+import cp.articlerep.ds.List;
+
+/**
+ * Boolean query over the author and keyword indexes of a {@link Repository}.
+ *
+ * An article matches if it has every term added with {@code with*} (AND), at
+ * least one of the terms added with {@code any*} (OR, if there is any) and
+ * none of the terms added with {@code without*} (NOT). A query with no AND
+ * nor OR terms matches nothing.
+ *
+ * For example, "articles by X AND tagged Y NOT Z" is
+ * {@code new Query().withAuthor("X").withKeyword("Y").withoutKeyword("Z")}.
+ */
+public class Query {
+
+	private List<String> allAuthors;
+	private List<String> anyAuthors;
+	private List<String> notAuthors;
+	private List<String> allKeywords;
+	private List<String> anyKeywords;
+	private List<String> notKeywords;
+
+	public Query() {
+		this.allAuthors = new LinkedList<String>();
+		this.anyAuthors = new LinkedList<String>();
+		this.notAuthors = new LinkedList<String>();
+		this.allKeywords = new LinkedList<String>();
+		this.anyKeywords = new LinkedList<String>();
+		this.notKeywords = new LinkedList<String>();
+	}
+
+	public Query withAuthor(String author) {
+		allAuthors.add(author);
+		return this;
+	}
+
+	public Query withKeyword(String keyword) {
+		allKeywords.add(keyword);
+		return this;
+	}
+
+	public Query anyAuthor(String author) {
+		anyAuthors.add(author);
+		return this;
+	}
+
+	public Query anyKeyword(String keyword) {
+		anyKeywords.add(keyword);
+		return this;
+	}
+
+	public Query withoutAuthor(String author) {
+		notAuthors.add(author);
+		return this;
+	}
+
+	public Query withoutKeyword(String keyword) {
+		notKeywords.add(keyword);
+		return this;
+	}
+
+	public List<String> getAllAuthors() {
+		return allAuthors;
+	}
+
+	public List<String> getAnyAuthors() {
+		return anyAuthors;
+	}
+
+	public List<String> getNotAuthors() {
+		return notAuthors;
+	}
+
+	public List<String> getAllKeywords() {
+		return allKeywords;
+	}
+
+	public List<String> getAnyKeywords() {
+		return anyKeywords;
+	}
+
+	public List<String> getNotKeywords() {
+		return notKeywords;
+	}
+
+	public String toString() {
+		return "(and " + allAuthors + " " + allKeywords + ", or " + anyAuthors
+				+ " " + anyKeywords + ", not " + notAuthors + " " + notKeywords
+				+ ")";
+	}
+}
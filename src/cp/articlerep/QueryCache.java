@@ -0,0 +1,708 @@
+package cp.articlerep;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.List;
+
+/**
+ * Results of {@link Repository#findArticleByAuthor(int[])} and
+ * {@link Repository#findArticleByKeyword(int[])}, keyed by the set of terms
+ * of the query, enabled with -Dcp.articlerep.cache.bytes.
+ *
+ * Every author and keyword term has a version, bumped by the writes that
+ * change its postings while they still hold its lock. An entry keeps the
+ * versions its terms had before its result was read, and is only served
+ * while they are unchanged, so a result is never older than the last write
+ * on its terms. Terms share versions by hash, which only makes some entries
+ * go stale early.
+ *
+ * Entries are looked up without locking and evicted by CLOCK once their
+ * memory, estimated from the size of the results, goes over the cap.
+ * Admission follows TinyLFU: a query is only considered on its second miss,
+ * as tracked by a doorkeeper, and once the cache is full only if a
+ * count-min sketch of its later lookups saw it more often than the entry
+ * the clock hand would evict next. Queries that are not repeated thus
+ * neither pay for building an entry nor evict the hot ones. Since entries
+ * also die by writes, a second sketch counts the writes of each term, and
+ * a query is not admitted while one of its terms is written more often
+ * than it is looked up. A result that went stale while it was read is
+ * not cached either. When a period of lookups hardly hits anyway, most
+ * finds then skip the cache until one does (see {@link #bypass()}).
+ *
+ * An entry holds the articles of its terms in increasing order, and where
+ * those of each term end. Every hit gets its own read-only view of them,
+ * arranged in the order of its keys as an uncached find would, so a hit
+ * costs no copy of the result and no caller can change what another gets.
+ */
+public class QueryCache {
+
+	/**
+	 * Memory cap of the cache of each repository, in bytes; 0 (the default)
+	 * disables it
+	 */
+	public static final long BYTES = Long.getLong("cp.articlerep.cache.bytes",
+			0);
+
+	private static final int VERSIONS = 1 << 14;
+
+	/*
+	 * Bytes of the cap per counter in each of the four rows of the sketches,
+	 * and per four bits of the doorkeeper. The structures a lookup touches
+	 * at random stay small, as they compete for the CPU caches with the
+	 * postings the finds read.
+	 */
+	private static final int BYTES_PER_COUNTER = 128;
+	private static final int MIN_COUNTERS = 1 << 10;
+	private static final int MAX_COUNTERS = 1 << 16;
+
+	/*
+	 * The sketches are halved once ten times as many lookups as there are
+	 * entries, but no fewer than SKETCH_PERIOD, were counted. A longer
+	 * period would let every query that is hot enough to be cached
+	 * saturate its counters.
+	 */
+	private static final int SKETCH_PERIOD = 1 << 12;
+
+	/*
+	 * While fewer than one lookup in BYPASS_HITS hit during the last
+	 * period, only one find in BYPASS_SAMPLE goes through the cache, which
+	 * is enough to keep its statistics and notice when hits come back
+	 */
+	private static final int BYPASS_HITS = 32;
+	private static final int BYPASS_SAMPLE = 16;
+
+	/*
+	 * Estimated sizes of an entry, with its key and versions, and of each
+	 * of its terms and result articles
+	 */
+	private static final long ENTRY_BYTES = 128;
+	private static final long TERM_BYTES = 20;
+	private static final long ARTICLE_BYTES = 8;
+
+	private final AtomicLongArray authorVersions;
+	private final AtomicLongArray keywordVersions;
+	private final long budget;
+	private final ConcurrentHashMap<Key, Entry> map;
+	private final ConcurrentLinkedQueue<Entry> clock;
+	private final AtomicLong bytes;
+	/*
+	 * Bits cleared once an eighth of them were set, so that few queries
+	 * share the bit of another
+	 */
+	private final AtomicLongArray doorkeeper;
+	private final int doorkeeperBits;
+	private final AtomicInteger doorkeeperSet;
+	private final Sketch lookups;
+	private final Sketch writes;
+	private final AtomicInteger sketchCount;
+	private volatile boolean bypass;
+	private long periodHits;
+	private long periodMisses;
+	private final ReentrantLock evicting;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder bypassed = new LongAdder();
+
+	public QueryCache(long bytes) {
+		this.authorVersions = new AtomicLongArray(VERSIONS);
+		this.keywordVersions = new AtomicLongArray(VERSIONS);
+		this.budget = bytes;
+		this.map = new ConcurrentHashMap<Key, Entry>();
+		this.clock = new ConcurrentLinkedQueue<Entry>();
+		this.bytes = new AtomicLong();
+		int counters = MIN_COUNTERS;
+		while (counters < bytes / BYTES_PER_COUNTER && counters < MAX_COUNTERS)
+			counters <<= 1;
+		this.doorkeeperBits = counters * 4;
+		this.doorkeeper = new AtomicLongArray(doorkeeperBits / 64);
+		this.doorkeeperSet = new AtomicInteger();
+		this.lookups = new Sketch(counters);
+		this.writes = new Sketch(counters);
+		this.sketchCount = new AtomicInteger();
+		this.bypass = false;
+		this.periodHits = 0;
+		this.periodMisses = 0;
+		this.evicting = new ReentrantLock();
+	}
+
+	/**
+	 * Count-min sketch of four rows of 4-bit counters, saturating at 15.
+	 * The counters of a hash in the four rows are in consecutive words, so
+	 * each update or estimate touches a single block.
+	 */
+	private static class Sketch {
+		private final AtomicLongArray counters;
+		private final int blocks;
+
+		/**
+		 * @param width
+		 *            counters in each row, a power of two of at least 16
+		 */
+		Sketch(int width) {
+			this.counters = new AtomicLongArray(4 * width / 16);
+			this.blocks = width / 16;
+		}
+
+		/**
+		 * @return the bit offset of the counter of the hash in the row
+		 */
+		private int counter(int hash, int row) {
+			int h = hash * 0x9E3779B9;
+			h ^= h >>> 15;
+			int block = (h >>> 16) & (blocks - 1);
+			return ((block * 4 + row) << 6) + (((h >>> (4 * row)) & 15) << 2);
+		}
+
+		void increment(int hash) {
+			for (int row = 0; row < 4; row++) {
+				int c = counter(hash, row);
+				int word = c >>> 6;
+				int shift = c & 63;
+				long w;
+				do {
+					w = counters.get(word);
+					if (((w >>> shift) & 15) == 15)
+						break;
+				} while (!counters.compareAndSet(word, w, w + (1L << shift)));
+			}
+		}
+
+		/**
+		 * @return the estimated count of the hash, the smallest of its
+		 *         counters
+		 */
+		int frequency(int hash) {
+			int res = 15;
+			for (int row = 0; row < 4; row++) {
+				int c = counter(hash, row);
+				res = Math.min(res,
+						(int) (counters.get(c >>> 6) >>> (c & 63)) & 15);
+			}
+			return res;
+		}
+
+		/**
+		 * Halves every counter
+		 */
+		void age() {
+			for (int i = 0; i < counters.length(); i++) {
+				long w;
+				do {
+					w = counters.get(i);
+				} while (!counters.compareAndSet(i, w,
+						(w >>> 1) & 0x7777777777777777L));
+			}
+		}
+	}
+
+	private static class Key {
+		final boolean authors;
+		final int[] terms;
+		final int hash;
+
+		Key(boolean authors, int[] terms) {
+			this.authors = authors;
+			this.terms = terms;
+			this.hash = hash(authors, terms);
+		}
+
+		static int hash(boolean authors, int[] terms) {
+			return Arrays.hashCode(terms) * 31 + (authors ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.hash == hash && k.authors == authors
+					&& Arrays.equals(k.terms, terms);
+		}
+	}
+
+	private static class Entry {
+		final Key key;
+		final Article[] articles;
+		final int[] ends;
+		final long[] versions;
+		final long bytes;
+
+		/*
+		 * Set by the hits since the clock hand last passed the entry
+		 */
+		volatile boolean referenced;
+
+		/**
+		 * @param ends
+		 *            number of articles of the result up to the end of
+		 *            those of each term
+		 */
+		Entry(Key key, List<Article> result, int[] ends, long[] versions) {
+			this.key = key;
+			this.articles = new Article[ends.length == 0 ? 0
+					: ends[ends.length - 1]];
+			Iterator<Article> it = result.iterator();
+			for (int i = 0; i < articles.length; i++)
+				articles[i] = it.next();
+			this.ends = ends;
+			this.versions = versions;
+			this.bytes = ENTRY_BYTES + TERM_BYTES * versions.length
+					+ ARTICLE_BYTES * articles.length;
+			this.referenced = false;
+		}
+
+		/**
+		 * @return the result of the keys, the terms of the entry in any
+		 *         order and with repetitions
+		 */
+		List<Article> arrange(int[] keys) {
+			if (Arrays.equals(keys, key.terms))
+				return new View(articles, new int[] { 0 },
+						new int[] { articles.length });
+
+			int[] from = new int[keys.length];
+			int[] to = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				int t = Arrays.binarySearch(key.terms, keys[i]);
+				from[i] = t == 0 ? 0 : ends[t - 1];
+				to[i] = ends[t];
+			}
+			return new View(articles, from, to);
+		}
+	}
+
+	/**
+	 * Read-only list of ranges of the articles of an entry
+	 */
+	private static class View implements List<Article> {
+		private final Article[] articles;
+		private final int[] from;
+		private final int[] to;
+		private final int size;
+
+		View(Article[] articles, int[] from, int[] to) {
+			this.articles = articles;
+			this.from = from;
+			this.to = to;
+			int n = 0;
+			for (int i = 0; i < from.length; i++)
+				n += to[i] - from[i];
+			this.size = n;
+		}
+
+		public void add(Article value) {
+			throw new UnsupportedOperationException("cached result");
+		}
+
+		public void add(int pos, Article value) {
+			throw new UnsupportedOperationException("cached result");
+		}
+
+		public void addLast(Article value) {
+			throw new UnsupportedOperationException("cached result");
+		}
+
+		public Article remove(int pos) {
+			throw new UnsupportedOperationException("cached result");
+		}
+
+		public Article get(int pos) {
+			if (pos < 0)
+				return null;
+			for (int i = 0; i < from.length; i++) {
+				if (pos < to[i] - from[i])
+					return articles[from[i] + pos];
+				pos -= to[i] - from[i];
+			}
+			return null;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public Iterator<Article> iterator() {
+			return new Iterator<Article>() {
+
+				private int range = 0;
+				private int pos = from.length == 0 ? 0 : from[0];
+
+				public boolean hasNext() {
+					while (range < from.length && pos >= to[range]) {
+						range++;
+						if (range < from.length)
+							pos = from[range];
+					}
+					return range < from.length;
+				}
+
+				public Article next() {
+					hasNext();
+					return articles[pos++];
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the terms in increasing order without repetitions, which is
+	 *         the terms array itself if they already are
+	 */
+	public static int[] canonical(int[] terms) {
+		int i = 1;
+		while (i < terms.length && terms[i - 1] < terms[i])
+			i++;
+		if (i >= terms.length)
+			return terms;
+
+		int[] res = terms.clone();
+		Arrays.sort(res);
+		int n = 0;
+		for (i = 0; i < res.length; i++) {
+			if (n == 0 || res[n - 1] != res[i])
+				res[n++] = res[i];
+		}
+		return n == res.length ? res : Arrays.copyOf(res, n);
+	}
+
+	/**
+	 * Evicts by CLOCK, the usual approximation of LRU: the entries wait in
+	 * a queue in insertion order, and the hand gives the ones that were hit
+	 * since it last passed a second chance at the tail, removing the first
+	 * one that was not. Hits thus only set a flag, and never lock.
+	 * 
+	 * Entries replaced or found stale keep their memory until the hand
+	 * reaches them and drops them, as the queue still holds their results.
+	 */
+	private void evict() {
+		if (!evicting.tryLock())
+			return;
+		try {
+			while (bytes.get() > budget) {
+				Entry e = victim();
+				if (e == null)
+					break;
+				clock.poll();
+				if (map.remove(e.key, e))
+					evictions.increment();
+				bytes.addAndGet(-e.bytes);
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	/**
+	 * Moves the hand up to the entry it would evict next, leaving it at
+	 * the head of the queue. Gives up after a whole turn, in case hits
+	 * keep setting the flags again. Called holding the evicting lock.
+	 * 
+	 * @return that entry, or null if the queue is empty
+	 */
+	private Entry victim() {
+		int turn = map.size();
+		for (int n = 0;; n++) {
+			Entry e = clock.peek();
+			if (e == null || n > turn)
+				return e;
+			if (map.get(e.key) != e) {
+				clock.poll();
+				bytes.addAndGet(-e.bytes);
+			} else if (e.referenced) {
+				e.referenced = false;
+				clock.poll();
+				clock.add(e);
+			} else {
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * Sets the bit of the query in the doorkeeper
+	 * 
+	 * @return whether it was already set, by an earlier miss of the query
+	 *         or of one with the same bit
+	 */
+	private boolean admit(int hash) {
+		int bit = (hash ^ (hash >>> 16)) & (doorkeeperBits - 1);
+		int word = bit >>> 6;
+		long mask = 1L << bit;
+		long w;
+		do {
+			w = doorkeeper.get(word);
+			if ((w & mask) != 0)
+				return true;
+		} while (!doorkeeper.compareAndSet(word, w, w | mask));
+
+		if (doorkeeperSet.incrementAndGet() >= doorkeeperBits / 8) {
+			doorkeeperSet.set(0);
+			for (int i = 0; i < doorkeeper.length(); i++)
+				doorkeeper.set(i, 0);
+		}
+		return false;
+	}
+
+	/**
+	 * Counts a lookup of the query, and ends the period once enough lookups
+	 * were counted. Only queries past the doorkeeper are counted, so the
+	 * ones seen once cost a single bit.
+	 */
+	private void record(int hash) {
+		lookups.increment(hash);
+		if (sketchCount.incrementAndGet() >= 10 * Math.max(map.size(),
+				SKETCH_PERIOD / 10)) {
+			sketchCount.set(0);
+			endPeriod();
+		}
+	}
+
+	/**
+	 * Ages both sketches, and bypasses the cache until the next period if
+	 * it hardly hit in this one
+	 */
+	private synchronized void endPeriod() {
+		lookups.age();
+		writes.age();
+
+		long h = hits.sum();
+		long m = misses.sum();
+		long periodLookups = h - periodHits + m - periodMisses;
+		bypass = (h - periodHits) * BYPASS_HITS < periodLookups;
+		periodHits = h;
+		periodMisses = m;
+	}
+
+	/**
+	 * @return whether the find should not go through the cache, which it
+	 *         only does while the cache hardly hits, for most finds
+	 */
+	public boolean bypass() {
+		if (!bypass || ThreadLocalRandom.current().nextInt(BYPASS_SAMPLE) == 0)
+			return false;
+		bypassed.increment();
+		return true;
+	}
+
+	/**
+	 * @return the hash of a term in the sketch of writes
+	 */
+	private static int termHash(boolean authors, int term) {
+		return term * 2 + (authors ? 1 : 0);
+	}
+
+	/**
+	 * @return whether some term of the query was written more often than
+	 *         the query was looked up, so that its entry would likely go
+	 *         stale before it is hit
+	 */
+	private boolean writtenMore(boolean authors, int[] terms, int frequency) {
+		for (int i = 0; i < terms.length; i++) {
+			if (writes.frequency(termHash(authors, terms[i])) > frequency)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Once the cache is full, compares the query with the entry the clock
+	 * hand would evict next, which an admitted result would replace. The
+	 * hand has to be moved there first: the entry at the head of the queue
+	 * may just be waiting for its second chance, and while it is hot every
+	 * query would lose against it.
+	 * 
+	 * @return whether the query was looked up more often than that entry
+	 */
+	private boolean beatsVictim(int hash, int frequency) {
+		/*
+		 * Full once another entry of the average size would not fit
+		 */
+		long b = bytes.get();
+		int n = map.size();
+		if (n == 0 || b + b / n <= budget)
+			return true;
+
+		if (!evicting.tryLock())
+			return false;
+		try {
+			Entry victim = victim();
+			return victim == null
+					|| frequency > lookups.frequency(victim.key.hash);
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	private AtomicLongArray versions(boolean authors) {
+		return authors ? authorVersions : keywordVersions;
+	}
+
+	/**
+	 * @param terms
+	 *            the {@link #canonical(int[])} terms of the keys
+	 * @return the cached result of the keys, or null if there is none or it
+	 *         is stale
+	 */
+	public List<Article> get(boolean authors, int[] keys, int[] terms) {
+		Key key = new Key(authors, terms);
+		Entry e = map.get(key);
+		if (e == null) {
+			misses.increment();
+			return null;
+		}
+
+		AtomicLongArray v = versions(authors);
+		for (int i = 0; i < terms.length; i++) {
+			if (v.get(terms[i] & (VERSIONS - 1)) != e.versions[i]) {
+				map.remove(e.key, e);
+				stale.increment();
+				misses.increment();
+				return null;
+			}
+		}
+		if (!e.referenced)
+			e.referenced = true;
+		record(key.hash);
+		hits.increment();
+		return e.arrange(keys);
+	}
+
+	/**
+	 * @return the current versions of the canonical terms, to read before
+	 *         the result that is then put in the cache, or null if the query
+	 *         is not admitted: on its first miss, if a term is written more
+	 *         often than it is looked up, or if it is not looked up more
+	 *         often than the entry it would evict
+	 */
+	public long[] versions(boolean authors, int[] terms) {
+		int hash = Key.hash(authors, terms);
+		if (!admit(hash))
+			return null;
+		record(hash);
+		int frequency = lookups.frequency(hash);
+		if (writtenMore(authors, terms, frequency)
+				|| !beatsVictim(hash, frequency)) {
+			rejections.increment();
+			return null;
+		}
+
+		AtomicLongArray v = versions(authors);
+		long[] res = new long[terms.length];
+		for (int i = 0; i < terms.length; i++)
+			res[i] = v.get(terms[i] & (VERSIONS - 1));
+		return res;
+	}
+
+	/**
+	 * Caches the result of the canonical terms, read after taking their
+	 * versions, unless they changed since
+	 * 
+	 * @param ends
+	 *            number of articles of the result up to the end of those of
+	 *            each term
+	 * @return the result arranged for the keys
+	 */
+	public List<Article> put(boolean authors, int[] keys, int[] terms,
+			long[] versions, List<Article> result, int[] ends) {
+		Key key = new Key(authors, terms == keys ? terms.clone() : terms);
+		Entry e = new Entry(key, result, ends, versions);
+		if (e.bytes <= budget && current(authors, terms, versions)) {
+			map.put(key, e);
+			bytes.addAndGet(e.bytes);
+			clock.add(e);
+			if (bytes.get() > budget)
+				evict();
+		}
+
+		/*
+		 * The entry only keeps the articles, the result read for the
+		 * canonical terms stays the caller's own
+		 */
+		return terms == keys ? result : e.arrange(keys);
+	}
+
+	private boolean current(boolean authors, int[] terms, long[] versions) {
+		AtomicLongArray v = versions(authors);
+		for (int i = 0; i < terms.length; i++) {
+			if (v.get(terms[i] & (VERSIONS - 1)) != versions[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Bumps the versions of the terms, by a write that changed their
+	 * postings and still holds their locks
+	 */
+	public void invalidate(boolean authors, int[] terms) {
+		AtomicLongArray v = versions(authors);
+		for (int i = 0; i < terms.length; i++) {
+			v.incrementAndGet(terms[i] & (VERSIONS - 1));
+			writes.increment(termHash(authors, terms[i]));
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the lookups that found no entry or a stale one
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getStale() {
+		return stale.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the repeated misses not admitted because the entry they would
+	 *         evict was looked up more often
+	 */
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	/**
+	 * @return the finds that skipped the cache while it hardly hit
+	 */
+	public long getBypassed() {
+		return bypassed.sum();
+	}
+
+	public int getEntries() {
+		return map.size();
+	}
+
+	/**
+	 * @return the estimated memory of the entries, counting the stale ones
+	 *         not yet dropped
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+}
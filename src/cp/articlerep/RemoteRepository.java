@@ -0,0 +1,304 @@
+package cp.articlerep;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.LinkedList;
+import cp.articlerep.ds.List;
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Client of a {@link RepositoryServer}, which {@link Worker} can run its
+ * workload on like on a local repository, to measure the end-to-end
+ * throughput and latency of the server. It only offers the operations of
+ * the protocol, those of an {@link ArticleStore}.
+ *
+ * Each thread gets a blocking connection of its own on its first request,
+ * and waits for the response of each single operation. Batches are
+ * pipelined: up to PIPELINE requests are written at once before reading
+ * their responses. Term ids are those of the client's own dictionary, as
+ * the protocol maps them on both ends.
+ */
+public class RemoteRepository implements ArticleStore {
+
+	/**
+	 * Address of the server MainRep runs the workload on, as host:port or
+	 * unix:path; a local repository if unset
+	 */
+	public static final String ADDRESS = System
+			.getProperty("cp.articlerep.remote");
+
+	/**
+	 * Requests of a batch written before reading their responses
+	 */
+	public static final int PIPELINE = Integer.getInteger(
+			"cp.articlerep.remote.pipeline", 64);
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final SocketAddress address;
+	private final TermDictionary dictionary;
+
+	private final ThreadLocal<Connection> connection = new ThreadLocal<Connection>();
+	private final List<Connection> connections = new LinkedList<Connection>();
+
+	public RemoteRepository(String address, int nkeys) {
+		this.address = Protocol.address(address);
+		this.dictionary = new TermDictionary(nkeys);
+	}
+
+	public TermDictionary getDictionary() {
+		return dictionary;
+	}
+
+	private class Connection {
+
+		private final SocketChannel ch;
+		private final Protocol.Codec codec;
+		private ByteBuffer in;
+
+		Connection() throws IOException {
+			this.ch = SocketChannel.open(address);
+			if (!(address instanceof UnixDomainSocketAddress))
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			this.codec = new Protocol.Codec(dictionary, BUFFER_SIZE, false);
+			this.in = ByteBuffer.allocate(BUFFER_SIZE);
+			this.in.flip();
+		}
+
+		void send() throws IOException {
+			ByteBuffer out = codec.out;
+			out.flip();
+			while (out.hasRemaining())
+				ch.write(out);
+			out.clear();
+		}
+
+		/**
+		 * Reads the next response, leaving in at its body
+		 *
+		 * @return its type
+		 */
+		int receive() throws IOException {
+			int type;
+			while ((type = codec.next(in)) < 0) {
+				int length = Protocol.Codec.frameLength(in);
+				in.compact();
+				if (length >= 0)
+					in = Protocol.ensure(in, 4 + length - in.position());
+				if (ch.read(in) < 0)
+					throw new IOException("closed by the server");
+				in.flip();
+			}
+
+			if (type == Protocol.ERROR)
+				throw new IOException("server error: "
+						+ codec.readString(in));
+			return type;
+		}
+
+		long result() throws IOException {
+			if (receive() != Protocol.RESULT)
+				throw new IOException("unexpected response");
+			long res = codec.readVarint(in);
+			codec.finish(in);
+			return res;
+		}
+
+		List<Article> articles() throws IOException {
+			if (receive() != Protocol.ARTICLES)
+				throw new IOException("unexpected response");
+			List<Article> res = new LinkedList<Article>();
+			long n = codec.readVarint(in);
+			for (long i = 0; i < n; i++)
+				res.addLast(codec.readArticle(in));
+			codec.finish(in);
+			return res;
+		}
+
+		void insert(Article a) {
+			codec.define(a.getAuthors());
+			codec.define(a.getKeywords());
+			codec.begin(1 + Worker.OP_INSERT);
+			codec.article(a);
+			codec.end();
+		}
+
+		void remove(int id) {
+			codec.begin(1 + Worker.OP_REMOVE);
+			codec.varint(id);
+			codec.end();
+		}
+
+		void find(int type, int[] terms) {
+			codec.define(terms);
+			codec.begin(1 + type);
+			codec.terms(terms);
+			codec.end();
+		}
+
+		void close() {
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return the connection of the calling thread, opened on its first
+	 *         request
+	 */
+	private Connection connection() {
+		Connection c = connection.get();
+		if (c == null) {
+			try {
+				c = new Connection();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			connection.set(c);
+			synchronized (connections) {
+				connections.add(c);
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Closes the connections of every thread
+	 */
+	public void close() {
+		synchronized (connections) {
+			Iterator<Connection> it = connections.iterator();
+			while (it.hasNext())
+				it.next().close();
+			while (connections.size() > 0)
+				connections.remove(0);
+		}
+	}
+
+	@Override
+	public boolean insertArticle(Article a) {
+		Connection c = connection();
+		try {
+			c.insert(a);
+			c.send();
+			return c.result() != 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean removeArticle(int id) {
+		Connection c = connection();
+		try {
+			c.remove(id);
+			c.send();
+			return c.result() != 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Pipelines the inserts, PIPELINE at a time
+	 */
+	@Override
+	public int insertArticles(List<Article> articles) {
+		Connection c = connection();
+		int res = 0;
+		try {
+			Iterator<Article> it = articles.iterator();
+			while (it.hasNext()) {
+				int n = 0;
+				while (it.hasNext() && n < PIPELINE) {
+					c.insert(it.next());
+					n++;
+				}
+				c.send();
+				for (int i = 0; i < n; i++)
+					res += (int) c.result();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Pipelines the removes, PIPELINE at a time
+	 */
+	@Override
+	public int removeArticles(int[] ids) {
+		Connection c = connection();
+		int res = 0;
+		try {
+			for (int from = 0; from < ids.length; from += PIPELINE) {
+				int to = Math.min(from + PIPELINE, ids.length);
+				for (int i = from; i < to; i++)
+					c.remove(ids[i]);
+				c.send();
+				for (int i = from; i < to; i++)
+					res += (int) c.result();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return res;
+	}
+
+	@Override
+	public List<Article> findArticleByAuthor(List<String> authors) {
+		return findArticleByAuthor(dictionary.toIds(authors, true));
+	}
+
+	@Override
+	public List<Article> findArticleByKeyword(List<String> keywords) {
+		return findArticleByKeyword(dictionary.toIds(keywords, true));
+	}
+
+	@Override
+	public List<Article> findArticleByAuthor(int[] authors) {
+		return find(Worker.OP_FIND_AUTHOR, authors);
+	}
+
+	@Override
+	public List<Article> findArticleByKeyword(int[] keywords) {
+		return find(Worker.OP_FIND_KEYWORD, keywords);
+	}
+
+	private List<Article> find(int type, int[] terms) {
+		Connection c = connection();
+		try {
+			c.find(type, terms);
+			c.send();
+			return c.articles();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Validates the server's repository
+	 */
+	@Override
+	public boolean validate() {
+		Connection c = connection();
+		try {
+			c.codec.begin(Protocol.VALIDATE);
+			c.codec.end();
+			c.send();
+			return c.result() != 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -1,27 +1,143 @@
 package cp.articlerep;
 
-import java.util.HashSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cp.articlerep.ds.Iterator;
 import cp.articlerep.ds.LinkedList;
 import cp.articlerep.ds.List;
-import cp.articlerep.ds.Map;
+import cp.articlerep.ds.PostingList;
+import cp.articlerep.ds.SortedPostings;
 import cp.articlerep.ds.HashTable;
+import cp.articlerep.ds.IdBitmap;
+import cp.articlerep.ds.IntHashTable;
+import cp.articlerep.ds.IntMap;
+import cp.articlerep.ds.LockStats;
+import cp.articlerep.ds.TermDictionary;
+import cp.articlerep.ds.VersionedLock;
 
 /**
  * @author Ricardo Dias
  */
-public class Repository {
+public class Repository implements ArticleStore {
 
-	private Map<String, List<Article>> byAuthor;
-	private Map<String, List<Article>> byKeyword;
-	private Map<Integer, Article> byArticleId;
+	private IntMap<PostingList<Article>> byAuthor;
+	private IntMap<PostingList<Article>> byKeyword;
+	private IntMap<Article> byArticleId;
+
+	private TermDictionary dictionary;
+
+	private int stripes;
+
+	/*
+	 * Every write takes the next version while holding all of its locks, and
+	 * stamps it on the articles it inserts or removes
+	 */
+	private final AtomicLong clock;
+
+	/*
+	 * Versions of the open snapshots, with how many are open at each
+	 */
+	private final TreeMap<Long, Integer> snapshots;
+	private volatile int openSnapshots;
+
+	/*
+	 * Articles removed while some snapshot was open, which it may still see
+	 */
+	private final RetiredLog retired;
+
+	/*
+	 * Log of the mutations, null unless attachLog was called
+	 */
+	private volatile WriteAheadLog wal;
+
+	/*
+	 * Checkpoint the repository was opened from, whose articles and postings
+	 * are moved into the maps the first time they are used; null once all
+	 * of them were
+	 */
+	private volatile Checkpoint base;
+
+	/*
+	 * Results of the finds by authors and by keywords, null unless
+	 * QueryCache.BYTES is set and the repository holds its own articles
+	 */
+	private final QueryCache cache;
+
+	/**
+	 * Number of lock stripes of each map, 0 to use
+	 * {@link HashTable#DEFAULT_STRIPES}
+	 */
+	public static final int STRIPES = Integer.getInteger(
+			"cp.articlerep.stripes", 0);
 
 	public Repository(int nkeys) {
-		this.byAuthor = new HashTable<String, List<Article>>(nkeys * 2);
-		this.byKeyword = new HashTable<String, List<Article>>(nkeys * 2);
-		this.byArticleId = new HashTable<Integer, Article>(nkeys * 2);
+		this(nkeys, STRIPES > 0 ? STRIPES : HashTable.DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param nkeys
+	 *            - numero esperado de chaves, usado para o tamanho inicial
+	 *            das tabelas
+	 * @param stripes
+	 *            - numero de locks de cada tabela, independente do seu
+	 *            tamanho
+	 */
+	public Repository(int nkeys, int stripes) {
+		this(nkeys, stripes, new TermDictionary(nkeys), "");
+	}
+
+	/**
+	 * @param dictionary
+	 *            - dicionario de termos, que pode ser partilhado com outros
+	 *            repositorios
+	 * @param name
+	 *            - prefixo dos nomes dos mapas nas LockStats, ou null para
+	 *            nao os registar nem ter cache, se nao guarda os artigos
+	 */
+	protected Repository(int nkeys, int stripes, TermDictionary dictionary,
+			String name) {
+		this.byAuthor = new IntHashTable<PostingList<Article>>(nkeys * 2,
+				stripes);
+		this.byKeyword = new IntHashTable<PostingList<Article>>(nkeys * 2,
+				stripes);
+		this.byArticleId = new IntHashTable<Article>(nkeys * 2, stripes);
+		this.dictionary = dictionary;
+		this.stripes = stripes;
+		this.clock = new AtomicLong();
+		this.snapshots = new TreeMap<Long, Integer>();
+		this.openSnapshots = 0;
+		this.retired = new RetiredLog();
+		this.cache = QueryCache.BYTES > 0 && name != null ? new QueryCache(
+				QueryCache.BYTES) : null;
+
+		if (name != null) {
+			LockStats.register(name + "byAuthor", byAuthor);
+			LockStats.register(name + "byKeyword", byKeyword);
+			LockStats.register(name + "byArticleId", byArticleId);
+		}
+	}
+
+	/**
+	 * @return the dictionary of the author and keyword term ids
+	 */
+	public TermDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public int getStripes() {
+		return stripes;
+	}
+
+	/**
+	 * @return the cache of the find results, or null if it is disabled
+	 */
+	public QueryCache getCache() {
+		return cache;
 	}
 
 	/**
@@ -34,10 +150,10 @@ public class Repository {
 	 *            readLock, writeLock = true, readLock = false
 	 * 
 	 */
-	private void lockList(List<ReentrantReadWriteLock> locks, boolean write) {
-		Iterator<ReentrantReadWriteLock> locksI = locks.iterator();
+	private void lockList(List<VersionedLock> locks, boolean write) {
+		Iterator<VersionedLock> locksI = locks.iterator();
 		while (locksI.hasNext()) {
-			ReentrantReadWriteLock lock = locksI.next();
+			VersionedLock lock = locksI.next();
 			if (write)
 				lock.writeLock().lock();
 			else {
@@ -57,10 +173,10 @@ public class Repository {
 	 *            readLock, writeLock = true, readLock = false
 	 * 
 	 */
-	private void unlockList(List<ReentrantReadWriteLock> locks, boolean write) {
-		Iterator<ReentrantReadWriteLock> locksI = locks.iterator();
+	private void unlockList(List<VersionedLock> locks, boolean write) {
+		Iterator<VersionedLock> locksI = locks.iterator();
 		while (locksI.hasNext()) {
-			ReentrantReadWriteLock lock = locksI.next();
+			VersionedLock lock = locksI.next();
 
 			if (write)
 				lock.writeLock().unlock();
@@ -72,8 +188,11 @@ public class Repository {
 	}
 
 	public boolean insertArticle(Article a) {
+		hydrateArticle(a.getId());
+		hydrateTerms(byAuthor, a.getAuthors());
+		hydrateTerms(byKeyword, a.getKeywords());
 
-		ReentrantReadWriteLock aLock = byArticleId.getLock(a.getId());
+		VersionedLock aLock = byArticleId.getLock(a.getId());
 
 		aLock.writeLock().lock();
 
@@ -85,58 +204,67 @@ public class Repository {
 		/*
 		 * Get de todos os locks que nos interessam
 		 */
-		List<ReentrantReadWriteLock> authorLocks = byAuthor.getLocks(a
+		List<VersionedLock> authorLocks = byAuthor.getLocks(a
 				.getAuthors());
-		List<ReentrantReadWriteLock> keywordLocks = byKeyword.getLocks(a
+		List<VersionedLock> keywordLocks = byKeyword.getLocks(a
 				.getKeywords());
 
 		lockList(authorLocks, true);
 		lockList(keywordLocks, true);
 
-		Iterator<String> authors = a.getAuthors().iterator();
-		while (authors.hasNext()) {
-			String name = authors.next();
+		int[] authors = a.getAuthors();
+		for (int i = 0; i < authors.length; i++) {
+			int name = authors[i];
 
-			List<Article> ll = byAuthor.get(name);
+			PostingList<Article> ll = byAuthor.get(name);
 
 			if (ll == null) {
-				ll = new LinkedList<Article>();
+				ll = new PostingList<Article>();
 				byAuthor.put(name, ll);
 			}
-			ll.add(a);
+			ll.add(a.getId(), a);
 		}
 
-		Iterator<String> keywords = a.getKeywords().iterator();
-		while (keywords.hasNext()) {
-			String keyword = keywords.next();
+		int[] keywords = a.getKeywords();
+		for (int i = 0; i < keywords.length; i++) {
+			int keyword = keywords[i];
 
-			List<Article> ll = byKeyword.get(keyword);
+			PostingList<Article> ll = byKeyword.get(keyword);
 			if (ll == null) {
-				ll = new LinkedList<Article>();
+				ll = new PostingList<Article>();
 				byKeyword.put(keyword, ll);
 			}
-			ll.add(a);
+			ll.add(a.getId(), a);
 		}
 
+		a.setCreatedVersion(clock.incrementAndGet());
 		byArticleId.put(a.getId(), a);
+		long lsn = logInsert(a);
+		invalidate(a.getAuthors(), a.getKeywords());
 
 		unlockList(authorLocks, true);
 		unlockList(keywordLocks, true);
 
 		aLock.writeLock().unlock();
 
+		commit(lsn);
 		return true;
 	}
 
-	public void removeArticle(int id) {
-		ReentrantReadWriteLock aLock = byArticleId.getLock(id);
+	/**
+	 * @return whether there was an article with the id
+	 */
+	public boolean removeArticle(int id) {
+		hydrateArticle(id);
+
+		VersionedLock aLock = byArticleId.getLock(id);
 
 		aLock.writeLock().lock();
 		Article a = byArticleId.get(id);
 
 		if (a == null) {
 			aLock.writeLock().unlock();
-			return;
+			return false;
 		}
 
 		byArticleId.remove(id);
@@ -144,62 +272,45 @@ public class Repository {
 		/*
 		 * Get de todos os locks que nos interessam
 		 */
-		List<ReentrantReadWriteLock> authorLocks = byAuthor.getLocks(a
+		List<VersionedLock> authorLocks = byAuthor.getLocks(a
 				.getAuthors());
-		List<ReentrantReadWriteLock> keywordLocks = byKeyword.getLocks(a
+		List<VersionedLock> keywordLocks = byKeyword.getLocks(a
 				.getKeywords());
 
 		lockList(authorLocks, true);
 		lockList(keywordLocks, true);
 
-		Iterator<String> keywords = a.getKeywords().iterator();
-		while (keywords.hasNext()) {
-			String keyword = keywords.next();
+		retire(a, clock.incrementAndGet());
+		long lsn = logRemove(id);
 
-			List<Article> ll = byKeyword.get(keyword);
+		int[] keywords = a.getKeywords();
+		for (int i = 0; i < keywords.length; i++) {
+			int keyword = keywords[i];
 
-			if (ll != null) {
-				int pos = 0;
-				Iterator<Article> it = ll.iterator();
-				while (it.hasNext()) {
-					Article toRem = it.next();
-					if (toRem == a) {
-						break;
-					}
-					pos++;
-				}
-				ll.remove(pos);
+			PostingList<Article> ll = byKeyword.get(keyword);
 
-				it = ll.iterator();
-				if (!it.hasNext()) { // checks if the list is empty
+			if (ll != null) {
+				ll.remove(id);
+				if (ll.isEmpty()) {
 					byKeyword.remove(keyword);
 				}
 			}
 		}
 
-		Iterator<String> authors = a.getAuthors().iterator();
-		while (authors.hasNext()) {
-			String name = authors.next();
+		int[] authors = a.getAuthors();
+		for (int i = 0; i < authors.length; i++) {
+			int name = authors[i];
 
-			List<Article> ll = byAuthor.get(name);
+			PostingList<Article> ll = byAuthor.get(name);
 
 			if (ll != null) {
-				int pos = 0;
-				Iterator<Article> it = ll.iterator();
-				while (it.hasNext()) {
-					Article toRem = it.next();
-					if (toRem == a) {
-						break;
-					}
-					pos++;
-				}
-				ll.remove(pos);
-				it = ll.iterator();
-				if (!it.hasNext()) { // checks if the list is empty
+				ll.remove(id);
+				if (ll.isEmpty()) {
 					byAuthor.remove(name);
 				}
 			}
 		}
+		invalidate(authors, keywords);
 		unlockList(authorLocks, true);
 		unlockList(keywordLocks, true);
 
@@ -208,124 +319,1460 @@ public class Repository {
 		 * erradas
 		 */
 		aLock.writeLock().unlock();
+
+		commit(lsn);
+		return true;
 	}
 
-	public List<Article> findArticleByAuthor(List<String> authors) {
+	/**
+	 * Recovers the repository from a write-ahead log, replaying its
+	 * records, and then logs every later insert and remove to it. Must be
+	 * called before the repository is shared with other threads.
+	 * 
+	 * @return the number of records replayed
+	 */
+	public long attachLog(WriteAheadLog log) throws IOException {
+		long count = log.replay(new WriteAheadLog.Handler() {
 
-		List<ReentrantReadWriteLock> authorLocks = byAuthor.getLocks(authors);
-		lockList(authorLocks, false);
+			/*
+			 * Term id of the log to term id of this repository
+			 */
+			private int[] remap = new int[1024];
 
-		List<Article> res = new LinkedList<Article>();
+			public void term(int id, String term) {
+				if (id >= remap.length)
+					remap = Arrays.copyOf(remap, Math.max(id + 1,
+							remap.length * 2));
+				remap[id] = dictionary.intern(term);
+			}
 
-		Iterator<String> it = authors.iterator();
-		while (it.hasNext()) {
-			String name = it.next();
+			public void insert(int id, String name, int[] authors,
+					int[] keywords) {
+				Article a = new Article(id, name);
+				for (int i = 0; i < authors.length; i++)
+					a.addAuthor(remap[authors[i]]);
+				for (int i = 0; i < keywords.length; i++)
+					a.addKeyword(remap[keywords[i]]);
+				insertArticle(a);
+			}
 
-			List<Article> as = byAuthor.get(name);
-			if (as != null) {
-				Iterator<Article> ait = as.iterator();
-				while (ait.hasNext()) {
-					Article a = ait.next();
-					res.add(a);
-				}
+			public void remove(int id) {
+				removeArticle(id);
 			}
+		});
+
+		this.wal = log;
+		log.start();
+		return count;
+	}
+
+	/**
+	 * @return the log offset to commit, or 0 if there is no log
+	 */
+	private long logInsert(Article a) {
+		WriteAheadLog log = wal;
+		return log == null ? 0 : log.logInsert(a, dictionary);
+	}
+
+	private long logRemove(int id) {
+		WriteAheadLog log = wal;
+		return log == null ? 0 : log.logRemove(id);
+	}
+
+	/**
+	 * Waits for the log to be durable up to the offset, as its mode requires;
+	 * called after releasing the locks, so the wait is shared by the writers
+	 * of a group commit
+	 */
+	private void commit(long lsn) {
+		if (lsn > 0)
+			wal.commit(lsn);
+	}
+
+	/**
+	 * Opens a repository from a checkpoint written by
+	 * {@link #writeCheckpoint(String)}. Only its terms are read up front:
+	 * queries are served right away, each article and posting list being
+	 * moved from the mapped file into the maps the first time an operation
+	 * needs it.
+	 * 
+	 * @param nkeys
+	 *            - numero esperado de chaves, alem das do checkpoint
+	 */
+	public static Repository openCheckpoint(String path, int nkeys)
+			throws IOException {
+		Checkpoint c = Checkpoint.open(path);
+		Repository r = new Repository(nkeys + c.getArticleCount());
+		for (int i = 0; i < c.getTermCount(); i++)
+			r.dictionary.intern(c.term(i));
+		r.clock.set(Checkpoint.VERSION);
+		r.base = c.getArticleCount() > 0 ? c : null;
+		return r;
+	}
+
+	/**
+	 * Writes a checkpoint of a snapshot of the repository, which may keep
+	 * running meanwhile. The file is replaced atomically.
+	 * 
+	 * @return the number of articles written
+	 */
+	public int writeCheckpoint(String path) throws IOException {
+		Snapshot snapshot = openSnapshot();
+		try {
+			List<Article> articles = snapshot.getArticles();
+			Checkpoint.write(path, articles, dictionary, dictionary.size());
+			return articles.size();
+		} finally {
+			snapshot.close();
 		}
-		unlockList(authorLocks, false);
-		return res;
 	}
 
-	public List<Article> findArticleByKeyword(List<String> keywords) {
+	/**
+	 * Moves whatever is left in the checkpoint the repository was opened
+	 * from into the maps, after which operations no longer look at it
+	 */
+	public void hydrate() {
+		Checkpoint b = base;
+		if (b == null)
+			return;
+		for (int i = 0; i < b.getArticleCount(); i++)
+			hydrateArticle(b.idAt(i));
+	}
 
-		List<ReentrantReadWriteLock> keywordLocks = byAuthor.getLocks(keywords);
-		lockList(keywordLocks, false);
+	/**
+	 * Moves an article of the checkpoint into byArticleId, after the
+	 * postings of its terms. An article in the map thus never has postings
+	 * still in the checkpoint, so removing it finds all of them.
+	 * 
+	 * Like the other hydrate methods, it takes the write lock of each stripe
+	 * it fills, so it is called before the operation takes any lock.
+	 */
+	private void hydrateArticle(int id) {
+		Checkpoint b = base;
+		if (b == null)
+			return;
+		int pos = b.indexOf(id);
+		if (pos < 0 || b.isArticleHydrated(pos))
+			return;
 
-		List<Article> res = new LinkedList<Article>();
+		Article a = b.article(pos);
+		hydrateTerms(byAuthor, a.getAuthors());
+		hydrateTerms(byKeyword, a.getKeywords());
 
-		Iterator<String> it = keywords.iterator();
-		while (it.hasNext()) {
-			String keyword = it.next();
+		VersionedLock lock = byArticleId.getLock(id);
+		lock.writeLock().lock();
+		if (!b.isArticleHydrated(pos)) {
+			byArticleId.put(id, a);
+			if (b.setArticleHydrated(pos) == 0)
+				base = null;
+		}
+		lock.writeLock().unlock();
+	}
 
-			List<Article> as = byKeyword.get(keyword);
-			if (as != null) {
-				Iterator<Article> ait = as.iterator();
-				while (ait.hasNext()) {
-					Article a = ait.next();
-					res.add(a);
+	private void hydrateTerms(IntMap<PostingList<Article>> index, int[] terms) {
+		if (base == null)
+			return;
+		for (int i = 0; i < terms.length; i++)
+			hydrateTerm(index, terms[i]);
+	}
+
+	/**
+	 * Moves the posting list of a term of the checkpoint into the index,
+	 * with the same article objects byArticleId gets
+	 */
+	private void hydrateTerm(IntMap<PostingList<Article>> index, int term) {
+		Checkpoint b = base;
+		boolean authors = index == byAuthor;
+		if (b == null || term < 0 || term >= b.getTermCount()
+				|| b.isTermHydrated(authors, term))
+			return;
+
+		VersionedLock lock = index.getLock(term);
+		lock.writeLock().lock();
+		if (!b.isTermHydrated(authors, term)) {
+			int[] positions = b.postings(authors, term);
+			if (positions.length > 0) {
+				PostingList<Article> ll = new PostingList<Article>(
+						positions.length);
+				for (int i = 0; i < positions.length; i++) {
+					Article a = b.article(positions[i]);
+					ll.add(a.getId(), a);
 				}
+				index.put(term, ll);
 			}
+			b.setTermHydrated(authors, term);
+		}
+		lock.writeLock().unlock();
+	}
+
+	/**
+	 * Stamps the removal version on an article, keeping a record of it for
+	 * the open snapshots. Called with all the locks of the article held.
+	 * 
+	 * A snapshot opened before the removal took its version registers
+	 * itself before reading the clock, so the check on openSnapshots never
+	 * misses a snapshot that must still see the article.
+	 */
+	private void retire(Article a, long version) {
+		long created = a.getCreatedVersion();
+		a.setDeletedVersion(version);
+		if (openSnapshots > 0)
+			retired.add(new Retired(a, created, version));
+	}
+
+	/**
+	 * Inserts a batch of articles, taking each lock they need only once.
+	 * 
+	 * The locks are taken in the same global order as
+	 * {@link #insertArticle(Article)} and {@link #removeArticle(int)}: every
+	 * id stripe of the batch, then the author stripes, then the keyword
+	 * stripes, each in ascending order. So batches never deadlock with single
+	 * operations nor with each other. Articles whose id is already in the
+	 * repository, or earlier in the batch, are skipped.
+	 * 
+	 * @return the number of articles inserted
+	 */
+	public int insertArticles(List<Article> articles) {
+		Article[] batch = new Article[articles.size()];
+		int[] ids = new int[batch.length];
+		int n = 0;
+		Iterator<Article> it = articles.iterator();
+		while (it.hasNext()) {
+			Article a = it.next();
+			batch[n] = a;
+			ids[n++] = a.getId();
 
+			hydrateArticle(a.getId());
+			hydrateTerms(byAuthor, a.getAuthors());
+			hydrateTerms(byKeyword, a.getKeywords());
 		}
-		unlockList(keywordLocks, false);
-		return res;
+
+		List<VersionedLock> idLocks = byArticleId.getLocks(ids);
+		lockList(idLocks, true);
+
+		/*
+		 * Keeps only the articles that are new, compacting them in place
+		 */
+		IdBitmap seen = new IdBitmap();
+		int count = 0;
+		long lsn = 0;
+		for (int i = 0; i < n; i++) {
+			int id = batch[i].getId();
+			if (!byArticleId.contains(id) && !seen.contains(id)) {
+				seen.add(id);
+				batch[count++] = batch[i];
+			}
+		}
+
+		if (count > 0) {
+			int[] authors = terms(batch, count, true);
+			int[] keywords = terms(batch, count, false);
+			List<VersionedLock> authorLocks = byAuthor.getLocks(authors);
+			List<VersionedLock> keywordLocks = byKeyword.getLocks(keywords);
+
+			lockList(authorLocks, true);
+			lockList(keywordLocks, true);
+
+			applyPostings(byAuthor, batch, count, true, true);
+			applyPostings(byKeyword, batch, count, false, true);
+			invalidate(authors, keywords);
+
+			/*
+			 * The whole batch shares one version, so snapshots see all of it
+			 * or none
+			 */
+			long version = clock.incrementAndGet();
+			for (int i = 0; i < count; i++) {
+				batch[i].setCreatedVersion(version);
+				byArticleId.put(batch[i].getId(), batch[i]);
+				lsn = logInsert(batch[i]);
+			}
+
+			unlockList(authorLocks, true);
+			unlockList(keywordLocks, true);
+		}
+
+		unlockList(idLocks, true);
+
+		commit(lsn);
+		return count;
 	}
 
 	/**
-	 * This method is supposed to be executed with no concurrent thread
-	 * accessing the repository.
+	 * Removes a batch of articles by id, taking the locks like
+	 * {@link #insertArticles(List)}. Ids not in the repository are ignored.
 	 * 
+	 * @return the number of articles removed
 	 */
-	public boolean validate() {
+	public int removeArticles(int[] ids) {
+		for (int i = 0; i < ids.length; i++)
+			hydrateArticle(ids[i]);
 
-		HashSet<Integer> articleIds = new HashSet<Integer>();
-		int articleCount = 0;
+		List<VersionedLock> idLocks = byArticleId.getLocks(ids);
+		lockList(idLocks, true);
 
-		Iterator<Article> aIt = byArticleId.values();
-		while (aIt.hasNext()) {
-			Article a = aIt.next();
+		Article[] batch = new Article[ids.length];
+		int count = 0;
+		long lsn = 0;
+		for (int i = 0; i < ids.length; i++) {
+			Article a = byArticleId.remove(ids[i]);
+			if (a != null) {
+				batch[count++] = a;
+				lsn = logRemove(a.getId());
+			}
+		}
 
-			articleIds.add(a.getId());
-			articleCount++;
+		if (count > 0) {
+			int[] authors = terms(batch, count, true);
+			int[] keywords = terms(batch, count, false);
+			List<VersionedLock> authorLocks = byAuthor.getLocks(authors);
+			List<VersionedLock> keywordLocks = byKeyword.getLocks(keywords);
 
-			// check the authors consistency
-			Iterator<String> authIt = a.getAuthors().iterator();
-			while (authIt.hasNext()) {
-				String name = authIt.next();
-				if (!searchAuthorArticle(a, name)) {
-					System.out.println("1");
-					return false;
-				}
+			lockList(authorLocks, true);
+			lockList(keywordLocks, true);
+
+			long version = clock.incrementAndGet();
+			for (int i = 0; i < count; i++)
+				retire(batch[i], version);
+
+			applyPostings(byKeyword, batch, count, false, false);
+			applyPostings(byAuthor, batch, count, true, false);
+			invalidate(authors, keywords);
+
+			unlockList(authorLocks, true);
+			unlockList(keywordLocks, true);
+		}
+
+		unlockList(idLocks, true);
+
+		commit(lsn);
+		return count;
+	}
+
+	/**
+	 * Makes the cached results of the terms stale, once their postings
+	 * changed and while their locks are still held
+	 */
+	private void invalidate(int[] authors, int[] keywords) {
+		if (cache != null) {
+			cache.invalidate(true, authors);
+			cache.invalidate(false, keywords);
+		}
+	}
+
+	/**
+	 * @return the author (or keyword) term ids of the first n articles, with
+	 *         repetitions
+	 */
+	private static int[] terms(Article[] batch, int n, boolean authors) {
+		int total = 0;
+		for (int i = 0; i < n; i++)
+			total += (authors ? batch[i].getAuthors() : batch[i]
+					.getKeywords()).length;
+
+		int[] res = new int[total];
+		int pos = 0;
+		for (int i = 0; i < n; i++) {
+			int[] t = authors ? batch[i].getAuthors() : batch[i].getKeywords();
+			System.arraycopy(t, 0, res, pos, t.length);
+			pos += t.length;
+		}
+		return res;
+	}
+
+	/**
+	 * Adds (or removes) the postings of the first n articles to the index.
+	 * The (term, article) pairs are sorted by term first, so each posting
+	 * list is looked up once per batch rather than once per article. Must
+	 * run with the write locks of all the terms held.
+	 */
+	private void applyPostings(IntMap<PostingList<Article>> index,
+			Article[] batch, int n, boolean authors, boolean insert) {
+		int total = 0;
+		for (int i = 0; i < n; i++)
+			total += (authors ? batch[i].getAuthors() : batch[i]
+					.getKeywords()).length;
+
+		long[] pairs = new long[total];
+		int p = 0;
+		for (int i = 0; i < n; i++) {
+			int[] t = authors ? batch[i].getAuthors() : batch[i].getKeywords();
+			for (int j = 0; j < t.length; j++)
+				pairs[p++] = ((long) t[j] << 32) | i;
+		}
+		Arrays.sort(pairs);
+
+		int i = 0;
+		while (i < total) {
+			int term = (int) (pairs[i] >>> 32);
+			PostingList<Article> ll = index.get(term);
+
+			if (insert && ll == null) {
+				ll = new PostingList<Article>();
+				index.put(term, ll);
 			}
 
-			// check the keywords consistency
-			Iterator<String> keyIt = a.getKeywords().iterator();
-			while (keyIt.hasNext()) {
-				String keyword = keyIt.next();
-				if (!searchKeywordArticle(a, keyword)) {
-					System.out.println("2");
-					return false;
-				}
+			for (; i < total && (int) (pairs[i] >>> 32) == term; i++) {
+				if (ll == null)
+					continue;
+				Article a = batch[(int) pairs[i]];
+				if (insert)
+					ll.add(a.getId(), a);
+				else
+					ll.remove(a.getId());
 			}
+
+			if (!insert && ll != null && ll.isEmpty())
+				index.remove(term);
+		}
+	}
+
+	/**
+	 * Takes an optimistic read stamp on every lock of the list
+	 * 
+	 * @param locks
+	 *            - Lista de locks
+	 * @return the stamps, in the order of the list, or null if a writer
+	 *         currently holds one of the locks
+	 */
+	private long[] stampList(List<VersionedLock> locks) {
+		long[] stamps = new long[locks.size()];
+		int i = 0;
+		Iterator<VersionedLock> locksI = locks.iterator();
+		while (locksI.hasNext()) {
+			long stamp = locksI.next().tryOptimisticRead();
+			if ((stamp & 1) != 0)
+				return null;
+			stamps[i++] = stamp;
 		}
+		return stamps;
+	}
 
-		return articleCount == articleIds.size();
+	/**
+	 * @return true if no writer acquired any of the locks since the stamps
+	 *         were taken by {@link #stampList(List)}
+	 */
+	private boolean validateList(List<VersionedLock> locks, long[] stamps) {
+		int i = 0;
+		Iterator<VersionedLock> locksI = locks.iterator();
+		while (locksI.hasNext()) {
+			if (!locksI.next().validate(stamps[i++]))
+				return false;
+		}
+		return true;
 	}
 
-	private boolean searchAuthorArticle(Article a, String author) {
+	/**
+	 * Concatenates the article lists of the given keys, keeping only the
+	 * entries in [offset, offset + limit). Lists ending before the offset are
+	 * skipped by their size, so only the entries returned are touched. Must
+	 * run either with the read locks of the keys held or inside an optimistic
+	 * read.
+	 * 
+	 * @param ends
+	 *            if not null, gets the number of entries returned up to the
+	 *            end of the list of each key
+	 */
+	private List<Article> collectArticles(
+			IntMap<PostingList<Article>> index, int[] keys, int offset,
+			int limit, int[] ends) {
+		List<Article> res = new LinkedList<Article>();
+		int n = 0;
+
+		for (int i = 0; i < keys.length && limit > 0; i++) {
+			int key = keys[i];
 
-		List<Article> ll = byAuthor.get(author);
-		if (ll != null) {
-			Iterator<Article> it = ll.iterator();
-			while (it.hasNext()) {
-				if (it.next() == a) {
-					return true;
+			PostingList<Article> as = index.get(key);
+			int size = as == null ? 0 : as.size();
+			if (offset >= size) {
+				offset -= size;
+			} else {
+				Iterator<Article> ait = as.iterator(offset);
+				offset = 0;
+				while (ait.hasNext() && limit > 0) {
+					Article a = ait.next();
+					res.addLast(a);
+					limit--;
+					n++;
 				}
 			}
+
+			if (ends != null)
+				ends[i] = n;
 		}
-		return false;
+		return res;
 	}
 
-	private boolean searchKeywordArticle(Article a, String keyword) {
+	/**
+	 * Looks the keys up without locking and only falls back to the read locks
+	 * when a concurrent writer invalidates one of the stamps.
+	 */
+	private List<Article> findByKeys(IntMap<PostingList<Article>> index,
+			int[] keys, int offset, int limit, int[] ends) {
+		hydrateTerms(index, keys);
+
+		List<VersionedLock> locks = index.getLocks(keys);
 
-		List<Article> ll = byKeyword.get(keyword);
-		if (ll != null) {
-			Iterator<Article> it = ll.iterator();
-			while (it.hasNext()) {
-				if (it.next() == a) {
-					return true;
-				}
+		long[] stamps = stampList(locks);
+		if (stamps != null) {
+			List<Article> res = collectArticles(index, keys, offset, limit,
+					ends);
+			if (validateList(locks, stamps))
+				return res;
+		}
+
+		lockList(locks, false);
+		List<Article> res = collectArticles(index, keys, offset, limit,
+				ends);
+		unlockList(locks, false);
+		return res;
+	}
+
+	public List<Article> findArticleByAuthor(List<String> authors) {
+		return findArticleByAuthor(dictionary.toIds(authors, false));
+	}
+
+	public List<Article> findArticleByKeyword(List<String> keywords) {
+		return findArticleByKeyword(dictionary.toIds(keywords, false));
+	}
+
+	/**
+	 * Same as {@link #findArticleByAuthor(List)}, with the authors given as
+	 * term ids
+	 */
+	public List<Article> findArticleByAuthor(int[] authors) {
+		return findCached(byAuthor, authors, true);
+	}
+
+	/**
+	 * Same as {@link #findArticleByKeyword(List)}, with the keywords given as
+	 * term ids
+	 */
+	public List<Article> findArticleByKeyword(int[] keywords) {
+		return findCached(byKeyword, keywords, false);
+	}
+
+	/**
+	 * Serves the find from the cache when it has a fresh result for the set
+	 * of keys. Otherwise, if the cache admits the query, reads the result of
+	 * the set after its versions, with where the list of each key ends, and
+	 * caches it, to arrange in the order of the keys.
+	 */
+	private List<Article> findCached(IntMap<PostingList<Article>> index,
+			int[] keys, boolean authors) {
+		if (cache == null || cache.bypass())
+			return findByKeys(index, keys, 0, Integer.MAX_VALUE, null);
+
+		int[] terms = QueryCache.canonical(keys);
+		List<Article> res = cache.get(authors, keys, terms);
+		if (res != null)
+			return res;
+
+		long[] versions = cache.versions(authors, terms);
+		if (versions == null)
+			return findByKeys(index, keys, 0, Integer.MAX_VALUE, null);
+
+		int[] ends = new int[terms.length];
+		res = findByKeys(index, terms, 0, Integer.MAX_VALUE, ends);
+		return cache.put(authors, keys, terms, versions, res, ends);
+	}
+
+	/**
+	 * Page of the results of {@link #findArticleByAuthor(List)}: skips the
+	 * first offset articles and returns at most limit, touching only the
+	 * postings returned.
+	 */
+	public List<Article> findArticleByAuthor(List<String> authors,
+			int offset, int limit) {
+		return findByKeys(byAuthor, dictionary.toIds(authors, false), offset,
+				limit, null);
+	}
+
+	/**
+	 * Page of the results of {@link #findArticleByKeyword(List)}
+	 */
+	public List<Article> findArticleByKeyword(List<String> keywords,
+			int offset, int limit) {
+		return findByKeys(byKeyword, dictionary.toIds(keywords, false),
+				offset, limit, null);
+	}
+
+	/**
+	 * @return the k articles with the highest ids by any of the authors,
+	 *         highest first and each once
+	 */
+	public List<Article> findTopArticlesByAuthor(List<String> authors, int k) {
+		return findTop(byAuthor, dictionary.toIds(authors, false), k);
+	}
+
+	/**
+	 * @return the k articles with the highest ids with any of the keywords,
+	 *         highest first and each once
+	 */
+	public List<Article> findTopArticlesByKeyword(List<String> keywords,
+			int k) {
+		return findTop(byKeyword, dictionary.toIds(keywords, false), k);
+	}
+
+	/**
+	 * Merges the id-sorted views of the keys from their ends, stopping after
+	 * k articles, so each list contributes at most k entries.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Article> findTop(IntMap<PostingList<Article>> index,
+			int[] keys, int k) {
+		hydrateTerms(index, keys);
+
+		List<VersionedLock> locks = index.getLocks(keys);
+		lockList(locks, false);
+
+		SortedPostings<Article>[] views = new SortedPostings[keys.length];
+		int[] cursors = new int[views.length];
+		for (int i = 0; i < keys.length; i++) {
+			PostingList<Article> ll = index.get(keys[i]);
+			views[i] = ll != null ? ll.sorted() : SortedPostings
+					.<Article> empty();
+			cursors[i] = views[i].size() - 1;
+		}
+
+		Article[] top = new Article[Math.max(0, k)];
+		int n = 0;
+		while (n < top.length) {
+			int max = -1;
+			for (int j = 0; j < views.length; j++) {
+				if (cursors[j] >= 0
+						&& (max < 0 || views[j].idAt(cursors[j]) > views[max]
+								.idAt(cursors[max])))
+					max = j;
+			}
+			if (max < 0)
+				break;
+
+			int id = views[max].idAt(cursors[max]);
+			top[n++] = views[max].valueAt(cursors[max]);
+			for (int j = 0; j < views.length; j++) {
+				if (cursors[j] >= 0 && views[j].idAt(cursors[j]) == id)
+					cursors[j]--;
+			}
+		}
+
+		unlockList(locks, false);
+
+		List<Article> res = new LinkedList<Article>();
+		for (int i = 0; i < n; i++)
+			res.addLast(top[i]);
+		return res;
+	}
+
+	/**
+	 * Opens a cursor over the results of {@link #findArticleByAuthor(List)}
+	 * that reads batchSize postings at a time
+	 */
+	public Cursor openCursorByAuthor(List<String> authors, int batchSize) {
+		return new Cursor(byAuthor, dictionary.toIds(authors, false),
+				batchSize);
+	}
+
+	/**
+	 * Opens a cursor over the results of {@link #findArticleByKeyword(List)}
+	 * that reads batchSize postings at a time
+	 */
+	public Cursor openCursorByKeyword(List<String> keywords, int batchSize) {
+		return new Cursor(byKeyword, dictionary.toIds(keywords, false),
+				batchSize);
+	}
+
+	/**
+	 * Streams the articles of a list of keys in batches. Each batch only
+	 * reads (optimistically, or else under the read lock) the stripe of a
+	 * single key, and no lock is held between batches, so a caller may stop
+	 * at any point without cleanup.
+	 * 
+	 * The cursor is weakly consistent: articles inserted or removed while it
+	 * runs may or may not be returned, and since removal moves the last entry
+	 * of a list into the freed slot, an article may even be skipped or
+	 * returned twice.
+	 */
+	public class Cursor implements Iterator<Article> {
+
+		private IntMap<PostingList<Article>> index;
+		private int[] keys;
+		private int next;
+		private int key;
+		private int slot;
+
+		private Article[] batch;
+		private int pos;
+		private int count;
+
+		private Cursor(IntMap<PostingList<Article>> index, int[] keys,
+				int batchSize) {
+			hydrateTerms(index, keys);
+			this.index = index;
+			this.keys = keys;
+			this.next = 0;
+			this.key = -1;
+			this.batch = new Article[Math.max(batchSize, 1)];
+			this.pos = 0;
+			this.count = 0;
+		}
+
+		public boolean hasNext() {
+			while (pos == count) {
+				if (key < 0) {
+					if (next == keys.length)
+						return false;
+					key = keys[next++];
+					slot = 0;
+				}
+
+				count = fetch();
+				pos = 0;
+				slot += count;
+				if (count < batch.length)
+					key = -1;
+			}
+			return true;
+		}
+
+		public Article next() {
+			Article a = batch[pos];
+			batch[pos++] = null;
+			return a;
+		}
+
+		private int fetch() {
+			VersionedLock lock = index.getLock(key);
+
+			long stamp = lock.tryOptimisticRead();
+			if ((stamp & 1) == 0) {
+				int n = read();
+				if (lock.validate(stamp))
+					return n;
+			}
+
+			lock.readLock().lock();
+			int n = read();
+			lock.readLock().unlock();
+			return n;
+		}
+
+		private int read() {
+			PostingList<Article> as = index.get(key);
+			if (as == null)
+				return 0;
+
+			int n = 0;
+			Iterator<Article> it = as.iterator(slot);
+			while (it.hasNext() && n < batch.length)
+				batch[n++] = it.next();
+			return n;
+		}
+	}
+
+	/**
+	 * Evaluates a boolean query over both indexes. The read locks of every
+	 * term involved are held together, authors before keywords like the
+	 * writers take them, so the result is consistent.
+	 * 
+	 * @return the matching articles, each once, by increasing id
+	 */
+	public List<Article> findArticles(Query q) {
+		QueryTerms t = new QueryTerms(q);
+
+		List<VersionedLock> authorLocks = byAuthor.getLocks(concat(
+				t.allAuthors, t.anyAuthors, t.notAuthors));
+		List<VersionedLock> keywordLocks = byKeyword.getLocks(concat(
+				t.allKeywords, t.anyKeywords, t.notKeywords));
+
+		lockList(authorLocks, false);
+		lockList(keywordLocks, false);
+
+		SortedPostings<Article> res = evaluate(
+				sortedPostings(t.allAuthors, t.allKeywords),
+				sortedPostings(t.anyAuthors, t.anyKeywords),
+				sortedPostings(t.notAuthors, t.notKeywords));
+
+		unlockList(authorLocks, false);
+		unlockList(keywordLocks, false);
+
+		List<Article> result = new LinkedList<Article>();
+		for (int i = res.size() - 1; i >= 0; i--)
+			result.add(res.valueAt(i));
+		return result;
+	}
+
+	/**
+	 * The terms of a query, resolved to ids
+	 */
+	private class QueryTerms {
+		public final int[] allAuthors;
+		public final int[] anyAuthors;
+		public final int[] notAuthors;
+		public final int[] allKeywords;
+		public final int[] anyKeywords;
+		public final int[] notKeywords;
+
+		public QueryTerms(Query q) {
+			this.allAuthors = dictionary.toIds(q.getAllAuthors(), false);
+			this.anyAuthors = dictionary.toIds(q.getAnyAuthors(), false);
+			this.notAuthors = dictionary.toIds(q.getNotAuthors(), false);
+			this.allKeywords = dictionary.toIds(q.getAllKeywords(), false);
+			this.anyKeywords = dictionary.toIds(q.getAnyKeywords(), false);
+			this.notKeywords = dictionary.toIds(q.getNotKeywords(), false);
+
+			hydrateTerms(byAuthor, concat(allAuthors, anyAuthors, notAuthors));
+			hydrateTerms(byKeyword, concat(allKeywords, anyKeywords,
+					notKeywords));
+		}
+	}
+
+	private static int[] concat(int[] a, int[] b, int[] c) {
+		int[] res = new int[a.length + b.length + c.length];
+		System.arraycopy(a, 0, res, 0, a.length);
+		System.arraycopy(b, 0, res, a.length, b.length);
+		System.arraycopy(c, 0, res, a.length + b.length, c.length);
+		return res;
+	}
+
+	/**
+	 * Sorted views of the postings of the given authors and keywords; a term
+	 * with no articles gives an empty view. Needs their read locks held.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private SortedPostings<Article>[] sortedPostings(int[] authors,
+			int[] keywords) {
+		SortedPostings<Article>[] res = new SortedPostings[authors.length
+				+ keywords.length];
+		int i = 0;
+
+		for (int j = 0; j < authors.length; j++) {
+			PostingList<Article> ll = byAuthor.get(authors[j]);
+			res[i++] = ll != null ? ll.sorted() : SortedPostings
+					.<Article> empty();
+		}
+
+		for (int j = 0; j < keywords.length; j++) {
+			PostingList<Article> ll = byKeyword.get(keywords[j]);
+			res[i++] = ll != null ? ll.sorted() : SortedPostings
+					.<Article> empty();
+		}
+		return res;
+	}
+
+	/**
+	 * Intersects the AND lists starting from the shortest one, so the cost
+	 * tracks the smallest list, then keeps the entries on some OR list and
+	 * drops those on any NOT list.
+	 */
+	private static SortedPostings<Article> evaluate(
+			SortedPostings<Article>[] all, SortedPostings<Article>[] any,
+			SortedPostings<Article>[] not) {
+
+		SortedPostings<Article> res;
+		if (all.length > 0) {
+			Arrays.sort(all, new Comparator<SortedPostings<Article>>() {
+				public int compare(SortedPostings<Article> a,
+						SortedPostings<Article> b) {
+					return Integer.compare(a.size(), b.size());
+				}
+			});
+
+			res = all[0];
+			for (int i = 1; i < all.length && res.size() > 0; i++)
+				res = res.retainAll(all[i]);
+
+			if (any.length > 0 && res.size() > 0)
+				res = res.retainAny(any);
+		} else if (any.length > 0) {
+			res = SortedPostings.union(any);
+		} else {
+			res = SortedPostings.empty();
+		}
+
+		if (not.length > 0 && res.size() > 0)
+			res = res.removeAny(not);
+
+		return res;
+	}
+
+	/**
+	 * Set-semantics variant of {@link #findArticleByAuthor(List)}: the ids of
+	 * the articles by any of the authors, each once
+	 */
+	public IdBitmap findArticleIdsByAuthor(List<String> authors) {
+		return findIds(byAuthor, dictionary.toIds(authors, false));
+	}
+
+	/**
+	 * Set-semantics variant of {@link #findArticleByKeyword(List)}: the ids of
+	 * the articles with any of the keywords, each once
+	 */
+	public IdBitmap findArticleIdsByKeyword(List<String> keywords) {
+		return findIds(byKeyword, dictionary.toIds(keywords, false));
+	}
+
+	/**
+	 * Like {@link #findArticleByAuthor(List)}, but each article is returned
+	 * once, and only looked up in byArticleId as the iterator reaches it
+	 */
+	public Iterator<Article> findDistinctArticlesByAuthor(List<String> authors) {
+		return getArticles(findArticleIdsByAuthor(authors));
+	}
+
+	/**
+	 * Like {@link #findArticleByKeyword(List)}, but each article is returned
+	 * once, and only looked up in byArticleId as the iterator reaches it
+	 */
+	public Iterator<Article> findDistinctArticlesByKeyword(
+			List<String> keywords) {
+		return getArticles(findArticleIdsByKeyword(keywords));
+	}
+
+	private IdBitmap findIds(IntMap<PostingList<Article>> index, int[] keys) {
+		hydrateTerms(index, keys);
+
+		List<VersionedLock> locks = index.getLocks(keys);
+		lockList(locks, false);
+
+		IdBitmap res = new IdBitmap();
+		for (int i = 0; i < keys.length; i++) {
+			PostingList<Article> ll = index.get(keys[i]);
+			if (ll != null)
+				res = res.or(IdBitmap.of(ll.sorted()));
+		}
+
+		unlockList(locks, false);
+		return res;
+	}
+
+	/**
+	 * Evaluates a boolean query like {@link #findArticles(Query)}, doing the
+	 * set operations on compressed id bitmaps
+	 */
+	public IdBitmap findArticleIds(Query q) {
+		QueryTerms t = new QueryTerms(q);
+
+		List<VersionedLock> authorLocks = byAuthor.getLocks(concat(
+				t.allAuthors, t.anyAuthors, t.notAuthors));
+		List<VersionedLock> keywordLocks = byKeyword.getLocks(concat(
+				t.allKeywords, t.anyKeywords, t.notKeywords));
+
+		lockList(authorLocks, false);
+		lockList(keywordLocks, false);
+
+		IdBitmap[] all = bitmaps(sortedPostings(t.allAuthors, t.allKeywords));
+		IdBitmap[] any = bitmaps(sortedPostings(t.anyAuthors, t.anyKeywords));
+		IdBitmap[] not = bitmaps(sortedPostings(t.notAuthors, t.notKeywords));
+
+		unlockList(authorLocks, false);
+		unlockList(keywordLocks, false);
+
+		IdBitmap res;
+		if (all.length > 0) {
+			Arrays.sort(all, new Comparator<IdBitmap>() {
+				public int compare(IdBitmap a, IdBitmap b) {
+					return Integer.compare(a.cardinality(), b.cardinality());
+				}
+			});
+
+			res = all[0];
+			for (int i = 1; i < all.length && !res.isEmpty(); i++)
+				res = res.and(all[i]);
+
+			if (any.length > 0 && !res.isEmpty())
+				res = res.and(union(any));
+		} else if (any.length > 0) {
+			res = union(any);
+		} else {
+			res = new IdBitmap();
+		}
+
+		if (not.length > 0 && !res.isEmpty())
+			res = res.andNot(union(not));
+
+		return res;
+	}
+
+	private static IdBitmap[] bitmaps(SortedPostings<Article>[] views) {
+		IdBitmap[] res = new IdBitmap[views.length];
+		for (int i = 0; i < views.length; i++)
+			res[i] = IdBitmap.of(views[i]);
+		return res;
+	}
+
+	private static IdBitmap union(IdBitmap[] bitmaps) {
+		IdBitmap res = bitmaps[0];
+		for (int i = 1; i < bitmaps.length; i++)
+			res = res.or(bitmaps[i]);
+		return res;
+	}
+
+	/**
+	 * @return the article with the given id, or null if there is none
+	 */
+	public Article getArticle(int id) {
+		hydrateArticle(id);
+
+		VersionedLock lock = byArticleId.getLock(id);
+
+		long stamp = lock.tryOptimisticRead();
+		if ((stamp & 1) == 0) {
+			Article a = byArticleId.get(id);
+			if (lock.validate(stamp))
+				return a;
+		}
+
+		lock.readLock().lock();
+		Article a = byArticleId.get(id);
+		lock.readLock().unlock();
+		return a;
+	}
+
+	/**
+	 * Iterates the articles of a set of ids, looking each one up only when
+	 * the iterator reaches it. Articles removed in the meantime are skipped.
+	 */
+	public Iterator<Article> getArticles(final IdBitmap ids) {
+		return new Iterator<Article>() {
+
+			private IdBitmap.IdIterator it = ids.iterator();
+			private Article next = advance();
+
+			private Article advance() {
+				while (it.hasNext()) {
+					Article a = getArticle(it.next());
+					if (a != null)
+						return a;
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public Article next() {
+				Article a = next;
+				next = advance();
+				return a;
+			}
+		};
+	}
+
+	/**
+	 * Checks that every article is on the lists of its authors and keywords
+	 * and that ids are unique. It runs on a snapshot, so the workload does
+	 * not need to be stopped.
+	 */
+	public boolean validate() {
+		Snapshot snapshot = openSnapshot();
+		try {
+			return snapshot.validate();
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Opens a consistent, point-in-time view of the repository: it sees
+	 * every write that took a version up to its own and none of the later
+	 * ones. Writers are never blocked by it, beyond the short read locks it
+	 * takes on each stripe it reads; articles they remove are kept on the
+	 * side until no snapshot can see them anymore. Must be closed.
+	 */
+	public Snapshot openSnapshot() {
+		long version;
+		synchronized (snapshots) {
+			openSnapshots++;
+			version = clock.get();
+			Integer n = snapshots.get(version);
+			snapshots.put(version, n == null ? 1 : n + 1);
+		}
+		return new Snapshot(version);
+	}
+
+	private void closeSnapshot(long version) {
+		synchronized (snapshots) {
+			Integer n = snapshots.get(version);
+			if (n == 1)
+				snapshots.remove(version);
+			else
+				snapshots.put(version, n - 1);
+			openSnapshots--;
+
+			/*
+			 * Records removed at or before the oldest open snapshot are
+			 * invisible to all of them
+			 */
+			retired.prune(snapshots.isEmpty() ? clock.get() : snapshots
+					.firstKey());
+		}
+	}
+
+	/**
+	 * An article removed at some version, with the version it was inserted
+	 * at. They are copied, since the article may be inserted again.
+	 */
+	private static class Retired {
+		public final Article article;
+		public final long created;
+		public final long deleted;
+
+		/*
+		 * Position in the log, set when added
+		 */
+		public long seq;
+
+		public Retired(Article article, long created, long deleted) {
+			this.article = article;
+			this.created = created;
+			this.deleted = deleted;
+		}
+	}
+
+	private static class RetiredLog {
+		private Retired[] records = new Retired[16];
+		private int size = 0;
+		private long added = 0;
+
+		public synchronized void add(Retired r) {
+			if (size == records.length)
+				records = Arrays.copyOf(records, size * 2);
+			r.seq = ++added;
+			records[size++] = r;
+		}
+
+		/**
+		 * Drops the records removed at or before the bound
+		 */
+		public synchronized void prune(long bound) {
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (records[i].deleted > bound)
+					records[n++] = records[i];
+			}
+			Arrays.fill(records, n, size, null);
+			size = n;
+		}
+
+		/**
+		 * @return the records added after the one with the given seq, in
+		 *         order; pruning keeps the order, so they are a suffix
+		 */
+		public synchronized Retired[] since(long seq) {
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (records[mid].seq <= seq)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return Arrays.copyOfRange(records, lo, size);
+		}
+	}
+
+	/**
+	 * See {@link Repository#openSnapshot()}. Reads take the read lock of one
+	 * stripe at a time and keep the articles whose versions bracket the
+	 * snapshot's, adding the ones removed since from the retired log.
+	 */
+	public class Snapshot {
+
+		private final long version;
+		private boolean closed;
+
+		/*
+		 * The retired articles this snapshot sees, by id and by term,
+		 * indexed as they are added to the log; each record is looked at
+		 * once, so reads cost what they return rather than the log size
+		 */
+		private long retiredSeen;
+		private final HashMap<Integer, Article> retiredById;
+		private final HashMap<Integer, List<Article>> retiredByAuthor;
+		private final HashMap<Integer, List<Article>> retiredByKeyword;
+
+		private Snapshot(long version) {
+			this.version = version;
+			this.closed = false;
+			this.retiredSeen = 0;
+			this.retiredById = new HashMap<Integer, Article>();
+			this.retiredByAuthor = new HashMap<Integer, List<Article>>();
+			this.retiredByKeyword = new HashMap<Integer, List<Article>>();
+		}
+
+		/**
+		 * Indexes the records retired since the last call. A visible
+		 * article is retired at most once, since its removal is the only
+		 * one between its creation and the snapshot.
+		 */
+		private synchronized void refreshRetired() {
+			Retired[] rs = retired.since(retiredSeen);
+			for (int i = 0; i < rs.length; i++) {
+				if (!visible(rs[i]))
+					continue;
+				Article a = rs[i].article;
+				retiredById.put(a.getId(), a);
+				index(retiredByAuthor, a.getAuthors(), a);
+				index(retiredByKeyword, a.getKeywords(), a);
+			}
+			if (rs.length > 0)
+				retiredSeen = rs[rs.length - 1].seq;
+		}
+
+		private void index(HashMap<Integer, List<Article>> byTerm,
+				int[] terms, Article a) {
+			for (int i = 0; i < terms.length; i++) {
+				List<Article> l = byTerm.get(terms[i]);
+				if (l == null) {
+					l = new LinkedList<Article>();
+					byTerm.put(terms[i], l);
+				}
+				l.addLast(a);
+			}
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public void close() {
+			if (!closed) {
+				closed = true;
+				closeSnapshot(version);
+			}
+		}
+
+		/**
+		 * For articles in the maps, read under their lock
+		 */
+		private boolean visible(Article a) {
+			long created = a.getCreatedVersion();
+			return created != 0 && created <= version;
+		}
+
+		private boolean visible(Retired r) {
+			return r.created != 0 && r.created <= version
+					&& r.deleted > version;
+		}
+
+		/**
+		 * @return every article of the snapshot
+		 */
+		public List<Article> getArticles() {
+			hydrate();
+
+			List<Article> res = new LinkedList<Article>();
+			IdBitmap seen = new IdBitmap();
+
+			for (int s = 0; s < byArticleId.getStripes(); s++) {
+				VersionedLock lock = byArticleId.getStripeLock(s);
+				lock.readLock().lock();
+				Iterator<Article> it = byArticleId.values(s);
+				while (it.hasNext()) {
+					Article a = it.next();
+					if (visible(a)) {
+						res.addLast(a);
+						seen.add(a.getId());
+					}
+				}
+				lock.readLock().unlock();
+			}
+
+			/*
+			 * An article removed after its stripe was read is already on
+			 * the result; one removed before was retired before the read
+			 */
+			refreshRetired();
+			synchronized (this) {
+				for (Article a : retiredById.values()) {
+					if (!seen.contains(a.getId())) {
+						res.addLast(a);
+						seen.add(a.getId());
+					}
+				}
+			}
+			return res;
+		}
+
+		/**
+		 * @return the article with the given id in the snapshot, or null
+		 */
+		public Article getArticle(int id) {
+			hydrateArticle(id);
+
+			VersionedLock lock = byArticleId.getLock(id);
+			lock.readLock().lock();
+			Article a = byArticleId.get(id);
+			lock.readLock().unlock();
+
+			if (a != null && visible(a))
+				return a;
+
+			refreshRetired();
+			synchronized (this) {
+				return retiredById.get(id);
+			}
+		}
+
+		/**
+		 * @return the articles on the list of a term in the snapshot, each
+		 *         once
+		 */
+		private SortedPostings<Article> postings(
+				IntMap<PostingList<Article>> index, int term, boolean authors) {
+			if (term < 0)
+				return SortedPostings.empty();
+
+			int[] ids = new int[8];
+			Article[] values = new Article[8];
+			int n = 0;
+			IdBitmap seen = new IdBitmap();
+
+			hydrateTerm(index, term);
+			VersionedLock lock = index.getLock(term);
+			lock.readLock().lock();
+			PostingList<Article> ll = index.get(term);
+			if (ll != null) {
+				ids = new int[ll.size() + 8];
+				values = new Article[ll.size() + 8];
+				for (int i = 0; i < ll.size(); i++) {
+					Article a = ll.valueAt(i);
+					if (visible(a)) {
+						ids[n] = a.getId();
+						values[n++] = a;
+						seen.add(a.getId());
+					}
+				}
+			}
+			lock.readLock().unlock();
+
+			refreshRetired();
+			synchronized (this) {
+				List<Article> rs = (authors ? retiredByAuthor
+						: retiredByKeyword).get(term);
+				Iterator<Article> it = rs != null ? rs.iterator()
+						: new LinkedList<Article>().iterator();
+				while (it.hasNext()) {
+					Article a = it.next();
+					if (seen.contains(a.getId()))
+						continue;
+					if (n == ids.length) {
+						ids = Arrays.copyOf(ids, n * 2);
+						values = Arrays.copyOf(values, n * 2);
+					}
+					ids[n] = a.getId();
+					values[n++] = a;
+					seen.add(a.getId());
+				}
+			}
+			return SortedPostings.sort(ids, values, n);
+		}
+
+		private List<Article> find(IntMap<PostingList<Article>> index,
+				int[] keys, boolean authors) {
+			List<Article> res = new LinkedList<Article>();
+			for (int i = 0; i < keys.length; i++) {
+				SortedPostings<Article> p = postings(index, keys[i], authors);
+				for (int j = 0; j < p.size(); j++)
+					res.addLast(p.valueAt(j));
+			}
+			return res;
+		}
+
+		public List<Article> findArticleByAuthor(List<String> authors) {
+			return find(byAuthor, dictionary.toIds(authors, false), true);
+		}
+
+		public List<Article> findArticleByKeyword(List<String> keywords) {
+			return find(byKeyword, dictionary.toIds(keywords, false), false);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private SortedPostings<Article>[] postings(int[] authors,
+				int[] keywords) {
+			SortedPostings<Article>[] res = new SortedPostings[authors.length
+					+ keywords.length];
+			int i = 0;
+			for (int j = 0; j < authors.length; j++)
+				res[i++] = postings(byAuthor, authors[j], true);
+			for (int j = 0; j < keywords.length; j++)
+				res[i++] = postings(byKeyword, keywords[j], false);
+			return res;
+		}
+
+		/**
+		 * Evaluates a query like {@link Repository#findArticles(Query)},
+		 * with every index read as of the snapshot
+		 */
+		public List<Article> findArticles(Query q) {
+			QueryTerms t = new QueryTerms(q);
+
+			SortedPostings<Article> res = evaluate(
+					postings(t.allAuthors, t.allKeywords),
+					postings(t.anyAuthors, t.anyKeywords),
+					postings(t.notAuthors, t.notKeywords));
+
+			List<Article> result = new LinkedList<Article>();
+			for (int i = 0; i < res.size(); i++)
+				result.addLast(res.valueAt(i));
+			return result;
+		}
+
+		/**
+		 * See {@link Repository#validate()}. The list of each term is built
+		 * once and shared by all the articles that have it.
+		 */
+		public boolean validate() {
+			HashMap<Integer, SortedPostings<Article>> authorLists = new HashMap<Integer, SortedPostings<Article>>();
+			HashMap<Integer, SortedPostings<Article>> keywordLists = new HashMap<Integer, SortedPostings<Article>>();
+
+			IdBitmap articleIds = new IdBitmap();
+			int articleCount = 0;
+
+			Iterator<Article> aIt = getArticles().iterator();
+			while (aIt.hasNext()) {
+				Article a = aIt.next();
+
+				articleIds.add(a.getId());
+				articleCount++;
+
+				// check the authors consistency
+				int[] authors = a.getAuthors();
+				for (int i = 0; i < authors.length; i++) {
+					if (!contains(authorLists, byAuthor, authors[i], true, a)) {
+						System.out.println("1");
+						return false;
+					}
+				}
+
+				// check the keywords consistency
+				int[] keywords = a.getKeywords();
+				for (int i = 0; i < keywords.length; i++) {
+					if (!contains(keywordLists, byKeyword, keywords[i], false,
+							a)) {
+						System.out.println("2");
+						return false;
+					}
+				}
+			}
+
+			return articleCount == articleIds.cardinality();
+		}
+
+		private boolean contains(
+				HashMap<Integer, SortedPostings<Article>> lists,
+				IntMap<PostingList<Article>> index, int term, boolean authors,
+				Article a) {
+			SortedPostings<Article> p = lists.get(term);
+			if (p == null) {
+				p = postings(index, term, authors);
+				lists.put(term, p);
 			}
+			int pos = p.indexOf(a.getId());
+			return pos >= 0 && p.valueAt(pos) == a;
 		}
-		return false;
 	}
 
 }
@@ -0,0 +1,398 @@
+package cp.articlerep;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.List;
+
+/**
+ * Serves an {@link ArticleStore} to other processes over the
+ * {@link Protocol}, on a TCP port or a Unix domain socket.
+ *
+ * Connections are spread over a fixed number of event loops, each a thread
+ * with its own non-blocking selector. A loop runs the requests of a
+ * connection as soon as they are read, on its own thread, since the
+ * repository operations do not block for long, and answers every request
+ * of one read with a single write. While a connection has more than
+ * MAX_PENDING bytes of responses unsent, its requests are no longer read.
+ * A request that is malformed or fails is answered with an ERROR, and only
+ * its connection is closed.
+ */
+public class RepositoryServer {
+
+	/**
+	 * Event loops of the server; one per processor by default
+	 */
+	public static final int THREADS = Integer.getInteger(
+			"cp.articlerep.server.threads", Runtime.getRuntime()
+					.availableProcessors());
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_PENDING = 1 << 20;
+
+	private final ArticleStore repository;
+	private final ServerSocketChannel server;
+	private final Loop[] loops;
+	private int nextLoop;
+
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * Binds the address, removing a stale Unix domain socket file first
+	 */
+	public RepositoryServer(ArticleStore repository, SocketAddress address,
+			int threads) throws IOException {
+		this.repository = repository;
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+			this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			this.server = ServerSocketChannel.open();
+			this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		}
+		this.server.bind(address);
+		this.server.configureBlocking(false);
+
+		this.loops = new Loop[Math.max(threads, 1)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new Loop(i);
+		this.nextLoop = 0;
+
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public SocketAddress getAddress() throws IOException {
+		return server.getLocalAddress();
+	}
+
+	public void start() {
+		for (int i = 0; i < loops.length; i++)
+			loops[i].thread.start();
+	}
+
+	/**
+	 * Closes the listening socket and every connection
+	 */
+	public void close() throws IOException {
+		SocketAddress address = server.getLocalAddress();
+		for (int i = 0; i < loops.length; i++)
+			loops[i].stop();
+		for (int i = 0; i < loops.length; i++) {
+			try {
+				loops[i].thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		server.close();
+		if (address instanceof UnixDomainSocketAddress)
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+	}
+
+	public long getConnections() {
+		return connections.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Accepts the pending connections, handing them to the loops in turn;
+	 * runs on loop 0
+	 */
+	private void accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = server.accept()) != null) {
+			ch.configureBlocking(false);
+			if (!(ch.getLocalAddress() instanceof UnixDomainSocketAddress))
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			connections.incrementAndGet();
+			Loop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.add(ch);
+		}
+	}
+
+	private class Loop implements Runnable {
+
+		final Selector selector;
+		final Thread thread;
+		private final ConcurrentLinkedQueue<SocketChannel> added;
+		private volatile boolean running;
+
+		Loop(int i) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "server-loop-" + i);
+			this.added = new ConcurrentLinkedQueue<SocketChannel>();
+			this.running = true;
+		}
+
+		void add(SocketChannel ch) {
+			added.add(ch);
+			selector.wakeup();
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					SocketChannel ch;
+					while ((ch = added.poll()) != null) {
+						ch.register(selector, SelectionKey.OP_READ,
+								new Connection(ch));
+					}
+
+					java.util.Iterator<SelectionKey> keys = selector
+							.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid() && key.isAcceptable())
+							accept();
+						else if (key.isValid())
+							((Connection) key.attachment()).ready(key);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Error: server loop failed: " + e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client connection, only used by the thread of its loop
+	 */
+	private class Connection {
+
+		private final SocketChannel ch;
+		private final Protocol.Codec codec;
+		private ByteBuffer in;
+		private boolean closing;
+
+		Connection(SocketChannel ch) {
+			this.ch = ch;
+			this.codec = new Protocol.Codec(repository.getDictionary(),
+					BUFFER_SIZE, true);
+			this.in = ByteBuffer.allocate(BUFFER_SIZE);
+			this.closing = false;
+		}
+
+		void ready(SelectionKey key) {
+			try {
+				if (key.isReadable() && ch.read(in) < 0)
+					throw new IOException("closed by the client");
+
+				/*
+				 * Requests left unread while too many responses were pending
+				 * are run once they are sent
+				 */
+				boolean left;
+				do {
+					left = process();
+				} while (flush(key) && left);
+			} catch (IOException e) {
+				close(key);
+			} catch (RuntimeException e) {
+				close(key);
+			}
+		}
+
+		/**
+		 * Runs every whole request read so far, until MAX_PENDING bytes of
+		 * responses are pending
+		 * 
+		 * @return whether it stopped with requests left
+		 */
+		private boolean process() throws IOException {
+			in.flip();
+			int type = -1;
+			try {
+				while (!closing && codec.out.position() < MAX_PENDING
+						&& (type = codec.next(in)) >= 0) {
+					handle(type);
+					codec.finish(in);
+				}
+			} catch (IOException e) {
+				error(e.getMessage());
+			} catch (RuntimeException e) {
+				error(e.toString());
+			}
+			boolean left = !closing && codec.out.position() >= MAX_PENDING
+					&& in.hasRemaining();
+
+			/*
+			 * Makes room for the rest of a frame larger than the buffer
+			 */
+			int length = closing ? -1 : Protocol.Codec.frameLength(in);
+			in.compact();
+			if (length >= 0 && 4 + length > in.capacity())
+				in = Protocol.ensure(in, 4 + length - in.position());
+			return left;
+		}
+
+		private void handle(int type) throws IOException {
+			requests.incrementAndGet();
+			switch (type - 1) {
+			case Worker.OP_INSERT: {
+				Article a = codec.readArticle(in);
+				result(repository.insertArticle(a) ? 1 : 0);
+				break;
+			}
+			case Worker.OP_REMOVE:
+				result(repository.removeArticle((int) codec.readVarint(in)) ? 1
+						: 0);
+				break;
+			case Worker.OP_FIND_AUTHOR:
+				articles(repository.findArticleByAuthor(codec.readTerms(in,
+						false)));
+				break;
+			case Worker.OP_FIND_KEYWORD:
+				articles(repository.findArticleByKeyword(codec.readTerms(in,
+						false)));
+				break;
+			default:
+				if (type != Protocol.VALIDATE)
+					throw new IOException("unknown request " + type);
+				result(repository.validate() ? 1 : 0);
+				break;
+			}
+		}
+
+		private void result(int value) {
+			codec.begin(Protocol.RESULT);
+			codec.varint(value);
+			codec.end();
+		}
+
+		/**
+		 * Defines the terms of the articles, then sends them
+		 */
+		private void articles(List<Article> res) {
+			Iterator<Article> it = res.iterator();
+			while (it.hasNext()) {
+				Article a = it.next();
+				codec.define(a.getAuthors());
+				codec.define(a.getKeywords());
+			}
+
+			codec.begin(Protocol.ARTICLES);
+			codec.varint(res.size());
+			it = res.iterator();
+			while (it.hasNext())
+				codec.article(it.next());
+			codec.end();
+		}
+
+		/**
+		 * Answers a malformed request and closes once it is sent
+		 */
+		private void error(String message) {
+			codec.begin(Protocol.ERROR);
+			codec.string(message == null ? "error" : message);
+			codec.end();
+			closing = true;
+		}
+
+		/**
+		 * Writes the pending responses, waiting to be writable if the socket
+		 * buffer is full, and stops reading while too many are pending
+		 * 
+		 * @return whether all of them were written, with the connection
+		 *         still open
+		 */
+		private boolean flush(SelectionKey key) throws IOException {
+			ByteBuffer out = codec.out;
+			out.flip();
+			ch.write(out);
+			out.compact();
+
+			int pending = out.position();
+			if (pending == 0 && closing) {
+				close(key);
+				return false;
+			}
+
+			int ops = 0;
+			if (pending > 0)
+				ops |= SelectionKey.OP_WRITE;
+			if (pending < MAX_PENDING && !closing)
+				ops |= SelectionKey.OP_READ;
+			if (key.interestOps() != ops)
+				key.interestOps(ops);
+			return pending == 0;
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Runs a server until it is killed
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: "
+					+ RepositoryServer.class.getCanonicalName()
+					+ " address(host:port|unix:path) nkeys");
+			System.exit(1);
+		}
+
+		int nkeys = Integer.parseInt(args[1]);
+		ArticleStore repository = ShardedRepository.SHARDS > 1 ? new ShardedRepository(
+				nkeys, ShardedRepository.SHARDS) : new Repository(nkeys);
+
+		final RepositoryServer server = new RepositoryServer(repository,
+				Protocol.address(args[0]), THREADS);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					server.close();
+				} catch (IOException e) {
+				}
+				System.out.println("Served " + server.getRequests()
+						+ " requests on " + server.getConnections()
+						+ " connections");
+			}
+		});
+
+		server.start();
+		System.out.println("Listening on " + server.getAddress() + " with "
+				+ THREADS + " threads");
+	}
+}
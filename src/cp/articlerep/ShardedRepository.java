@@ -0,0 +1,460 @@
+package cp.articlerep;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cp.articlerep.ds.HashTable;
+import cp.articlerep.ds.IdBitmap;
+import cp.articlerep.ds.Iterator;
+import cp.articlerep.ds.LinkedList;
+import cp.articlerep.ds.List;
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Partitions the articles by id over independent {@link Repository} shards,
+ * article id % n going to shard n, which share a single term dictionary.
+ * Writes only lock the stripes of their shard; finds run on every shard in
+ * parallel, on a fork-join pool, and merge their results.
+ *
+ * Each shard is consistent on its own, but there is no order between the
+ * writes of different shards, so snapshots, the write-ahead log and
+ * checkpoints, which need one, are not offered. Results list the articles
+ * of one shard after the other, except for the operations that order them
+ * by id.
+ */
+public class ShardedRepository implements ArticleStore {
+
+	/**
+	 * Number of shards of the repository MainRep runs on; 1 for a single
+	 * {@link Repository}
+	 */
+	public static final int SHARDS = Integer.getInteger(
+			"cp.articlerep.shards", 1);
+
+	private final TermDictionary dictionary;
+	private final Repository[] shards;
+	private final ForkJoinPool pool;
+
+	public ShardedRepository(int nkeys, int nshards) {
+		this(nkeys, nshards, Repository.STRIPES > 0 ? Repository.STRIPES
+				: HashTable.DEFAULT_STRIPES, ForkJoinPool
+				.commonPool());
+	}
+
+	/**
+	 * @param nkeys
+	 *            - numero esperado de chaves, repartido pelos shards
+	 * @param stripes
+	 *            - numero de locks de cada tabela de cada shard
+	 * @param pool
+	 *            - pool onde as pesquisas correm em paralelo
+	 */
+	public ShardedRepository(int nkeys, int nshards, int stripes,
+			ForkJoinPool pool) {
+		if (nshards <= 0)
+			throw new IllegalArgumentException("no shards");
+		this.dictionary = new TermDictionary(nkeys);
+		this.shards = new Repository[nshards];
+		for (int i = 0; i < nshards; i++)
+			shards[i] = new Repository(nkeys / nshards + 1, stripes,
+					dictionary, "shard" + i + ".");
+		this.pool = pool;
+	}
+
+	public int getShards() {
+		return shards.length;
+	}
+
+	public Repository getShard(int i) {
+		return shards[i];
+	}
+
+	public TermDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public int getStripes() {
+		return shards[0].getStripes();
+	}
+
+	private int shardOf(int id) {
+		return Math.floorMod(id, shards.length);
+	}
+
+	/**
+	 * An operation run on each shard
+	 */
+	private interface ShardCall {
+		public Object call(Repository shard, int i);
+	}
+
+	/**
+	 * Runs the call on every shard, in parallel unless the pool has a single
+	 * thread
+	 *
+	 * @return the result of each shard
+	 */
+	private Object[] fanOut(final ShardCall call) {
+		final Object[] res = new Object[shards.length];
+		if (shards.length == 1 || pool.getParallelism() == 1) {
+			for (int i = 0; i < shards.length; i++)
+				res[i] = call.call(shards[i], i);
+			return res;
+		}
+
+		pool.invoke(new FanOut(call, res, 0, shards.length));
+		return res;
+	}
+
+	/**
+	 * Splits the shards in halves until there is one per task
+	 */
+	private class FanOut extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ShardCall call;
+		private final Object[] res;
+		private final int from;
+		private final int to;
+
+		FanOut(ShardCall call, Object[] res, int from, int to) {
+			this.call = call;
+			this.res = res;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				res[from] = call.call(shards[from], from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new FanOut(call, res, from, mid), new FanOut(call, res,
+					mid, to));
+		}
+	}
+
+	/**
+	 * @return the lists of the shards, one after the other
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Article> concat(Object[] lists) {
+		List<Article> res = new LinkedList<Article>();
+		for (int i = 0; i < lists.length; i++) {
+			Iterator<Article> it = ((List<Article>) lists[i]).iterator();
+			while (it.hasNext())
+				res.addLast(it.next());
+		}
+		return res;
+	}
+
+	/**
+	 * Merges lists of distinct ids, each sorted by increasing id, or
+	 * decreasing if descending, keeping the first limit articles
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static List<Article> merge(Object[] lists, boolean descending,
+			int limit) {
+		Iterator<Article>[] its = new Iterator[lists.length];
+		Article[] heads = new Article[lists.length];
+		for (int i = 0; i < lists.length; i++) {
+			its[i] = ((List<Article>) lists[i]).iterator();
+			heads[i] = its[i].hasNext() ? its[i].next() : null;
+		}
+
+		List<Article> res = new LinkedList<Article>();
+		for (int n = 0; n < limit; n++) {
+			int best = -1;
+			for (int i = 0; i < heads.length; i++) {
+				if (heads[i] != null
+						&& (best < 0 || (heads[i].getId() < heads[best].getId()) != descending))
+					best = i;
+			}
+			if (best < 0)
+				break;
+			res.addLast(heads[best]);
+			heads[best] = its[best].hasNext() ? its[best].next() : null;
+		}
+		return res;
+	}
+
+	@Override
+	public boolean insertArticle(Article a) {
+		return shards[shardOf(a.getId())].insertArticle(a);
+	}
+
+	@Override
+	public boolean removeArticle(int id) {
+		return shards[shardOf(id)].removeArticle(id);
+	}
+
+	/**
+	 * Inserts the articles of each shard as a batch, the shards in parallel
+	 */
+	@Override
+	public int insertArticles(List<Article> articles) {
+		final List<Article>[] parts = split(articles);
+		Object[] res = fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return parts[i].size() == 0 ? 0 : shard
+						.insertArticles(parts[i]);
+			}
+		});
+		return sum(res);
+	}
+
+	@Override
+	public int removeArticles(int[] ids) {
+		int[] counts = new int[shards.length];
+		for (int i = 0; i < ids.length; i++)
+			counts[shardOf(ids[i])]++;
+		final int[][] parts = new int[shards.length][];
+		for (int i = 0; i < shards.length; i++)
+			parts[i] = new int[counts[i]];
+		for (int i = 0; i < ids.length; i++) {
+			int s = shardOf(ids[i]);
+			parts[s][--counts[s]] = ids[i];
+		}
+
+		Object[] res = fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return parts[i].length == 0 ? 0 : shard
+						.removeArticles(parts[i]);
+			}
+		});
+		return sum(res);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Article>[] split(List<Article> articles) {
+		List<Article>[] parts = new List[shards.length];
+		for (int i = 0; i < parts.length; i++)
+			parts[i] = new LinkedList<Article>();
+		Iterator<Article> it = articles.iterator();
+		while (it.hasNext()) {
+			Article a = it.next();
+			parts[shardOf(a.getId())].addLast(a);
+		}
+		return parts;
+	}
+
+	private static int sum(Object[] counts) {
+		int res = 0;
+		for (int i = 0; i < counts.length; i++)
+			res += (Integer) counts[i];
+		return res;
+	}
+
+	public List<Article> findArticleByAuthor(List<String> authors) {
+		return findArticleByAuthor(dictionary.toIds(authors, false));
+	}
+
+	public List<Article> findArticleByKeyword(List<String> keywords) {
+		return findArticleByKeyword(dictionary.toIds(keywords, false));
+	}
+
+	public List<Article> findArticleByAuthor(final int[] authors) {
+		return concat(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticleByAuthor(authors);
+			}
+		}));
+	}
+
+	public List<Article> findArticleByKeyword(final int[] keywords) {
+		return concat(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticleByKeyword(keywords);
+			}
+		}));
+	}
+
+	/**
+	 * Page of the results of {@link #findArticleByAuthor(List)}, in their
+	 * shard by shard order
+	 */
+	public List<Article> findArticleByAuthor(List<String> authors,
+			int offset, int limit) {
+		return page(findArticleByAuthor(authors), offset, limit);
+	}
+
+	public List<Article> findArticleByKeyword(List<String> keywords,
+			int offset, int limit) {
+		return page(findArticleByKeyword(keywords), offset, limit);
+	}
+
+	private static List<Article> page(List<Article> all, int offset,
+			int limit) {
+		List<Article> res = new LinkedList<Article>();
+		Iterator<Article> it = all.iterator();
+		for (int i = 0; it.hasNext() && limit > 0; i++) {
+			Article a = it.next();
+			if (i >= offset) {
+				res.addLast(a);
+				limit--;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Merges the top k of each shard
+	 */
+	public List<Article> findTopArticlesByAuthor(final List<String> authors,
+			final int k) {
+		return merge(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findTopArticlesByAuthor(authors, k);
+			}
+		}), true, k);
+	}
+
+	public List<Article> findTopArticlesByKeyword(final List<String> keywords,
+			final int k) {
+		return merge(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findTopArticlesByKeyword(keywords, k);
+			}
+		}), true, k);
+	}
+
+	public List<Article> findArticles(final Query q) {
+		return merge(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticles(q);
+			}
+		}), false, Integer.MAX_VALUE);
+	}
+
+	public IdBitmap findArticleIds(final Query q) {
+		return union(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticleIds(q);
+			}
+		}));
+	}
+
+	public IdBitmap findArticleIdsByAuthor(final List<String> authors) {
+		return union(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticleIdsByAuthor(authors);
+			}
+		}));
+	}
+
+	public IdBitmap findArticleIdsByKeyword(final List<String> keywords) {
+		return union(fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.findArticleIdsByKeyword(keywords);
+			}
+		}));
+	}
+
+	private static IdBitmap union(Object[] bitmaps) {
+		IdBitmap res = (IdBitmap) bitmaps[0];
+		for (int i = 1; i < bitmaps.length; i++)
+			res = res.or((IdBitmap) bitmaps[i]);
+		return res;
+	}
+
+	public Article getArticle(int id) {
+		return shards[shardOf(id)].getArticle(id);
+	}
+
+	/**
+	 * Validates every shard on a snapshot of its own, and checks that it
+	 * only holds its own ids
+	 */
+	@Override
+	public boolean validate() {
+		Object[] res = fanOut(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				Repository.Snapshot snapshot = shard.openSnapshot();
+				try {
+					if (!snapshot.validate())
+						return false;
+					Iterator<Article> it = snapshot.getArticles().iterator();
+					while (it.hasNext()) {
+						if (shardOf(it.next().getId()) != i)
+							return false;
+					}
+					return true;
+				} finally {
+					snapshot.close();
+				}
+			}
+		});
+		for (int i = 0; i < res.length; i++) {
+			if (!(Boolean) res[i])
+				return false;
+		}
+		return true;
+	}
+
+	public void hydrate() {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].hydrate();
+	}
+
+	/**
+	 * Opens a cursor over the results of {@link #findArticleByAuthor(List)},
+	 * the cursors of the shards one after the other
+	 */
+	public Iterator<Article> openCursorByAuthor(final List<String> authors,
+			final int batchSize) {
+		return new ShardCursor(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.openCursorByAuthor(authors, batchSize);
+			}
+		});
+	}
+
+	/**
+	 * Opens a cursor over the results of
+	 * {@link #findArticleByKeyword(List)}, the cursors of the shards one
+	 * after the other
+	 */
+	public Iterator<Article> openCursorByKeyword(final List<String> keywords,
+			final int batchSize) {
+		return new ShardCursor(new ShardCall() {
+			public Object call(Repository shard, int i) {
+				return shard.openCursorByKeyword(keywords, batchSize);
+			}
+		});
+	}
+
+	/**
+	 * Opens the cursor of each shard once the previous one is exhausted, so
+	 * it is as weakly consistent as they are
+	 */
+	private class ShardCursor implements Iterator<Article> {
+
+		private final ShardCall open;
+		private Iterator<Article> cursor;
+		private int shard;
+
+		ShardCursor(ShardCall open) {
+			this.open = open;
+			this.cursor = null;
+			this.shard = 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean hasNext() {
+			while (cursor == null || !cursor.hasNext()) {
+				if (shard == shards.length)
+					return false;
+				cursor = (Iterator<Article>) open.call(shards[shard], shard);
+				shard++;
+			}
+			return true;
+		}
+
+		public Article next() {
+			return cursor.next();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package cp.articlerep;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Samples the throughput of each operation type at a fixed interval while
+ * the test runs, reading the per-job counters of a {@link Worker}, so JIT
+ * warmup and lock inflation show up as a time series instead of being
+ * averaged into a single rate.
+ *
+ * Samples that start within the warmup are left out of the summary. The
+ * steady state starts at the first window of samples after the warmup
+ * whose total rates have a coefficient of variation (standard deviation
+ * over mean) under a threshold, and lasts until the end of the run.
+ */
+public class ThroughputSampler implements Runnable {
+
+	public static class Sample {
+		/**
+		 * End of the sample, in ms since the start of the test
+		 */
+		public final long time;
+		public final long durationNanos;
+		/**
+		 * Operations completed during the sample, per type
+		 */
+		public final long[] operations;
+
+		Sample(long time, long durationNanos, long[] operations) {
+			this.time = time;
+			this.durationNanos = durationNanos;
+			this.operations = operations;
+		}
+
+		public double rate(int type) {
+			return operations[type] * 1e9 / durationNanos;
+		}
+
+		public double totalRate() {
+			long total = 0;
+			for (int type = 0; type < operations.length; type++)
+				total += operations[type];
+			return total * 1e9 / durationNanos;
+		}
+	}
+
+	private final Worker worker;
+	private final long intervalMillis;
+	private final long warmupMillis;
+	private final int window;
+	private final double maxCv;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	private long startNanos;
+	private long lastNanos;
+	private long[] last;
+
+	private Sample[] samples;
+	private int size;
+
+	/*
+	 * First sample of the steady state, or -1; set by stop
+	 */
+	private int steady;
+
+	/**
+	 * @param window
+	 *            samples whose variation is checked to detect the steady
+	 *            state
+	 * @param maxCv
+	 *            largest coefficient of variation of a steady window
+	 */
+	public ThroughputSampler(Worker worker, long intervalMillis,
+			long warmupMillis, int window, double maxCv) {
+		if (intervalMillis <= 0 || window < 2)
+			throw new IllegalArgumentException(
+					"the sample interval must be positive and the steady"
+							+ " window at least 2 samples");
+		this.worker = worker;
+		this.intervalMillis = intervalMillis;
+		this.warmupMillis = Math.max(warmupMillis, 0);
+		this.window = window;
+		this.maxCv = maxCv;
+		this.samples = new Sample[16];
+		this.size = 0;
+		this.steady = -1;
+	}
+
+	/**
+	 * Starts sampling, right after {@link Worker#startTest()}
+	 */
+	public void start() {
+		this.startNanos = System.nanoTime();
+		this.lastNanos = startNanos;
+		this.last = worker.getOperationCounts();
+		this.running = true;
+		this.thread = new Thread(this, "throughput-sampler");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void run() {
+		long next = startNanos;
+		while (running) {
+			next += intervalMillis * 1000000L;
+			long wait;
+			while (running && (wait = next - System.nanoTime()) > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+				}
+			}
+			if (running)
+				sample();
+		}
+	}
+
+	/**
+	 * Stops sampling, right after {@link Worker#stopTest()}, keeping the
+	 * last partial interval, and detects the steady state
+	 */
+	public void stop() {
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		/*
+		 * A tail shorter than a tenth of the interval is too noisy to keep
+		 */
+		if (System.nanoTime() - lastNanos >= intervalMillis * 100000L)
+			sample();
+		steady = detectSteadyState();
+	}
+
+	private void sample() {
+		long now = System.nanoTime();
+		long[] counts = worker.getOperationCounts();
+		long[] delta = new long[counts.length];
+		for (int type = 0; type < counts.length; type++)
+			delta[type] = counts[type] - last[type];
+
+		if (size == samples.length)
+			samples = Arrays.copyOf(samples, size * 2);
+		samples[size++] = new Sample((now - startNanos) / 1000000L, now
+				- lastNanos, delta);
+		last = counts;
+		lastNanos = now;
+	}
+
+	private int detectSteadyState() {
+		int first = firstAfterWarmup();
+		for (int i = first; i + window <= size; i++) {
+			if (cv(i, i + window) <= maxCv)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first sample that starts after the warmup
+	 */
+	private int firstAfterWarmup() {
+		int i = 0;
+		while (i < size
+				&& samples[i].time - samples[i].durationNanos / 1000000L < warmupMillis)
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the coefficient of variation of the total rates of the
+	 *         samples in [from, to)
+	 */
+	private double cv(int from, int to) {
+		double mean = meanRate(from, to);
+		if (mean == 0)
+			return Double.POSITIVE_INFINITY;
+		double sq = 0;
+		for (int i = from; i < to; i++) {
+			double d = samples[i].totalRate() - mean;
+			sq += d * d;
+		}
+		return Math.sqrt(sq / (to - from)) / mean;
+	}
+
+	/**
+	 * @return the operations over the time of the samples in [from, to)
+	 */
+	private double meanRate(int from, int to) {
+		long ops = 0;
+		long nanos = 0;
+		for (int i = from; i < to; i++) {
+			for (int type = 0; type < samples[i].operations.length; type++)
+				ops += samples[i].operations[type];
+			nanos += samples[i].durationNanos;
+		}
+		return nanos == 0 ? 0 : ops * 1e9 / nanos;
+	}
+
+	public int getSamples() {
+		return size;
+	}
+
+	public Sample getSample(int i) {
+		return samples[i];
+	}
+
+	/**
+	 * @return the rate after the warmup, or NaN if no sample is
+	 */
+	public double getRateAfterWarmup() {
+		int first = firstAfterWarmup();
+		return first == size ? Double.NaN : meanRate(first, size);
+	}
+
+	/**
+	 * @return the first sample of the steady state, or -1 if none was
+	 *         detected
+	 */
+	public int getSteadyStart() {
+		return steady;
+	}
+
+	/**
+	 * @return the rate over the steady state, or NaN if none was detected
+	 */
+	public double getSteadyRate() {
+		return steady < 0 ? Double.NaN : meanRate(steady, size);
+	}
+
+	/**
+	 * @return the coefficient of variation over the steady state
+	 */
+	public double getSteadyCv() {
+		return steady < 0 ? Double.NaN : cv(steady, size);
+	}
+
+	private String phase(int i) {
+		if (steady >= 0 && i >= steady)
+			return "steady";
+		return i < firstAfterWarmup() ? "warmup" : "transient";
+	}
+
+	/**
+	 * Writes the time series, one row per sample with the rate in ops/s of
+	 * each operation type, as JSON if the path ends in .json and as CSV
+	 * otherwise
+	 */
+	public void write(String path) throws FileNotFoundException {
+		PrintStream out = new PrintStream(path);
+		try {
+			if (path.endsWith(".json"))
+				writeJson(out);
+			else
+				writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeCsv(PrintStream out) {
+		StringBuilder header = new StringBuilder("time_ms,interval_ms");
+		for (int type = 0; type < Worker.OP_NAMES.length; type++)
+			header.append(',').append(Worker.OP_NAMES[type]);
+		out.println(header.append(",total,phase"));
+
+		for (int i = 0; i < size; i++) {
+			Sample s = samples[i];
+			StringBuilder row = new StringBuilder();
+			row.append(s.time).append(',').append(
+					format(s.durationNanos / 1e6));
+			for (int type = 0; type < s.operations.length; type++)
+				row.append(',').append(format(s.rate(type)));
+			row.append(',').append(format(s.totalRate()));
+			out.println(row.append(',').append(phase(i)));
+		}
+	}
+
+	private void writeJson(PrintStream out) {
+		out.println("{");
+		out.println("  \"intervalMs\": " + intervalMillis + ",");
+		out.println("  \"warmupMs\": " + warmupMillis + ",");
+		out.println("  \"steadyWindow\": " + window + ",");
+		out.println("  \"steadyMaxCv\": " + maxCv + ",");
+		out.println("  \"steadyStartMs\": "
+				+ (steady < 0 ? "null" : String.valueOf(samples[steady].time
+						- samples[steady].durationNanos / 1000000L)) + ",");
+		out.println("  \"steadyRate\": " + json(getSteadyRate()) + ",");
+		out.println("  \"rateAfterWarmup\": " + json(getRateAfterWarmup())
+				+ ",");
+		out.println("  \"samples\": [");
+		for (int i = 0; i < size; i++) {
+			Sample s = samples[i];
+			StringBuilder row = new StringBuilder("    {\"timeMs\": ");
+			row.append(s.time).append(", \"intervalMs\": ").append(
+					format(s.durationNanos / 1e6));
+			for (int type = 0; type < s.operations.length; type++)
+				row.append(", \"").append(Worker.OP_NAMES[type]).append(
+						"\": ").append(format(s.rate(type)));
+			row.append(", \"total\": ").append(format(s.totalRate()));
+			row.append(", \"phase\": \"").append(phase(i)).append("\"}");
+			out.println(row.append(i + 1 < size ? "," : ""));
+		}
+		out.println("  ]");
+		out.println("}");
+	}
+
+	private static String format(double v) {
+		return String.format(Locale.ROOT, "%.1f", v);
+	}
+
+	private static String json(double v) {
+		return Double.isNaN(v) ? "null" : format(v);
+	}
+}
@@ -0,0 +1,452 @@
+package cp.articlerep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Binary trace of the operations of a workload, recorded from a live run
+ * with -Dcp.articlerep.trace.record=path or imported from a text log, and
+ * replayed by {@link Worker#spawnReplay(int, Reader, boolean)}.
+ *
+ * After a header, each record is a type byte and unsigned varints:
+ * <ul>
+ * <li>TERM: trace term id, byte length, UTF-8 bytes; defines a term before
+ * its first use</li>
+ * <li>insert: time, id, name term, author count and terms, keyword count
+ * and terms</li>
+ * <li>remove: time, id</li>
+ * <li>findByAuthor, findByKeyword: time, term count and terms</li>
+ * </ul>
+ * Times are the nanoseconds since the start of the trace, each stored as
+ * a zigzag varint delta from the previous one, since threads recording
+ * concurrently may append slightly out of order. Term ids are those of the
+ * dictionary the trace was written from, remapped on reading.
+ */
+public class Trace {
+
+	private static final int MAGIC = 0x41525452;
+	private static final int FORMAT = 1;
+
+	/*
+	 * Record types; operations are 1 + their Worker.OP_* type
+	 */
+	private static final int TERM = 0;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * One operation of a trace, with its terms as ids of the reader's
+	 * dictionary
+	 */
+	public static class Op {
+		public int type;
+		public long time;
+		public int id;
+		public String name;
+		public int[] authors = new int[0];
+		public int[] keywords = new int[0];
+		/*
+		 * Terms of a find
+		 */
+		public int[] terms = new int[0];
+
+		/**
+		 * @return the article of an insert, new on every call
+		 */
+		public Article toArticle() {
+			Article a = new Article(id, name);
+			for (int i = 0; i < authors.length; i++)
+				a.addAuthor(authors[i]);
+			for (int i = 0; i < keywords.length; i++)
+				a.addKeyword(keywords[i]);
+			return a;
+		}
+	}
+
+	/**
+	 * Appends operations to a trace file. Safe to share between threads,
+	 * each append taking the writer's lock.
+	 */
+	public static class Writer {
+
+		private final DataOutputStream out;
+		private final TermDictionary dictionary;
+		private final long start;
+		private long last;
+		private long[] defined;
+		private long records;
+
+		/**
+		 * @param dictionary
+		 *            dictionary of the term ids of the operations
+		 */
+		public Writer(String path, TermDictionary dictionary)
+				throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(path), BUFFER_SIZE));
+			this.dictionary = dictionary;
+			this.start = System.nanoTime();
+			this.last = 0;
+			this.defined = new long[16];
+			this.records = 0;
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+		}
+
+		/**
+		 * @return the time of an operation starting now
+		 */
+		public long elapsedNanos() {
+			return System.nanoTime() - start;
+		}
+
+		public synchronized void insert(long time, Article a)
+				throws IOException {
+			int name = dictionary.intern(a.getName());
+			int[] authors = a.getAuthors();
+			int[] keywords = a.getKeywords();
+			define(name);
+			define(authors);
+			define(keywords);
+
+			begin(Worker.OP_INSERT, time);
+			writeVarint(a.getId());
+			writeVarint(name);
+			writeTerms(authors);
+			writeTerms(keywords);
+		}
+
+		public synchronized void remove(long time, int id) throws IOException {
+			begin(Worker.OP_REMOVE, time);
+			writeVarint(id);
+		}
+
+		/**
+		 * @param type
+		 *            {@link Worker#OP_FIND_AUTHOR} or
+		 *            {@link Worker#OP_FIND_KEYWORD}
+		 */
+		public synchronized void find(long time, int type, int[] terms)
+				throws IOException {
+			define(terms);
+			begin(type, time);
+			writeTerms(terms);
+		}
+
+		private void define(int[] terms) throws IOException {
+			for (int i = 0; i < terms.length; i++)
+				define(terms[i]);
+		}
+
+		private void define(int term) throws IOException {
+			int word = term >>> 6;
+			if (word >= defined.length)
+				defined = Arrays.copyOf(defined, Math.max(word + 1,
+						defined.length * 2));
+			if ((defined[word] & (1L << term)) != 0)
+				return;
+			defined[word] |= 1L << term;
+
+			byte[] bytes = dictionary.term(term).getBytes(
+					StandardCharsets.UTF_8);
+			out.writeByte(TERM);
+			writeVarint(term);
+			writeVarint(bytes.length);
+			out.write(bytes);
+		}
+
+		private void begin(int type, long time) throws IOException {
+			out.writeByte(1 + type);
+			long delta = time - last;
+			writeVarint((delta << 1) ^ (delta >> 63));
+			last = time;
+			records++;
+		}
+
+		private void writeTerms(int[] terms) throws IOException {
+			writeVarint(terms.length);
+			for (int i = 0; i < terms.length; i++)
+				writeVarint(terms[i]);
+		}
+
+		private void writeVarint(long v) throws IOException {
+			while ((v & ~0x7FL) != 0) {
+				out.writeByte((int) (v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
+		}
+
+		public synchronized long getRecords() {
+			return records;
+		}
+
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Streams the operations of a trace file. Safe to share between
+	 * threads, each {@link #read(Op[])} taking a batch under the reader's
+	 * lock.
+	 */
+	public static class Reader {
+
+		private final DataInputStream in;
+		private final TermDictionary dictionary;
+		private long time;
+		private boolean eof;
+
+		/*
+		 * Trace term id to id in the dictionary
+		 */
+		private int[] remap;
+
+		/**
+		 * @param dictionary
+		 *            the terms of the trace are interned in it
+		 */
+		public Reader(String path, TermDictionary dictionary)
+				throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(path), BUFFER_SIZE));
+			this.dictionary = dictionary;
+			this.time = 0;
+			this.eof = false;
+			this.remap = new int[1024];
+
+			if (in.readInt() != MAGIC)
+				throw new IOException(path + " is not a trace");
+			if (in.readInt() != FORMAT)
+				throw new IOException(path + " has an unknown trace format");
+		}
+
+		/**
+		 * Fills the array with the next operations, reusing its Op objects
+		 * (creating them where null)
+		 *
+		 * @return the number read, 0 at the end of the trace
+		 */
+		public synchronized int read(Op[] batch) throws IOException {
+			int n = 0;
+			while (n < batch.length && !eof) {
+				int type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					eof = true;
+					break;
+				}
+
+				if (type == TERM) {
+					int id = (int) readVarint();
+					byte[] bytes = new byte[(int) readVarint()];
+					in.readFully(bytes);
+					if (id >= remap.length)
+						remap = Arrays.copyOf(remap, Math.max(id + 1,
+								remap.length * 2));
+					remap[id] = dictionary.intern(new String(bytes,
+							StandardCharsets.UTF_8));
+					continue;
+				}
+
+				if (batch[n] == null)
+					batch[n] = new Op();
+				Op op = batch[n++];
+				op.type = type - 1;
+				long delta = readVarint();
+				time += (delta >>> 1) ^ -(delta & 1);
+				op.time = time;
+
+				switch (op.type) {
+				case Worker.OP_INSERT:
+					op.id = (int) readVarint();
+					op.name = dictionary.term(remap[(int) readVarint()]);
+					op.authors = readTerms();
+					op.keywords = readTerms();
+					break;
+				case Worker.OP_REMOVE:
+					op.id = (int) readVarint();
+					break;
+				case Worker.OP_FIND_AUTHOR:
+				case Worker.OP_FIND_KEYWORD:
+					op.terms = readTerms();
+					break;
+				default:
+					throw new IOException("unknown trace record " + type);
+				}
+			}
+			return n;
+		}
+
+		private int[] readTerms() throws IOException {
+			int[] res = new int[(int) readVarint()];
+			for (int i = 0; i < res.length; i++)
+				res[i] = remap[(int) readVarint()];
+			return res;
+		}
+
+		private long readVarint() throws IOException {
+			long v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.readByte();
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		public synchronized void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts a text log to a trace. Each line is a time in microseconds
+	 * followed by one of
+	 *
+	 * <pre>
+	 * insert id name author,author,... keyword,keyword,...
+	 * remove id
+	 * findByAuthor author,author,...
+	 * findByKeyword keyword,keyword,...
+	 * </pre>
+	 *
+	 * separated by spaces. Blank lines and lines starting with # are skipped.
+	 *
+	 * @return the number of operations imported
+	 */
+	public static long importText(String textPath, String tracePath)
+			throws IOException {
+		TermDictionary dictionary = new TermDictionary();
+		Writer out = new Writer(tracePath, dictionary);
+		BufferedReader in = new BufferedReader(new FileReader(textPath));
+		int lineNumber = 0;
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				String[] f = line.split("\\s+");
+				long time = Long.parseLong(f[0]) * 1000;
+				if (f[1].equals(Worker.OP_NAMES[Worker.OP_INSERT])) {
+					Article a = new Article(Integer.parseInt(f[2]), f[3]);
+					int[] authors = terms(f, 4, dictionary);
+					int[] keywords = terms(f, 5, dictionary);
+					for (int i = 0; i < authors.length; i++)
+						a.addAuthor(authors[i]);
+					for (int i = 0; i < keywords.length; i++)
+						a.addKeyword(keywords[i]);
+					out.insert(time, a);
+				} else if (f[1].equals(Worker.OP_NAMES[Worker.OP_REMOVE])) {
+					out.remove(time, Integer.parseInt(f[2]));
+				} else if (f[1]
+						.equals(Worker.OP_NAMES[Worker.OP_FIND_AUTHOR])) {
+					out.find(time, Worker.OP_FIND_AUTHOR,
+							terms(f, 2, dictionary));
+				} else if (f[1]
+						.equals(Worker.OP_NAMES[Worker.OP_FIND_KEYWORD])) {
+					out.find(time, Worker.OP_FIND_KEYWORD,
+							terms(f, 2, dictionary));
+				} else {
+					throw new IOException("line " + lineNumber
+							+ ": unknown operation " + f[1]);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("line " + lineNumber + ": " + e, e);
+		} finally {
+			in.close();
+			out.close();
+		}
+		return out.getRecords();
+	}
+
+	private static int[] terms(String[] fields, int i,
+			TermDictionary dictionary) {
+		if (i >= fields.length || fields[i].equals("-"))
+			return new int[0];
+		String[] words = fields[i].split(",");
+		int[] res = new int[words.length];
+		for (int j = 0; j < words.length; j++)
+			res[j] = dictionary.intern(words[j]);
+		return res;
+	}
+
+	/**
+	 * Writes a trace in the text format of
+	 * {@link #importText(String, String)}
+	 */
+	public static void exportText(String tracePath, PrintStream out)
+			throws IOException {
+		TermDictionary dictionary = new TermDictionary();
+		Reader in = new Reader(tracePath, dictionary);
+		Op[] batch = new Op[256];
+		try {
+			int n;
+			while ((n = in.read(batch)) > 0) {
+				for (int i = 0; i < n; i++) {
+					Op op = batch[i];
+					StringBuilder line = new StringBuilder();
+					line.append(op.time / 1000).append(' ')
+							.append(Worker.OP_NAMES[op.type]);
+					if (op.type == Worker.OP_INSERT) {
+						line.append(' ').append(op.id).append(' ')
+								.append(op.name);
+						appendTerms(line, op.authors, dictionary);
+						appendTerms(line, op.keywords, dictionary);
+					} else if (op.type == Worker.OP_REMOVE) {
+						line.append(' ').append(op.id);
+					} else {
+						appendTerms(line, op.terms, dictionary);
+					}
+					out.println(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void appendTerms(StringBuilder line, int[] terms,
+			TermDictionary dictionary) {
+		line.append(' ');
+		if (terms.length == 0)
+			line.append('-');
+		for (int i = 0; i < terms.length; i++)
+			line.append(i > 0 ? "," : "").append(dictionary.term(terms[i]));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("import")) {
+			long n = importText(args[1], args[2]);
+			System.out.println("Imported " + n + " operations");
+		} else if (args.length == 2 && args[0].equals("export")) {
+			exportText(args[1], System.out);
+		} else {
+			System.out.println("usage: " + Trace.class.getCanonicalName()
+					+ " import log.txt out.trace | export in.trace");
+			System.exit(1);
+		}
+	}
+}
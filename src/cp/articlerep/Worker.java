@@ -1,20 +1,110 @@
 package cp.articlerep;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-import cp.articlerep.ds.Iterator;
-import cp.articlerep.ds.LinkedList;
-import cp.articlerep.ds.List;
+import cp.articlerep.ds.TermDictionary;
+import cp.articlerep.ds.WordArena;
 
 public class Worker {
 
 	public static final boolean DO_VALIDATION = Boolean.parseBoolean(System
 			.getProperty("cp.articlerep.validate"));
 
+	/*
+	 * Operation types, indexes of the latency histograms
+	 */
+	public static final int OP_INSERT = 0;
+	public static final int OP_REMOVE = 1;
+	public static final int OP_FIND_AUTHOR = 2;
+	public static final int OP_FIND_KEYWORD = 3;
+
+	public static final String[] OP_NAMES = { "insert", "remove",
+			"findByAuthor", "findByKeyword" };
+
+	/**
+	 * Latencies above it (one minute, in ns) are recorded as it
+	 */
+	private static final long MAX_LATENCY = 60L * 1000 * 1000 * 1000;
+
+	/*
+	 * Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), looked up
+	 * reflectively so the driver still runs on JDKs without virtual threads
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			/*
+			 * Throws when they are still a preview feature
+			 */
+			unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {
+			});
+		} catch (Exception e) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+
+	public static final boolean VIRTUAL_THREADS_AVAILABLE = OF_VIRTUAL != null;
+
+	/**
+	 * Seed of the random operations, from -Dcp.articlerep.seed; job i uses
+	 * seed + i, so a run with the same seed and threads generates the same
+	 * operations in each job. Null to seed from the clock.
+	 */
+	public static final Long SEED = Long.getLong("cp.articlerep.seed");
+
+	/**
+	 * Operations a replaying job takes from the trace at a time, when not
+	 * following its timing
+	 */
+	private static final int REPLAY_BATCH = 64;
+
+	/**
+	 * Distribution of the article ids inserted and removed, from
+	 * -Dcp.articlerep.dist.keys; see {@link KeyDistribution}
+	 */
+	public static final String KEY_DISTRIBUTION = System.getProperty(
+			"cp.articlerep.dist.keys", "uniform");
+
+	/**
+	 * Distribution of the authors, keywords and find lists, from
+	 * -Dcp.articlerep.dist.words
+	 */
+	public static final String WORD_DISTRIBUTION = System.getProperty(
+			"cp.articlerep.dist.words", "uniform");
+
+	/**
+	 * Operations generated before the test starts, shared between the jobs,
+	 * which then cycle through their own; 0 to generate each operation on
+	 * the measured thread instead
+	 */
+	public static final int PREGENERATE_OPS = Integer.getInteger(
+			"cp.articlerep.pregenerate.ops", 1 << 20);
+
+	/**
+	 * Articles, and word lists, pooled for the pregenerated operations,
+	 * shared between the jobs
+	 */
+	public static final int PREGENERATE_POOL = Integer.getInteger(
+			"cp.articlerep.pregenerate.pool", 1 << 16);
+
 	private int dictSize;
 	private String dictFile;
 	private int put;
@@ -24,16 +114,73 @@ public class Worker {
 	private int keywords;
 	private int findList;
 
-	private String[] wordArray;
+	private KeyDistribution keyDistribution;
+	private KeyDistribution wordDistribution;
+
+	/*
+	 * Term id of each word of the dictionary file in the repository's
+	 * dictionary, which keeps the only String of each word
+	 */
+	private int[] wordTerms;
 	private Thread[] workers;
-	private Job[] jobs;
+	private Runnable[] jobs;
+	private boolean virtual;
+
+	/*
+	 * Distinct sets of latency histograms the jobs record into, one
+	 * histogram per operation type in each
+	 */
+	private LatencyHistogram[][] latencies;
 
-	private Repository repository;
+	private ArticleStore repository;
 
 	private volatile boolean running;
 	private volatile boolean pause;
 
+	/*
+	 * Paused jobs park on resumed, and pauseTest waits on parked until all
+	 * of them did
+	 */
+	private final ReentrantLock gate = new ReentrantLock();
+	private final Condition resumed = gate.newCondition();
+	private final Condition parked = gate.newCondition();
+	private int parkedJobs;
+
 	private int totalOperations;
+	private long elapsedMillis;
+
+	/*
+	 * Operations completed by each job so far, per type, in a stripe of
+	 * COUNTER_STRIDE longs per job so that no two jobs write to the same
+	 * cache line; only the job writes its stripe
+	 */
+	private static final int COUNTER_STRIDE = 16;
+
+	/**
+	 * Duplicate words drawn in a row before a job takes the next word in
+	 * order instead
+	 */
+	private static final int MAX_REDRAWS = 32;
+	private AtomicLongArray operations;
+	private int counters;
+
+	/*
+	 * Counted down by each job when it returns
+	 */
+	private CountDownLatch finished;
+
+	private volatile Trace.Writer recorder;
+
+	/*
+	 * Counted down by each job once its operations are generated
+	 */
+	private CountDownLatch generated;
+	private long generationMillis;
+
+	/*
+	 * nanoTime at which the test started, the origin of a timed replay
+	 */
+	private volatile long startNanos;
 
 	/**
 	 * @param dictSize
@@ -47,6 +194,16 @@ public class Worker {
 	 */
 	public Worker(int dictSize, String dictFile, int put, int del, int get,
 			int authors, int keywords, int findList) {
+		this(new Repository(dictSize), dictSize, dictFile, put, del, get,
+				authors, keywords, findList);
+	}
+
+	/**
+	 * Runs the workload on an existing repository, e.g. one opened from a
+	 * checkpoint, or on another store
+	 */
+	public Worker(ArticleStore repository, int dictSize, String dictFile,
+			int put, int del, int get, int authors, int keywords, int findList) {
 		this.dictSize = dictSize;
 		this.dictFile = dictFile;
 		this.put = put;
@@ -56,62 +213,123 @@ public class Worker {
 		this.keywords = keywords;
 		this.findList = findList;
 
-		populateWordArray();
-
 		this.workers = null;
 		this.jobs = null;
 
-		this.repository = new Repository(dictSize);
+		this.repository = repository;
+
+		populateWordArray();
+
+		this.keyDistribution = KeyDistribution.parse(KEY_DISTRIBUTION,
+				dictSize);
+		this.wordDistribution = KeyDistribution.parse(WORD_DISTRIBUTION,
+				dictSize);
+
+		int words = Math.max(findList, Math.max(authors, keywords));
+		if (words > wordDistribution.support())
+			throw new IllegalArgumentException("the word distribution "
+					+ wordDistribution + " draws "
+					+ wordDistribution.support() + " words, fewer than the "
+					+ words + " distinct ones of an article or find");
 
 		this.running = true;
 		this.pause = true;
+		this.parkedJobs = 0;
 
 		this.totalOperations = 0;
 
 	}
 
-	public Repository getRepository() {
+	public ArticleStore getRepository() {
 		return this.repository;
 	}
 
-	private void populateWordArray() {
-		wordArray = new String[dictSize];
-
-		try {
-			BufferedReader br = new BufferedReader(
-					new FileReader(this.dictFile));
-			String line;
-			int i = 0;
-
-			while ((line = br.readLine()) != null && i < dictSize) {
-				wordArray[i] = line;
-				i++;
-			}
-
-			if (i < dictSize) {
-				dictSize = i;
-			}
+	public KeyDistribution getKeyDistribution() {
+		return keyDistribution;
+	}
 
-			br.close();
+	public KeyDistribution getWordDistribution() {
+		return wordDistribution;
+	}
 
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			System.exit(0);
+	/**
+	 * Loads the first dictSize words of the dictionary file, in parallel,
+	 * and interns them in order. Their Strings are only created to be
+	 * interned.
+	 */
+	private void populateWordArray() {
+		WordArena words = null;
+		try {
+			words = WordArena.load(this.dictFile, dictSize);
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(0);
 		}
 
+		if (words.size() < dictSize) {
+			dictSize = words.size();
+		}
+
+		TermDictionary dictionary = repository.getDictionary();
+		wordTerms = new int[dictSize];
+		for (int i = 0; i < dictSize; i++)
+			wordTerms[i] = dictionary.intern(words.word(i));
 	}
 
 	private synchronized void updateOperations(int operations) {
 		this.totalOperations += operations;
 	}
 
+	/**
+	 * @return a stripe of the operation counters, for a new job
+	 */
+	private int newCounter() {
+		return (counters++) * COUNTER_STRIDE;
+	}
+
+	/**
+	 * Counts an operation of the job owning the stripe at slot
+	 */
+	private void countOperation(int slot, int type) {
+		operations.lazySet(slot + type, operations.get(slot + type) + 1);
+	}
+
+	/**
+	 * Sums the counters of every job, which can be read while the test
+	 * runs, unlike {@link #getTotalOperations()}
+	 * 
+	 * @return the operations completed so far, per OP_* type
+	 */
+	public long[] getOperationCounts() {
+		long[] res = new long[OP_NAMES.length];
+		AtomicLongArray ops = operations;
+		if (ops == null)
+			return res;
+		for (int i = 0; i < ops.length(); i += COUNTER_STRIDE) {
+			for (int type = 0; type < res.length; type++)
+				res[type] += ops.get(i + type);
+		}
+		return res;
+	}
+
 	public synchronized int getTotalOperations() {
 		return totalOperations;
 	}
 
+	/**
+	 * Duration of the test, set by the driver once it stopped
+	 */
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return the operations per second over the test
+	 */
+	public double getOperationRate() {
+		return getTotalOperations() / (elapsedMillis / 1000.0);
+	}
+
 	public class Job implements Runnable {
 
 		private int put;
@@ -119,146 +337,578 @@ public class Worker {
 		private int get;
 		private int count;
 		private Random rand;
-		private volatile boolean paused;
+		private LatencyHistogram[] latencies;
+		private boolean sharedLatencies;
+		private final int counter;
+
+		/*
+		 * Pregenerated operations, cycled through from next: the type of
+		 * each, and the article pool slot of an insert, the id of a remove
+		 * or the list pool slot of a find
+		 */
+		private int streamOps;
+		private int poolSize;
+		private byte[] opTypes;
+		private int[] opArgs;
+		private Article[] articlePool;
+		private int[][] listPool;
+		private int next;
+
+		/*
+		 * Arguments of the current operation
+		 */
+		private Article article;
+		private int id;
+		private int[] list;
 
 		/**
 		 * @param put percentage of insert article operations
 		 * @param del percentage of remove article operations
 		 * @param get percentage of find article operations, which is 
 		 * 			  shared by findByAuthor and findByKeyword
+		 * @param seed
+		 *            of the random operations
+		 * @param latencies
+		 *            histograms to record into, one per operation type
+		 * @param shared
+		 *            whether other jobs record into the same histograms
 		 */
-		public Job(int put, int del, int get) {
+		public Job(int put, int del, int get, long seed,
+				LatencyHistogram[] latencies, boolean shared) {
+			this(put, del, get, seed, latencies, shared, 0, 0);
+		}
+
+		/**
+		 * @param streamOps
+		 *            operations to generate before the test starts, or 0 to
+		 *            generate them as the job runs
+		 * @param poolSize
+		 *            distinct articles (and word lists) they use
+		 */
+		public Job(int put, int del, int get, long seed,
+				LatencyHistogram[] latencies, boolean shared, int streamOps,
+				int poolSize) {
 			this.put = put;
 			this.del = del;
 			this.get = get;
 			this.count = 0;
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-			}
-			this.rand = new Random(System.nanoTime());
-			paused = true;
+			this.rand = new Random(seed);
+			this.latencies = latencies;
+			this.sharedLatencies = shared;
+			this.counter = newCounter();
+			this.streamOps = streamOps;
+			this.poolSize = Math.max(poolSize, 1);
+			this.next = 0;
 		}
 
-		private boolean contains(List<String> list, String word) {
-			Iterator<String> it = list.iterator();
-			while (it.hasNext()) {
-				if (it.next().compareTo(word) == 0)
+		private boolean contains(int[] list, int n, int word) {
+			for (int i = 0; i < n; i++) {
+				if (list[i] == word)
 					return true;
 			}
 			return false;
 		}
 
 		private Article generateArticle() {
-			int i = rand.nextInt(dictSize);
-			Article a = new Article(i, wordArray[i]);
+			int i = keyDistribution.next(rand);
+			keyDistribution.observe(i);
+			wordDistribution.observe(i);
+			Article a = new Article(i, repository.getDictionary().term(
+					wordTerms[i]));
 
 			int nauthors = authors;
+			int p = 0;
+			int rejected = 0;
 			while (nauthors > 0) {
-				int p = rand.nextInt(dictSize);
-				String word = wordArray[p];
-				if (!contains(a.getAuthors(), word)) {
+				p = nextWord(p, rejected);
+				int word = wordTerms[p];
+				if (!a.hasAuthor(word)) {
 					a.addAuthor(word);
 					nauthors--;
+					rejected = 0;
+				} else {
+					rejected++;
 				}
 			}
 
 			int nkeywords = keywords;
+			rejected = 0;
 			while (nkeywords > 0) {
-				int p = rand.nextInt(dictSize);
-				String word = wordArray[p];
-				if (!contains(a.getKeywords(), word)) {
+				p = nextWord(p, rejected);
+				int word = wordTerms[p];
+				if (!a.hasKeyword(word)) {
 					a.addKeyword(word);
 					nkeywords--;
+					rejected = 0;
+				} else {
+					rejected++;
 				}
 			}
 
 			return a;
 		}
 
-		private List<String> generateListOfWords() {
-			List<String> res = new LinkedList<String>();
-			int nwords = findList;
+		/**
+		 * Draws the position of a word, or takes the one after the last after
+		 * MAX_REDRAWS draws in a row were rejected as duplicates, since a
+		 * skewed distribution may keep drawing the same few words
+		 */
+		private int nextWord(int last, int rejected) {
+			if (rejected < MAX_REDRAWS)
+				return wordDistribution.next(rand);
+			return (last + 1) % wordTerms.length;
+		}
 
-			while (nwords > 0) {
-				int p = rand.nextInt(dictSize);
-				String word = wordArray[p];
-				if (!contains(res, word)) {
-					res.add(word);
-					nwords--;
+		private int[] generateListOfWords() {
+			int[] res = new int[findList];
+			int nwords = 0;
+			int p = 0;
+			int rejected = 0;
+
+			while (nwords < findList) {
+				p = nextWord(p, rejected);
+				int word = wordTerms[p];
+				if (!contains(res, nwords, word)) {
+					res[nwords] = word;
+					nwords++;
+					rejected = 0;
+				} else {
+					rejected++;
 				}
 			}
 
 			return res;
 		}
 
-		public void run() {
+		private int generateType() {
+			int op = rand.nextInt(100);
+			if (op < put)
+				return OP_INSERT;
+			if (op < put + del)
+				return OP_REMOVE;
+			if (op < put + del + (get / 2))
+				return OP_FIND_AUTHOR;
+			return OP_FIND_KEYWORD;
+		}
 
-			while (pause) {
-				Thread.yield();
+		/**
+		 * Generates the operations of the stream. Inserts take the articles
+		 * of the pool in turn, so once it wraps around they insert the same
+		 * objects again, which the repository allows once removed; finds do
+		 * the same with the word lists.
+		 */
+		private void pregenerate() {
+			opTypes = new byte[streamOps];
+			opArgs = new int[streamOps];
+			articlePool = new Article[Math.min(poolSize, streamOps)];
+			listPool = new int[Math.min(poolSize, streamOps)][];
+			int articles = 0;
+			int lists = 0;
+
+			for (int i = 0; i < streamOps; i++) {
+				int type = generateType();
+				int arg;
+				if (type == OP_INSERT) {
+					arg = articles++ % articlePool.length;
+					if (articlePool[arg] == null)
+						articlePool[arg] = generateArticle();
+				} else if (type == OP_REMOVE) {
+					arg = keyDistribution.next(rand);
+				} else {
+					arg = lists++ % listPool.length;
+					if (listPool[arg] == null)
+						listPool[arg] = generateListOfWords();
+				}
+				opTypes[i] = (byte) type;
+				opArgs[i] = arg;
 			}
+		}
 
-			paused = true;
+		/**
+		 * Sets the arguments of the next operation, taken from the stream
+		 * if there is one and generated otherwise
+		 * 
+		 * @return its type
+		 */
+		private int nextOperation() {
+			int type;
+			if (opTypes != null) {
+				type = opTypes[next];
+				int arg = opArgs[next];
+				next = next + 1 == opTypes.length ? 0 : next + 1;
+
+				if (type == OP_INSERT)
+					article = articlePool[arg];
+				else if (type == OP_REMOVE)
+					id = arg;
+				else
+					list = listPool[arg];
+			} else {
+				type = generateType();
+				if (type == OP_INSERT)
+					article = generateArticle();
+				else if (type == OP_REMOVE)
+					id = keyDistribution.next(rand);
+				else
+					list = generateListOfWords();
+			}
+			return type;
+		}
 
-			while (running) {
+		/**
+		 * A job that fails, e.g. on a network error of a remote store, still
+		 * counts as finished, so that pauseTest and awaitJobs do not wait
+		 * for it
+		 */
+		public void run() {
 
-				if (DO_VALIDATION) {
-					boolean done = false;
+			try {
+				if (streamOps > 0)
+					pregenerate();
+			} finally {
+				generated.countDown();
+			}
 
-					while (pause) {
-						if (!done) {
-							System.out.println("Thread "
-									+ Thread.currentThread().getId()
-									+ ": Stoped");
-							paused = true;
-							done = true;
-						}
+			try {
+				waitWhilePaused(false);
+
+				while (running) {
+
+					if (pause)
+						waitWhilePaused(DO_VALIDATION);
+
+					/*
+					 * Only the repository call is timed, not the generation
+					 * of its arguments
+					 */
+					int type = nextOperation();
+					record(type, article, id, list);
+					long start = System.nanoTime();
+
+					switch (type) {
+					case OP_INSERT:
+						repository.insertArticle(article);
+						break;
+					case OP_REMOVE:
+						repository.removeArticle(id);
+						break;
+					case OP_FIND_AUTHOR:
+						repository.findArticleByAuthor(list);
+						break;
+					default:
+						repository.findArticleByKeyword(list);
+						break;
 					}
-					paused = false;
+
+					recordLatency(latencies, sharedLatencies, type, start);
+					countOperation(counter, type);
+					count++;
+
 				}
+			} finally {
+				updateOperations(count);
+				jobFinished();
+			}
+
+		}
 
-				int op = rand.nextInt(100);
+	}
 
+	/**
+	 * Replays the operations of a trace, taking them from a reader shared
+	 * by all the replaying jobs, until it is exhausted
+	 */
+	public class ReplayJob implements Runnable {
+
+		private final Trace.Reader trace;
+		private final boolean timed;
+		private final LatencyHistogram[] latencies;
+		private final boolean sharedLatencies;
+		private final int counter;
+		private long origin;
+		private int count;
 
-				if (op < put) {
-					Article a = generateArticle();
-					repository.insertArticle(a);
-				} else if (op < put + del) {
-					int id = rand.nextInt(dictSize);
-					repository.removeArticle(id);
-				} else if (op < put + del + (get / 2)) {
-					List<String> list = generateListOfWords();
-					repository.findArticleByAuthor(list);
-				} else {
-					List<String> list = generateListOfWords();
-					repository.findArticleByKeyword(list);
+		/**
+		 * @param timed
+		 *            whether to run each operation at its time in the trace,
+		 *            counted from the start of the test, rather than as fast
+		 *            as possible
+		 */
+		public ReplayJob(Trace.Reader trace, boolean timed,
+				LatencyHistogram[] latencies, boolean shared) {
+			this.trace = trace;
+			this.timed = timed;
+			this.origin = 0;
+			this.latencies = latencies;
+			this.sharedLatencies = shared;
+			this.counter = newCounter();
+			this.count = 0;
+		}
+
+		public void run() {
+			Trace.Op[] batch = new Trace.Op[timed ? 1 : REPLAY_BATCH];
+
+			try {
+				waitWhilePaused(false);
+				origin = startNanos;
+
+				int n;
+				while (running && (n = trace.read(batch)) > 0) {
+					for (int i = 0; i < n && running; i++) {
+						if (pause)
+							waitWhilePaused(DO_VALIDATION);
+						execute(batch[i]);
+						count++;
+					}
 				}
+			} catch (IOException e) {
+				System.out.println("Error: cannot read the trace: " + e);
+			} finally {
+				updateOperations(count);
+				jobFinished();
+			}
+		}
 
-				count++;
+		/**
+		 * When timed, the latency is measured from the time the operation
+		 * was due, so falling behind the trace shows up in it
+		 */
+		private void execute(Trace.Op op) {
+			long start;
+			if (timed) {
+				start = origin + op.time;
+				long wait;
+				while ((wait = start - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+			} else {
+				start = System.nanoTime();
+			}
 
+			switch (op.type) {
+			case OP_INSERT:
+				repository.insertArticle(op.toArticle());
+				break;
+			case OP_REMOVE:
+				repository.removeArticle(op.id);
+				break;
+			case OP_FIND_AUTHOR:
+				repository.findArticleByAuthor(op.terms);
+				break;
+			default:
+				repository.findArticleByKeyword(op.terms);
+				break;
 			}
 
-			updateOperations(count);
+			recordLatency(latencies, sharedLatencies, op.type, start);
+			countOperation(counter, op.type);
+		}
+	}
+
+	private static void recordLatency(LatencyHistogram[] latencies,
+			boolean shared, int type, long start) {
+		if (shared)
+			latencies[type].recordConcurrently(System.nanoTime() - start);
+		else
+			latencies[type].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records the operations of the jobs to a trace from now on
+	 */
+	public void recordTo(Trace.Writer writer) {
+		this.recorder = writer;
+	}
+
+	/**
+	 * Appends an operation to the trace being recorded, if any; recording
+	 * stops at the first write error
+	 */
+	private void record(int type, Article a, int id, int[] terms) {
+		Trace.Writer w = recorder;
+		if (w == null)
+			return;
+		try {
+			long time = w.elapsedNanos();
+			if (type == OP_INSERT)
+				w.insert(time, a);
+			else if (type == OP_REMOVE)
+				w.remove(time, id);
+			else
+				w.find(time, type, terms);
+		} catch (IOException e) {
+			recorder = null;
+			System.out.println("Error: cannot record the trace: " + e);
+		}
+	}
 
+	private static Thread newVirtualThread(Runnable job) {
+		try {
+			return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), job);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
 		}
+	}
 
+	/**
+	 * @return whether the jobs run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	private static LatencyHistogram[] newLatencies() {
+		LatencyHistogram[] res = new LatencyHistogram[OP_NAMES.length];
+		for (int i = 0; i < res.length; i++)
+			res[i] = new LatencyHistogram(MAX_LATENCY, 3);
+		return res;
+	}
+
+	/**
+	 * Parks the calling job until the test is resumed, counting it as parked
+	 * meanwhile
+	 */
+	private void waitWhilePaused(boolean report) {
+		gate.lock();
+		try {
+			if (!pause)
+				return;
+
+			if (report)
+				System.out.println("Thread " + Thread.currentThread().getId()
+						+ ": Stoped");
+
+			parkedJobs++;
+			parked.signalAll();
+			while (pause)
+				resumed.awaitUninterruptibly();
+			parkedJobs--;
+		} finally {
+			gate.unlock();
+		}
 	}
 
 	public void spawnThread(int nthreads) {
-		workers = new Thread[nthreads];
-		jobs = new Job[nthreads];
+		spawnThread(nthreads, false);
+	}
 
+	/**
+	 * @param virtual
+	 *            runs each job on a virtual thread, if the JDK has them;
+	 *            otherwise falls back to platform threads
+	 */
+	public void spawnThread(int nthreads, boolean virtual) {
+		int sets = prepare(nthreads, virtual);
+		int ops = PREGENERATE_OPS > 0 ? Math.max(1024, PREGENERATE_OPS
+				/ nthreads) : 0;
+		int pool = Math.max(64, PREGENERATE_POOL / nthreads);
 		for (int i = 0; i < nthreads; i++) {
-			jobs[i] = new Job(put, del, get);
-			workers[i] = new Thread(jobs[i]);
+			long seed = SEED != null ? SEED + i : System.nanoTime();
+			jobs[i] = new Job(put, del, get, seed, latencies[i % sets],
+					this.virtual, ops, pool);
 		}
 
-		for (int i = 0; i < nthreads; i++) {
+		/*
+		 * The jobs generate their operations in parallel, before parking
+		 */
+		long start = System.currentTimeMillis();
+		start();
+		try {
+			generated.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		generationMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * @return the time spawnThread took to generate the operations
+	 */
+	public long getGenerationMillis() {
+		return generationMillis;
+	}
+
+	/**
+	 * Spawns jobs that replay a trace instead of generating operations.
+	 * They finish when it is exhausted, see {@link #awaitJobs(long)}.
+	 * 
+	 * @param timed
+	 *            whether to follow the timing of the trace, from the start
+	 *            of the test; otherwise it is replayed at full speed
+	 */
+	public void spawnReplay(int nthreads, Trace.Reader trace, boolean timed) {
+		spawnReplay(nthreads, false, trace, timed);
+	}
+
+	public void spawnReplay(int nthreads, boolean virtual, Trace.Reader trace,
+			boolean timed) {
+		int sets = prepare(nthreads, virtual);
+		for (int i = 0; i < nthreads; i++)
+			jobs[i] = new ReplayJob(trace, timed, latencies[i % sets],
+					this.virtual);
+		start();
+	}
+
+	/**
+	 * Allocates the jobs and their latency histograms
+	 * 
+	 * @return the number of histogram sets
+	 */
+	private int prepare(int nthreads, boolean virtual) {
+		workers = new Thread[nthreads];
+		jobs = new Runnable[nthreads];
+		finished = new CountDownLatch(nthreads);
+		generated = new CountDownLatch(nthreads);
+		operations = new AtomicLongArray(nthreads * COUNTER_STRIDE);
+		counters = 0;
+		this.virtual = virtual && VIRTUAL_THREADS_AVAILABLE;
+
+		/*
+		 * Virtual jobs can number in the tens of thousands, too many for a
+		 * set of histograms each, so they share one set per processor
+		 */
+		int sets = this.virtual ? Math.min(nthreads, Runtime.getRuntime()
+				.availableProcessors()) : nthreads;
+		latencies = new LatencyHistogram[sets][];
+		for (int i = 0; i < sets; i++)
+			latencies[i] = newLatencies();
+		return sets;
+	}
+
+	private void start() {
+		for (int i = 0; i < jobs.length; i++) {
+			workers[i] = this.virtual ? newVirtualThread(jobs[i])
+					: new Thread(jobs[i]);
+		}
+
+		for (int i = 0; i < jobs.length; i++) {
 			workers[i].start();
 		}
 
 	}
 
+	/**
+	 * Counts a job as finished, which pauseTest no longer waits for
+	 */
+	private void jobFinished() {
+		gate.lock();
+		try {
+			finished.countDown();
+			parked.signalAll();
+		} finally {
+			gate.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for every job to return, which replaying
+	 * jobs do once their trace is exhausted
+	 * 
+	 * @return whether they all did
+	 */
+	public boolean awaitJobs(long timeoutMillis) throws InterruptedException {
+		return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
 	public void joinThreads() {
 		for (int i = 0; i < workers.length; i++) {
 			try {
@@ -269,35 +919,52 @@ public class Worker {
 		}
 	}
 
+	/**
+	 * Merges the latencies of every thread for one operation type; only
+	 * meaningful after {@link #joinThreads()}
+	 *
+	 * @param type
+	 *            one of the OP_* constants
+	 */
+	public LatencyHistogram getLatencies(int type) {
+		LatencyHistogram res = new LatencyHistogram(MAX_LATENCY, 3);
+		for (int i = 0; i < latencies.length; i++)
+			res.add(latencies[i][type]);
+		return res;
+	}
+
 	public void startTest() {
 		this.running = true;
-		this.pause = false;
+		this.startNanos = System.nanoTime();
+		restartTest();
 	}
 
 	public void stopTest() {
 		this.running = false;
-		this.pause = false;
+		restartTest();
 	}
 
+	/**
+	 * Returns once every job is parked
+	 */
 	public void pauseTest() {
-		this.pause = true;
-
-		while (true) {
-			boolean ok = true;
-
-			for (int i = 0; i < jobs.length; i++)
-				if (!jobs[i].paused) {
-					ok = false;
-					break;
-				}
-
-			if (ok)
-				break;
+		gate.lock();
+		try {
+			this.pause = true;
+			while (parkedJobs < finished.getCount())
+				parked.awaitUninterruptibly();
+		} finally {
+			gate.unlock();
 		}
-
 	}
 
 	public void restartTest() {
-		this.pause = false;
+		gate.lock();
+		try {
+			this.pause = false;
+			resumed.signalAll();
+		} finally {
+			gate.unlock();
+		}
 	}
 }
@@ -0,0 +1,492 @@
+package cp.articlerep;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import cp.articlerep.ds.TermDictionary;
+
+/**
+ * Append-only log of the mutations of a {@link Repository}, replayed to
+ * recover it after a restart.
+ *
+ * Each record is [length][type][payload][crc32], where length counts the
+ * type and payload and the CRC covers them. Term ids are only meaningful
+ * within the process that assigned them, so the first time a term is used
+ * by a session its string is logged in a TERM record, and replay maps the
+ * ids of the log to the ids of the repository it rebuilds.
+ *
+ * Records are appended to an in-memory buffer. Writing it out uses group
+ * commit: the first thread to need a flush becomes the leader, swaps in the
+ * spare buffer and writes the full one, while later writers keep appending
+ * to the other buffer and wait for the leader. A single fsync then covers
+ * every record appended before it started. With {@link Mode#SYNC} a
+ * mutation returns once its record is on disk; with {@link Mode#ASYNC} a
+ * background thread writes records out every millisecond without forcing
+ * them; with {@link Mode#INTERVAL} it writes and forces them every interval.
+ *
+ * A failed write loses the records of its buffer, so once one fails every
+ * later flush, commit and close throws, rather than leave a gap in the log.
+ */
+public class WriteAheadLog {
+
+	public enum Mode {
+		SYNC, ASYNC, INTERVAL
+	}
+
+	/**
+	 * Receives the records of the log, in order, during {@link #replay}
+	 */
+	public interface Handler {
+		public void term(int id, String term);
+
+		public void insert(int id, String name, int[] authors, int[] keywords);
+
+		public void remove(int id);
+	}
+
+	private static final byte TERM = 1;
+	private static final byte INSERT = 2;
+	private static final byte REMOVE = 3;
+
+	/**
+	 * Larger lengths can only come from a corrupt record
+	 */
+	private static final int MAX_RECORD = 1 << 26;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final Mode mode;
+	private final long intervalMillis;
+
+	/*
+	 * Guarded by this: records are appended to current, while the leader of
+	 * a flush writes out the other buffer, taken from spare
+	 */
+	private ByteBuffer current;
+	private ByteBuffer spare;
+	private boolean flushing;
+	private final CRC32 crc;
+	private long[] loggedTerms;
+
+	/*
+	 * Log offsets: every record appended ends before written, and those
+	 * ending before durable have been flushed
+	 */
+	private long written;
+	private long durable;
+
+	private long records;
+	private long flushes;
+
+	private Thread flusher;
+	private volatile boolean closed;
+
+	/*
+	 * First write or force that failed, null while none did
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Opens (or creates) the log file. Its records must be replayed with
+	 * {@link #replay(Handler)} before appending.
+	 *
+	 * @param intervalMillis
+	 *            period of the flushes with {@link Mode#INTERVAL}
+	 */
+	public WriteAheadLog(String path, Mode mode, long intervalMillis)
+			throws IOException {
+		this.channel = FileChannel.open(Paths.get(path),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.mode = mode;
+		this.intervalMillis = Math.max(intervalMillis, 1);
+		this.current = ByteBuffer.allocate(BUFFER_SIZE);
+		this.spare = ByteBuffer.allocate(BUFFER_SIZE);
+		this.flushing = false;
+		this.crc = new CRC32();
+		this.loggedTerms = new long[16];
+		this.written = 0;
+		this.durable = 0;
+		this.records = 0;
+		this.flushes = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * Opens the log configured by -Dcp.articlerep.wal=path, with the mode
+	 * from -Dcp.articlerep.wal.mode (sync, async or interval; sync by
+	 * default) and the period in ms from -Dcp.articlerep.wal.interval
+	 *
+	 * @return the log, or null if none is configured
+	 */
+	public static WriteAheadLog fromProperties() throws IOException {
+		String path = System.getProperty("cp.articlerep.wal");
+		if (path == null)
+			return null;
+
+		Mode mode = Mode.valueOf(System.getProperty("cp.articlerep.wal.mode",
+				"sync").toUpperCase());
+		long interval = Long.getLong("cp.articlerep.wal.interval", 10);
+		return new WriteAheadLog(path, mode, interval);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Reads the log from the start, passing each record to the handler. The
+	 * log is cut at the first incomplete or corrupt record, which can only
+	 * be the tail of a write that did not finish, and later appends go after
+	 * the last good one.
+	 *
+	 * @return the number of records replayed
+	 */
+	public synchronized long replay(Handler handler) throws IOException {
+		channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel), BUFFER_SIZE));
+
+		long end = 0;
+		long count = 0;
+		CRC32 check = new CRC32();
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > MAX_RECORD)
+					break;
+
+				byte[] record = new byte[length];
+				in.readFully(record);
+				int sum = in.readInt();
+
+				check.reset();
+				check.update(record, 0, length);
+				if ((int) check.getValue() != sum)
+					break;
+
+				apply(ByteBuffer.wrap(record), handler);
+				end += 4 + length + 4;
+				count++;
+			}
+		} catch (EOFException e) {
+			/*
+			 * The log ends here, possibly in the middle of a record
+			 */
+		}
+
+		channel.truncate(end);
+		channel.position(end);
+		written = end;
+		durable = end;
+		return count;
+	}
+
+	private static void apply(ByteBuffer record, Handler handler) {
+		byte type = record.get();
+		switch (type) {
+		case TERM: {
+			int id = record.getInt();
+			handler.term(id, getString(record));
+			break;
+		}
+		case INSERT: {
+			int id = record.getInt();
+			String name = getString(record);
+			int[] authors = getInts(record);
+			int[] keywords = getInts(record);
+			handler.insert(id, name, authors, keywords);
+			break;
+		}
+		case REMOVE:
+			handler.remove(record.getInt());
+			break;
+		default:
+			throw new IllegalStateException("unknown record type " + type);
+		}
+	}
+
+	private static String getString(ByteBuffer record) {
+		byte[] bytes = new byte[record.getInt()];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int[] getInts(ByteBuffer record) {
+		int[] res = new int[record.getInt()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = record.getInt();
+		return res;
+	}
+
+	/**
+	 * Starts the background flushes of the ASYNC and INTERVAL modes; called
+	 * once the log was replayed
+	 */
+	public void start() {
+		if (mode == Mode.SYNC)
+			return;
+
+		final long period = mode == Mode.ASYNC ? 1 : intervalMillis;
+		final boolean force = mode == Mode.INTERVAL;
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!closed) {
+						Thread.sleep(period);
+						flush(currentEnd(), force);
+					}
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					/*
+					 * Kept in failure, and thrown by the next commit
+					 */
+				}
+			}
+		}, "wal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Appends the record of an inserted article, preceded by the TERM
+	 * records of the terms it is the first to use. Called with the
+	 * article's locks held, so records of the same id follow the order of
+	 * the mutations.
+	 *
+	 * @return the offset to pass to {@link #commit(long)}
+	 */
+	public synchronized long logInsert(Article a, TermDictionary dictionary) {
+		int[] authors = a.getAuthors();
+		int[] keywords = a.getKeywords();
+		for (int i = 0; i < authors.length; i++)
+			logTerm(authors[i], dictionary);
+		for (int i = 0; i < keywords.length; i++)
+			logTerm(keywords[i], dictionary);
+
+		byte[] name = a.getName().getBytes(StandardCharsets.UTF_8);
+		int start = begin(1 + 4 + 4 + name.length + 4 + 4 * authors.length
+				+ 4 + 4 * keywords.length, INSERT);
+		current.putInt(a.getId());
+		current.putInt(name.length);
+		current.put(name);
+		putInts(authors);
+		putInts(keywords);
+		return end(start);
+	}
+
+	/**
+	 * Appends the record of a removed article, like
+	 * {@link #logInsert(Article, TermDictionary)}
+	 */
+	public synchronized long logRemove(int id) {
+		int start = begin(1 + 4, REMOVE);
+		current.putInt(id);
+		return end(start);
+	}
+
+	private void logTerm(int id, TermDictionary dictionary) {
+		int word = id >>> 6;
+		if (word >= loggedTerms.length)
+			loggedTerms = Arrays.copyOf(loggedTerms, Math.max(word + 1,
+					loggedTerms.length * 2));
+		if ((loggedTerms[word] & (1L << id)) != 0)
+			return;
+		loggedTerms[word] |= 1L << id;
+
+		byte[] term = dictionary.term(id).getBytes(StandardCharsets.UTF_8);
+		int start = begin(1 + 4 + 4 + term.length, TERM);
+		current.putInt(id);
+		current.putInt(term.length);
+		current.put(term);
+		end(start);
+	}
+
+	private void putInts(int[] values) {
+		current.putInt(values.length);
+		for (int i = 0; i < values.length; i++)
+			current.putInt(values[i]);
+	}
+
+	/**
+	 * Makes room for a record whose type and payload take length bytes and
+	 * writes its header
+	 *
+	 * @return the position of the record in the buffer
+	 */
+	private int begin(int length, byte type) {
+		int needed = 4 + length + 4;
+		if (current.remaining() < needed) {
+			ByteBuffer b = ByteBuffer.allocate(Math.max(current.capacity() * 2,
+					current.position() + needed));
+			current.flip();
+			b.put(current);
+			current = b;
+		}
+		int start = current.position();
+		current.putInt(length);
+		current.put(type);
+		return start;
+	}
+
+	private long end(int start) {
+		int length = current.position() - start - 4;
+		crc.reset();
+		crc.update(current.array(), start + 4, length);
+		current.putInt((int) crc.getValue());
+
+		records++;
+		written += 4 + length + 4;
+		return written;
+	}
+
+	private synchronized long currentEnd() {
+		return written;
+	}
+
+	/**
+	 * Waits for the record ending at the offset to be on disk, in SYNC mode;
+	 * otherwise returns at once, leaving it to the background flushes,
+	 * unless one of them failed. Must be called without holding any
+	 * repository lock.
+	 */
+	public void commit(long offset) {
+		try {
+			if (mode == Mode.SYNC)
+				flush(offset, true);
+			else
+				checkFailure();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		IOException e = failure;
+		if (e != null)
+			throw new IOException("an earlier write of the log failed", e);
+	}
+
+	/**
+	 * Returns once the log is flushed up to the offset, leading a flush of
+	 * everything appended so far if no other thread is doing one
+	 */
+	private void flush(long offset, boolean force) throws IOException {
+		ByteBuffer buffer;
+		long target;
+
+		synchronized (this) {
+			while (true) {
+				if (durable >= offset)
+					return;
+				checkFailure();
+				if (!flushing)
+					break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted waiting for the log");
+				}
+			}
+
+			flushing = true;
+			buffer = current;
+			current = spare;
+			spare = null;
+			target = written;
+		}
+
+		boolean done = false;
+		try {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			if (force)
+				channel.force(false);
+			done = true;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			synchronized (this) {
+				buffer.clear();
+				spare = buffer;
+				if (done)
+					durable = target;
+				flushing = false;
+				flushes++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Empties the log, once a checkpoint covers all of its records. No
+	 * mutation may run concurrently.
+	 */
+	public void truncate() throws IOException {
+		flush(currentEnd(), false);
+		synchronized (this) {
+			while (flushing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted waiting for the log");
+				}
+			}
+			current.clear();
+			channel.truncate(0);
+			channel.position(0);
+			channel.force(true);
+			written = 0;
+			durable = 0;
+			Arrays.fill(loggedTerms, 0);
+		}
+	}
+
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Flushes and forces every record appended, then closes the file
+	 */
+	public void close() throws IOException {
+		closed = true;
+		if (flusher != null) {
+			/*
+			 * Not interrupted, since that would close the channel under a
+			 * write; it stops within one period
+			 */
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			flush(currentEnd(), true);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -2,52 +2,168 @@ package cp.articlerep.ds;
 
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Chained hash table protected by striped locks. Callers hold the lock of a
+ * key (see {@link #getLock(Comparable)}) while calling put, remove or get on
+ * it.
+ *
+ * The table doubles when the number of entries goes over the load factor.
+ * Rehashing is incremental: writers move a few buckets from the old table to
+ * the new one after each put or remove, and a moved bucket is replaced by a
+ * forwarding node so lookups keep working on both tables meanwhile. Bucket
+ * and table sizes are powers of two and the table never has fewer buckets
+ * than stripes, so all the keys of a bucket (and of the two buckets it
+ * splits into) share a single stripe, whose write lock is enough to move it.
+ *
  * @author Ricardo Dias
  */
 public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 
-	private ReentrantReadWriteLock[] locks;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/**
+	 * Number of buckets a writer tries to move on each put or remove while a
+	 * resize is in progress
+	 */
+	private static final int TRANSFER_STEP = 4;
+
+	/**
+	 * A power of two multiple of the number of cores, enough to keep writers
+	 * of different keys from colliding without paying a lock per bucket
+	 */
+	public static final int DEFAULT_STRIPES = powerOfTwo(Runtime.getRuntime()
+			.availableProcessors() * 16);
+
+	private VersionedLock[] locks;
 
 	private static class Node {
-		public Object key;
+		public final int hash;
+		public final Object key;
 		public Object value;
 		public Node next;
 
-		public Node(Object key, Object value, Node next) {
+		public Node(int hash, Object key, Object value, Node next) {
+			this.hash = hash;
 			this.key = key;
 			this.value = value;
 			this.next = next;
 		}
 	}
 
-	private Node[] table;
+	/**
+	 * Placed in a bucket of the old table once it was moved to the new one
+	 */
+	private static class Forward extends Node {
+		public final Node[] nextTable;
+
+		public Forward(Node[] nextTable) {
+			super(0, null, null, null);
+			this.nextTable = nextTable;
+		}
+	}
+
+	private volatile Node[] table;
+
+	/**
+	 * Not null while a resize is in progress
+	 */
+	private volatile Forward forward;
+
+	/**
+	 * Next bucket of the old table to be moved
+	 */
+	private final AtomicInteger transferIndex;
+
+	private final LongAdder count;
 
 	public HashTable() {
 		this(1000);
 	}
 
 	public HashTable(int size) {
+		this(size, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param size
+	 *            initial number of buckets
+	 * @param stripes
+	 *            number of locks, rounded up to a power of two; the table
+	 *            never has fewer buckets than locks
+	 */
+	public HashTable(int size, int stripes) {
+		stripes = powerOfTwo(stripes);
+		size = Math.max(powerOfTwo(size), stripes);
 		this.table = new Node[size];
+		this.forward = null;
+		this.transferIndex = new AtomicInteger();
+		this.count = new LongAdder();
+
+		locks = new VersionedLock[stripes];
+		for (int i = 0; i < stripes; i++)
+			locks[i] = new VersionedLock(true);
+	}
+
+	/**
+	 * @return the number of locks the keys are spread over
+	 */
+	@Override
+	public int getStripes() {
+		return locks.length;
+	}
+
+	@Override
+	public VersionedLock getStripeLock(int stripe) {
+		return locks[stripe];
+	}
+
+	private static int powerOfTwo(int size) {
+		int n = 1;
+		while (n < size && n < (1 << 30))
+			n <<= 1;
+		return n;
+	}
+
+	/**
+	 * Spreads the higher bits of the hash code, since both table and stripe
+	 * positions only use the lower ones
+	 */
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & 0x7fffffff;
+	}
 
-		locks = new ReentrantReadWriteLock[size];
-		for (int i = 0; i < size; i++)
-			locks[i] = new ReentrantReadWriteLock(true);
+	private int calcLockPos(int hash) {
+		return hash & (this.locks.length - 1);
 	}
 
-	private int calcTablePos(K key) {
-		return Math.abs(key.hashCode()) % this.table.length;
+	/**
+	 * @return the table whose bucket currently holds the given hash,
+	 *         following forwarding nodes of buckets already moved
+	 */
+	private Node[] tableFor(int hash) {
+		Node[] t = this.table;
+		Node n = t[hash & (t.length - 1)];
+		while (n instanceof Forward) {
+			t = ((Forward) n).nextTable;
+			n = t[hash & (t.length - 1)];
+		}
+		return t;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public V put(K key, V value) {
-		int pos = this.calcTablePos(key);
-		Node n = this.table[pos];
+		int hash = hash(key);
+		Node[] t = tableFor(hash);
+		int pos = hash & (t.length - 1);
+		Node head = t[pos];
+		Node n = head;
 
-		while (n != null && !n.key.equals(key)) {
+		while (n != null && !(n.hash == hash && n.key.equals(key))) {
 			n = n.next;
 		}
 
@@ -57,8 +173,17 @@ public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 			return oldValue;
 		}
 
-		Node nn = new Node(key, value, this.table[pos]);
-		this.table[pos] = nn;
+		Node nn = new Node(hash, key, value, head);
+		t[pos] = nn;
+		count.increment();
+
+		/*
+		 * The load is only checked on collisions, which keeps the sum of the
+		 * counter off the common path
+		 */
+		if (head != null)
+			checkResize();
+		helpTransfer();
 
 		return null;
 	}
@@ -66,38 +191,53 @@ public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public V remove(K key) {
-		int pos = this.calcTablePos(key);
-		Node p = this.table[pos];
+		int hash = hash(key);
+		Node[] t = tableFor(hash);
+		int pos = hash & (t.length - 1);
+		Node p = t[pos];
 		if (p == null) {
 			return null;
 		}
 
-		if (p.key.equals(key)) {
-			this.table[pos] = p.next;
-			return (V) p.value;
-		}
+		V res = null;
+		if (p.hash == hash && p.key.equals(key)) {
+			t[pos] = p.next;
+			res = (V) p.value;
+		} else {
+			Node n = p.next;
+			while (n != null && !(n.hash == hash && n.key.equals(key))) {
+				p = n;
+				n = n.next;
+			}
 
-		Node n = p.next;
-		while (n != null && !n.key.equals(key)) {
-			p = n;
-			n = n.next;
-		}
+			if (n == null) {
+				return null;
+			}
 
-		if (n == null) {
-			return null;
+			p.next = n.next;
+			res = (V) n.value;
 		}
 
-		p.next = n.next;
+		count.decrement();
+		helpTransfer();
 
-		return (V) n.value;
+		return res;
 	}
 
+	/**
+	 * Safe to call without holding the key's lock while an optimistic read
+	 * stamp from {@link #getLock(Comparable)} is held: writers only ever link
+	 * new nodes or unlink existing ones, so the walk always terminates, and
+	 * whatever it returns is discarded by the caller if the stamp does not
+	 * validate.
+	 */
 	@SuppressWarnings("unchecked")
 	@Override
 	public V get(K key) {
-		int pos = this.calcTablePos(key);
-		Node n = this.table[pos];
-		while (n != null && !n.key.equals(key)) {
+		int hash = hash(key);
+		Node[] t = tableFor(hash);
+		Node n = t[hash & (t.length - 1)];
+		while (n != null && !(n.hash == hash && n.key.equals(key))) {
 			n = n.next;
 		}
 		return (V) (n != null ? n.value : null);
@@ -108,6 +248,88 @@ public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 		return get(key) != null;
 	}
 
+	/**
+	 * Starts a resize if the table went over the load factor and no other
+	 * resize is running
+	 */
+	private void checkResize() {
+		Node[] t = this.table;
+		if (forward == null && count.sum() > (long) (t.length * LOAD_FACTOR)
+				&& t.length < (1 << 30)) {
+			startResize(t);
+		}
+	}
+
+	private synchronized void startResize(Node[] t) {
+		if (forward != null || this.table != t)
+			return;
+
+		transferIndex.set(0);
+		forward = new Forward(new Node[t.length * 2]);
+	}
+
+	/**
+	 * Moves up to {@link #TRANSFER_STEP} buckets to the new table. A bucket is
+	 * only moved if its stripe can be locked without waiting, so the caller
+	 * may already hold any set of stripes without risking a deadlock.
+	 */
+	private void helpTransfer() {
+		Forward fwd = this.forward;
+		if (fwd == null)
+			return;
+
+		Node[] old = this.table;
+		Node[] next = fwd.nextTable;
+		if (next.length != old.length * 2)
+			return;
+
+		for (int step = 0; step < TRANSFER_STEP; step++) {
+			int i = transferIndex.get();
+			if (i >= old.length)
+				return;
+
+			VersionedLock lock = locks[calcLockPos(i)];
+			if (!lock.writeLock().tryLock())
+				return;
+
+			try {
+				if (this.table != old || transferIndex.get() != i)
+					continue;
+
+				transferBucket(old, fwd, i);
+				transferIndex.set(i + 1);
+
+				if (i + 1 == old.length) {
+					this.table = next;
+					this.forward = null;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Splits the bucket into the two buckets of the new table it maps to.
+	 * Nodes are copied rather than relinked, so an unlocked reader still
+	 * walking the old chain is never diverted into another one.
+	 */
+	private void transferBucket(Node[] old, Forward fwd, int i) {
+		Node lo = null;
+		Node hi = null;
+		for (Node n = old[i]; n != null; n = n.next) {
+			if ((n.hash & old.length) == 0)
+				lo = new Node(n.hash, n.key, n.value, lo);
+			else
+				hi = new Node(n.hash, n.key, n.value, hi);
+		}
+
+		Node[] next = fwd.nextTable;
+		next[i] = lo;
+		next[i + old.length] = hi;
+		old[i] = fwd;
+	}
+
 	/**
 	 * No need to protect this method from concurrent interactions
 	 */
@@ -115,19 +337,31 @@ public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 	public Iterator<V> values() {
 		return new Iterator<V>() {
 
+			private Node[] t = HashTable.this.table;
+			private Forward fwd = HashTable.this.forward;
 			private int pos = -1;
 			private Node nextBucket = advanceToNextBucket();
 
+			/*
+			 * While resizing, the entries are split between the buckets of
+			 * the old table not yet moved and the new table
+			 */
 			private Node advanceToNextBucket() {
-				pos++;
-				while (pos < HashTable.this.table.length
-						&& HashTable.this.table[pos] == null) {
+				while (true) {
 					pos++;
+					while (pos < t.length
+							&& (t[pos] == null || t[pos] instanceof Forward)) {
+						pos++;
+					}
+					if (pos < t.length)
+						return t[pos];
+
+					if (fwd == null || fwd.nextTable == t)
+						return null;
+
+					t = fwd.nextTable;
+					pos = -1;
 				}
-				if (pos < HashTable.this.table.length)
-					return HashTable.this.table[pos];
-
-				return null;
 			}
 
 			@Override
@@ -155,18 +389,18 @@ public class HashTable<K extends Comparable<K>, V> implements Map<K, V> {
 	}
 
 	@Override
-	public ReentrantReadWriteLock getLock(K key) {
-		return locks[calcTablePos(key)];
+	public VersionedLock getLock(K key) {
+		return locks[calcLockPos(hash(key))];
 	}
 
 	@Override
-	public List<ReentrantReadWriteLock> getLocks(List<K> keys) {
+	public List<VersionedLock> getLocks(List<K> keys) {
 
 		SortedSet<Integer> locksPos = new TreeSet<Integer>();
-		List<ReentrantReadWriteLock> sortedLocks = new LinkedList<ReentrantReadWriteLock>();
+		List<VersionedLock> sortedLocks = new LinkedList<VersionedLock>();
 		Iterator<K> keyIterator = keys.iterator();
 		while (keyIterator.hasNext())
-			locksPos.add(calcTablePos(keyIterator.next()));
+			locksPos.add(calcLockPos(hash(keyIterator.next())));
 
 		for (Integer pos : locksPos) {
 			sortedLocks.add(locks[pos]);
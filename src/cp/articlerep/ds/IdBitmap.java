@@ -0,0 +1,493 @@
+package cp.articlerep.ds;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of int ids, in the style of Roaring bitmaps.
+ *
+ * Ids are split by their high 16 bits into containers, kept sorted by that
+ * key. A container with at most {@link #ARRAY_MAX} ids stores their low 16
+ * bits as a sorted char array; a denser one switches to a 65536-bit bitmap.
+ * Union, intersection and difference work container by container and return
+ * new bitmaps, leaving their operands untouched.
+ *
+ * Not thread-safe.
+ */
+public class IdBitmap {
+
+	/**
+	 * Largest cardinality stored as an array, beyond which a bitmap (8KB) is
+	 * smaller
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	public IdBitmap() {
+		this.keys = new char[4];
+		this.containers = new Container[4];
+		this.size = 0;
+	}
+
+	/**
+	 * Builds a bitmap from a sorted view; since its ids are increasing, every
+	 * add goes to the last container without searching for it
+	 */
+	public static IdBitmap of(SortedPostings<?> sorted) {
+		IdBitmap res = new IdBitmap();
+		for (int i = 0; i < sorted.size(); i++)
+			res.add(sorted.idAt(i));
+		return res;
+	}
+
+	public void add(int id) {
+		char key = (char) (id >>> 16);
+		int pos;
+		if (size > 0 && keys[size - 1] == key)
+			pos = size - 1;
+		else {
+			pos = find(key);
+			if (pos < 0) {
+				pos = -pos - 1;
+				insert(pos, key, new ArrayContainer());
+			}
+		}
+		containers[pos] = containers[pos].add((char) id);
+	}
+
+	public boolean contains(int id) {
+		int pos = find((char) (id >>> 16));
+		return pos >= 0 && containers[pos].contains((char) id);
+	}
+
+	public int cardinality() {
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			n += containers[i].cardinality();
+		return n;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public IdBitmap or(IdBitmap other) {
+		IdBitmap res = new IdBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				res.append(keys[i], containers[i].copy());
+				i++;
+			} else if (i == size || other.keys[j] < keys[i]) {
+				res.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				res.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return res;
+	}
+
+	public IdBitmap and(IdBitmap other) {
+		IdBitmap res = new IdBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j])
+				i++;
+			else if (other.keys[j] < keys[i])
+				j++;
+			else {
+				Container c = containers[i].and(other.containers[j]);
+				if (c.cardinality() > 0)
+					res.append(keys[i], c);
+				i++;
+				j++;
+			}
+		}
+		return res;
+	}
+
+	public IdBitmap andNot(IdBitmap other) {
+		IdBitmap res = new IdBitmap();
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			while (j < other.size && other.keys[j] < keys[i])
+				j++;
+			Container c;
+			if (j < other.size && other.keys[j] == keys[i])
+				c = containers[i].andNot(other.containers[j]);
+			else
+				c = containers[i].copy();
+			if (c.cardinality() > 0)
+				res.append(keys[i], c);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the ids in increasing order (of their unsigned value, which
+	 *         only differs for negative ids)
+	 */
+	public int[] toArray() {
+		int[] res = new int[cardinality()];
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			n = containers[i].copyTo(keys[i] << 16, res, n);
+		return res;
+	}
+
+	public IdIterator iterator() {
+		return new IdIterator();
+	}
+
+	/**
+	 * Iterates the ids in increasing order, without boxing them
+	 */
+	public class IdIterator {
+
+		private int container = 0;
+		private int[] ids = new int[0];
+		private int pos = 0;
+
+		public boolean hasNext() {
+			while (pos == ids.length) {
+				if (container == size)
+					return false;
+				Container c = containers[container];
+				ids = new int[c.cardinality()];
+				c.copyTo(keys[container] << 16, ids, 0);
+				container++;
+				pos = 0;
+			}
+			return true;
+		}
+
+		public int next() {
+			return ids[pos++];
+		}
+	}
+
+	private int find(char key) {
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key)
+				lo = mid + 1;
+			else if (keys[mid] > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+
+	private void insert(int pos, char key, Container c) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+		System.arraycopy(containers, pos, containers, pos + 1, size - pos);
+		keys[pos] = key;
+		containers[pos] = c;
+		size++;
+	}
+
+	private void append(char key, Container c) {
+		insert(size, key, c);
+	}
+
+	private static abstract class Container {
+
+		public abstract Container add(char low);
+
+		public abstract boolean contains(char low);
+
+		public abstract int cardinality();
+
+		public abstract Container copy();
+
+		public abstract Container or(Container other);
+
+		public abstract Container and(Container other);
+
+		public abstract Container andNot(Container other);
+
+		/**
+		 * Writes high | low of every id into dst from pos on
+		 *
+		 * @return the position after the last id written
+		 */
+		public abstract int copyTo(int high, int[] dst, int pos);
+	}
+
+	private static class ArrayContainer extends Container {
+
+		private char[] values;
+		private int cardinality;
+
+		public ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		public ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		private int find(char low) {
+			int lo = 0;
+			int hi = cardinality - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (values[mid] < low)
+					lo = mid + 1;
+				else if (values[mid] > low)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -(lo + 1);
+		}
+
+		@Override
+		public Container add(char low) {
+			int pos = cardinality > 0 && values[cardinality - 1] < low ? -(cardinality + 1)
+					: find(low);
+			if (pos >= 0)
+				return this;
+
+			if (cardinality == ARRAY_MAX)
+				return toBitmap().add(low);
+
+			pos = -pos - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values,
+						Math.max(4, Math.min(cardinality * 2, ARRAY_MAX)));
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		public boolean contains(char low) {
+			return find(low) >= 0;
+		}
+
+		@Override
+		public int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		public Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, cardinality),
+					cardinality);
+		}
+
+		public BitmapContainer toBitmap() {
+			BitmapContainer b = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++)
+				b.add(values[i]);
+			return b;
+		}
+
+		@Override
+		public Container or(Container other) {
+			if (other instanceof BitmapContainer)
+				return other.or(this);
+
+			ArrayContainer o = (ArrayContainer) other;
+			char[] res = new char[cardinality + o.cardinality];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality && j < o.cardinality) {
+				if (values[i] < o.values[j])
+					res[n++] = values[i++];
+				else if (o.values[j] < values[i])
+					res[n++] = o.values[j++];
+				else {
+					res[n++] = values[i++];
+					j++;
+				}
+			}
+			while (i < cardinality)
+				res[n++] = values[i++];
+			while (j < o.cardinality)
+				res[n++] = o.values[j++];
+
+			ArrayContainer c = new ArrayContainer(res, n);
+			return n > ARRAY_MAX ? c.toBitmap() : c;
+		}
+
+		@Override
+		public Container and(Container other) {
+			char[] res = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i]))
+					res[n++] = values[i];
+			}
+			return new ArrayContainer(res, n);
+		}
+
+		@Override
+		public Container andNot(Container other) {
+			char[] res = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (!other.contains(values[i]))
+					res[n++] = values[i];
+			}
+			return new ArrayContainer(res, n);
+		}
+
+		@Override
+		public int copyTo(int high, int[] dst, int pos) {
+			for (int i = 0; i < cardinality; i++)
+				dst[pos++] = high | values[i];
+			return pos;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+
+		private long[] words;
+		private int cardinality;
+
+		public BitmapContainer() {
+			this(new long[1024], 0);
+		}
+
+		private BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		public Container add(char low) {
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		public boolean contains(char low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		public int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		public Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		public Container or(Container other) {
+			BitmapContainer res = new BitmapContainer(words.clone(),
+					cardinality);
+			if (other instanceof BitmapContainer) {
+				long[] ow = ((BitmapContainer) other).words;
+				int n = 0;
+				for (int i = 0; i < res.words.length; i++) {
+					res.words[i] |= ow[i];
+					n += Long.bitCount(res.words[i]);
+				}
+				res.cardinality = n;
+			} else {
+				ArrayContainer o = (ArrayContainer) other;
+				for (int i = 0; i < o.cardinality; i++)
+					res.add(o.values[i]);
+			}
+			return res;
+		}
+
+		@Override
+		public Container and(Container other) {
+			if (other instanceof ArrayContainer)
+				return other.and(this);
+
+			long[] ow = ((BitmapContainer) other).words;
+			long[] res = new long[words.length];
+			int n = 0;
+			for (int i = 0; i < res.length; i++) {
+				res[i] = words[i] & ow[i];
+				n += Long.bitCount(res[i]);
+			}
+			return shrink(res, n);
+		}
+
+		@Override
+		public Container andNot(Container other) {
+			long[] res = words.clone();
+			int n = cardinality;
+			if (other instanceof BitmapContainer) {
+				long[] ow = ((BitmapContainer) other).words;
+				n = 0;
+				for (int i = 0; i < res.length; i++) {
+					res[i] &= ~ow[i];
+					n += Long.bitCount(res[i]);
+				}
+			} else {
+				ArrayContainer o = (ArrayContainer) other;
+				for (int i = 0; i < o.cardinality; i++) {
+					char low = o.values[i];
+					long bit = 1L << low;
+					if ((res[low >>> 6] & bit) != 0) {
+						res[low >>> 6] &= ~bit;
+						n--;
+					}
+				}
+			}
+			return shrink(res, n);
+		}
+
+		/**
+		 * Converts sparse results back to an array container
+		 */
+		private static Container shrink(long[] words, int cardinality) {
+			if (cardinality > ARRAY_MAX)
+				return new BitmapContainer(words, cardinality);
+
+			char[] values = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < words.length; i++) {
+				long w = words[i];
+				while (w != 0) {
+					values[n++] = (char) ((i << 6) + Long
+							.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return new ArrayContainer(values, cardinality);
+		}
+
+		@Override
+		public int copyTo(int high, int[] dst, int pos) {
+			for (int i = 0; i < words.length; i++) {
+				long w = words[i];
+				while (w != 0) {
+					dst[pos++] = high | ((i << 6) + Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return pos;
+		}
+	}
+}
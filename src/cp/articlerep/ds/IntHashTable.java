@@ -0,0 +1,414 @@
+package cp.articlerep.ds;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed hash table with primitive int keys, protected by striped
+ * locks in the same way as {@link HashTable}: callers hold the lock of a key
+ * (see {@link #getLock(int)}) while calling put, remove or get on it.
+ *
+ * Each stripe owns a separate segment of linear-probing slots, so a probe
+ * sequence never crosses into slots guarded by another lock. Keys and values
+ * live in parallel arrays, with no per-entry node. Removal shifts the
+ * following entries back instead of leaving tombstones.
+ *
+ * A segment that goes over the load factor doubles incrementally, as the
+ * tables of {@link HashTable} do: it gets a larger successor and each later
+ * put or remove on the stripe moves a few of its slots there, leaving a
+ * forwarding marker in the old slot so the probe runs of the entries not yet
+ * moved stay unbroken. Lookups search the old segment and then its
+ * successor, which replaces it once every slot was moved.
+ */
+public class IntHashTable<V> implements IntMap<V> {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private static final int MIN_SEGMENT = 8;
+
+	/**
+	 * Number of slots a writer moves on each put or remove while a segment
+	 * grows. Moving more slots than entries can be added keeps the successor
+	 * under its own load factor until the old segment is drained.
+	 */
+	private static final int TRANSFER_STEP = 4;
+
+	/**
+	 * Placed in a slot of a growing segment once its entry was moved
+	 */
+	private static final Object MOVED = new Object();
+
+	private static class Segment {
+		public final int[] keys;
+		/*
+		 * A null value marks an empty slot
+		 */
+		public final Object[] values;
+		public int size;
+
+		/*
+		 * Not null while the entries are being moved to a larger segment
+		 */
+		public Segment next;
+
+		/*
+		 * Next slot to be moved to the larger segment
+		 */
+		public int transferIndex;
+
+		public Segment(int capacity) {
+			this.keys = new int[capacity];
+			this.values = new Object[capacity];
+			this.size = 0;
+			this.next = null;
+			this.transferIndex = 0;
+		}
+	}
+
+	private VersionedLock[] locks;
+
+	private Segment[] segments;
+
+	private int stripeShift;
+
+	public IntHashTable() {
+		this(1000);
+	}
+
+	public IntHashTable(int size) {
+		this(size, HashTable.DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param size
+	 *            initial number of slots, spread over the segments
+	 * @param stripes
+	 *            number of locks (and segments), rounded up to a power of two
+	 */
+	public IntHashTable(int size, int stripes) {
+		int bits = 0;
+		while ((1 << bits) < stripes && bits < 16)
+			bits++;
+		stripes = 1 << bits;
+		this.stripeShift = 32 - bits;
+
+		int capacity = MIN_SEGMENT;
+		while (capacity < size / stripes && capacity < (1 << 30))
+			capacity <<= 1;
+
+		this.locks = new VersionedLock[stripes];
+		this.segments = new Segment[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new VersionedLock(true);
+			segments[i] = new Segment(capacity);
+		}
+	}
+
+	private static int hash(int key) {
+		return key * 0x9E3779B9;
+	}
+
+	/**
+	 * The stripe comes from the high bits of the hash and the slot from the
+	 * low ones, so keys of a segment still spread over all of its slots
+	 */
+	private int calcLockPos(int hash) {
+		return stripeShift == 32 ? 0 : hash >>> stripeShift;
+	}
+
+	private static int calcSlot(int hash, int mask) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * @return the slot of the key in the segment, or -1. Moved slots are
+	 *         stepped over, and the probe is bounded by the segment length.
+	 */
+	private static int find(Segment seg, int key, int hash) {
+		int[] keys = seg.keys;
+		Object[] values = seg.values;
+		int mask = keys.length - 1;
+
+		int i = calcSlot(hash, mask);
+		for (int n = 0; n <= mask; n++) {
+			Object v = values[i];
+			if (v == null)
+				return -1;
+			if (v != MOVED && keys[i] == key)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V put(int key, V value) {
+		int hash = hash(key);
+		int s = calcLockPos(hash);
+		Segment seg = segments[s];
+
+		V oldValue;
+		if (seg.next == null) {
+			oldValue = (V) insert(seg, key, hash, value);
+			if (oldValue == null && seg.size > seg.keys.length * LOAD_FACTOR)
+				seg.next = new Segment(seg.keys.length * 2);
+		} else {
+			int i = find(seg, key, hash);
+			if (i >= 0) {
+				oldValue = (V) seg.values[i];
+				seg.values[i] = value;
+			} else {
+				oldValue = (V) insert(seg.next, key, hash, value);
+			}
+		}
+
+		helpTransfer(s, seg);
+		return oldValue;
+	}
+
+	/**
+	 * Puts the key in a segment that is not growing
+	 *
+	 * @return the previous value of the key, or null
+	 */
+	private static Object insert(Segment seg, int key, int hash, Object value) {
+		int mask = seg.keys.length - 1;
+
+		int i = calcSlot(hash, mask);
+		while (seg.values[i] != null) {
+			if (seg.keys[i] == key) {
+				Object oldValue = seg.values[i];
+				seg.values[i] = value;
+				return oldValue;
+			}
+			i = (i + 1) & mask;
+		}
+
+		seg.keys[i] = key;
+		seg.values[i] = value;
+		seg.size++;
+		return null;
+	}
+
+	/**
+	 * Moves up to {@link #TRANSFER_STEP} slots of a growing segment to its
+	 * successor, and installs the successor once the last one was moved. The
+	 * caller holds the write lock of the stripe.
+	 */
+	private void helpTransfer(int s, Segment seg) {
+		Segment next = seg.next;
+		if (next == null)
+			return;
+
+		int length = seg.keys.length;
+		for (int step = 0; step < TRANSFER_STEP && seg.transferIndex < length; step++) {
+			int j = seg.transferIndex++;
+			Object v = seg.values[j];
+			if (v == null || v == MOVED)
+				continue;
+
+			insert(next, seg.keys[j], hash(seg.keys[j]), v);
+			seg.values[j] = MOVED;
+			seg.size--;
+		}
+
+		if (seg.transferIndex == length)
+			segments[s] = next;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(int key) {
+		int hash = hash(key);
+		int s = calcLockPos(hash);
+		Segment seg = segments[s];
+
+		V res;
+		if (seg.next == null) {
+			res = (V) delete(seg, key, hash);
+		} else {
+			/*
+			 * Entries of a growing segment are not shifted back, the old
+			 * slots are dropped with the segment once every one was moved
+			 */
+			int i = find(seg, key, hash);
+			if (i >= 0) {
+				res = (V) seg.values[i];
+				seg.values[i] = MOVED;
+				seg.size--;
+			} else {
+				res = (V) delete(seg.next, key, hash);
+			}
+		}
+
+		helpTransfer(s, seg);
+		return res;
+	}
+
+	/**
+	 * Removes the key from a segment that is not growing
+	 *
+	 * @return the value of the key, or null
+	 */
+	private static Object delete(Segment seg, int key, int hash) {
+		int mask = seg.keys.length - 1;
+
+		int i = calcSlot(hash, mask);
+		while (seg.values[i] != null && seg.keys[i] != key)
+			i = (i + 1) & mask;
+
+		Object res = seg.values[i];
+		if (res == null)
+			return null;
+
+		/*
+		 * Moves back every following entry of the run whose home slot is not
+		 * between the hole and its current slot
+		 */
+		int hole = i;
+		int j = (i + 1) & mask;
+		while (seg.values[j] != null) {
+			int home = calcSlot(hash(seg.keys[j]), mask);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				seg.keys[hole] = seg.keys[j];
+				seg.values[hole] = seg.values[j];
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		seg.values[hole] = null;
+		seg.size--;
+
+		return res;
+	}
+
+	/**
+	 * Safe to call inside an optimistic read of the key's lock: each probe is
+	 * bounded by the segment length and a segment has at most one successor,
+	 * so it ends even if it races with a writer shifting or moving entries,
+	 * and the caller discards the result if the stamp does not validate.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(int key) {
+		int hash = hash(key);
+		Segment seg = segments[calcLockPos(hash)];
+
+		for (int depth = 0; seg != null && depth < 2; depth++) {
+			int i = find(seg, key, hash);
+			if (i >= 0) {
+				Object v = seg.values[i];
+				if (v != null && v != MOVED)
+					return (V) v;
+			}
+			seg = seg.next;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean contains(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * No need to protect this method from concurrent interactions
+	 */
+	@Override
+	public Iterator<V> values() {
+		return new Iterator<V>() {
+
+			private int stripe = 0;
+			private Iterator<V> it = values(0);
+
+			@Override
+			public boolean hasNext() {
+				while (!it.hasNext() && stripe + 1 < segments.length)
+					it = values(++stripe);
+				return it.hasNext();
+			}
+
+			@Override
+			public V next() {
+				hasNext();
+				return it.next();
+			}
+		};
+	}
+
+	/**
+	 * Walks the segment of the stripe and, while it grows, its successor
+	 */
+	@Override
+	public Iterator<V> values(int stripe) {
+		final Segment first = segments[stripe];
+		return new Iterator<V>() {
+
+			private Segment seg = first;
+			private int pos = advance(0);
+
+			private int advance(int from) {
+				while (seg != null) {
+					Object[] values = seg.values;
+					while (from < values.length
+							&& (values[from] == null || values[from] == MOVED))
+						from++;
+					if (from < values.length)
+						return from;
+					seg = seg.next;
+					from = 0;
+				}
+				return 0;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return seg != null;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public V next() {
+				V result = (V) seg.values[pos];
+				pos = advance(pos + 1);
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public int getStripes() {
+		return locks.length;
+	}
+
+	@Override
+	public VersionedLock getStripeLock(int stripe) {
+		return locks[stripe];
+	}
+
+	@Override
+	public VersionedLock getLock(int key) {
+		return locks[calcLockPos(hash(key))];
+	}
+
+	/**
+	 * @return the locks of the keys, each once, in a global order
+	 */
+	@Override
+	public List<VersionedLock> getLocks(int[] keys) {
+		int[] pos = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			pos[i] = calcLockPos(hash(keys[i]));
+		Arrays.sort(pos);
+
+		/*
+		 * Added from the highest, since add() prepends
+		 */
+		List<VersionedLock> sortedLocks = new LinkedList<VersionedLock>();
+		for (int i = pos.length - 1; i >= 0; i--) {
+			if (i == pos.length - 1 || pos[i] != pos[i + 1])
+				sortedLocks.add(locks[pos[i]]);
+		}
+		return sortedLocks;
+	}
+}
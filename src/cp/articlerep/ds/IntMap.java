@@ -0,0 +1,34 @@
+package cp.articlerep.ds;
+
+/**
+ * A {@link Map} specialized for primitive int keys, so that keys are never
+ * boxed.
+ */
+public interface IntMap<V> {
+	public V put(int key, V value);
+
+	public boolean contains(int key);
+
+	public V remove(int key);
+
+	public V get(int key);
+
+	public Iterator<V> values();
+
+	/**
+	 * @return the values whose keys belong to the given stripe; the caller
+	 *         holds that stripe's lock while iterating
+	 */
+	public Iterator<V> values(int stripe);
+
+	public VersionedLock getLock(int key);
+
+	public List<VersionedLock> getLocks(int[] keys);
+
+	/**
+	 * @return the number of locks the keys are spread over
+	 */
+	public int getStripes();
+
+	public VersionedLock getStripeLock(int stripe);
+}
@@ -32,13 +32,28 @@ public class LinkedList<V> implements List<V> {
 	}
 
 	private Node m_head;
+	private Node m_tail;
 
 	public LinkedList() {
 		m_head = null;
+		m_tail = null;
 	}
 
 	public void add(V value) {
 		m_head = new Node(value, m_head);
+		if (m_tail == null) {
+			m_tail = m_head;
+		}
+	}
+
+	public void addLast(V value) {
+		Node newNode = new Node(value);
+		if (m_tail == null) {
+			m_head = newNode;
+		} else {
+			m_tail.m_next = newNode;
+		}
+		m_tail = newNode;
 	}
 	
 	public void add(int pos, V value) {
@@ -58,6 +73,9 @@ public class LinkedList<V> implements List<V> {
 		
 		Node newNode = new Node(value, f.m_next);
 		f.m_next = newNode;
+		if (f == m_tail) {
+			m_tail = newNode;
+		}
 	}
 
 	public V remove(int pos) {
@@ -79,6 +97,9 @@ public class LinkedList<V> implements List<V> {
 			else {
 			    m_head = n.m_next;
 			}
+			if (n == m_tail) {
+			    m_tail = f;
+			}
 		}
 
 		return res;
@@ -9,6 +9,11 @@ public interface List<V> {
 
 	public void add(int pos, V value);
 
+	/**
+	 * Appends the value at the end of the list
+	 */
+	public void addLast(V value);
+
 	public V remove(int pos);
 
 	public V get(int pos);
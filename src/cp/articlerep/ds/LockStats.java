@@ -0,0 +1,318 @@
+package cp.articlerep.ds;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention statistics of the striped {@link VersionedLock}s, enabled with
+ * -Dcp.articlerep.lockstats=true.
+ *
+ * Every lock counts its read and write acquisitions, the time threads
+ * waited for them, the time the write lock was held and how many readers
+ * and writers were waiting at once. Maps are registered under a name with
+ * {@link #register(String, IntMap)}, after which their stripes show up in
+ * {@link #snapshot()} and {@link #dump(PrintStream)} until
+ * {@link #clear()}. A name already registered gets a #n suffix, so the
+ * maps of different repositories are never mixed.
+ *
+ * When disabled, locks carry no counters, and their hot paths only test
+ * that the counters of the lock are null.
+ */
+public final class LockStats {
+
+	public static final boolean ENABLED = Boolean
+			.getBoolean("cp.articlerep.lockstats");
+
+	/**
+	 * Hottest stripes listed per map by {@link #dump(PrintStream)}
+	 */
+	private static final int TOP_STRIPES = 5;
+
+	private static final List<String> names = new LinkedList<String>();
+	private static final List<VersionedLock[]> maps = new LinkedList<VersionedLock[]>();
+
+	private LockStats() {
+	}
+
+	/**
+	 * Counters of one lock. Waiting threads are the ones inside a blocking
+	 * acquire, so an uncontended acquire briefly counts as one.
+	 */
+	static final class Counters {
+		final LongAdder readAcquires = new LongAdder();
+		final LongAdder writeAcquires = new LongAdder();
+		final LongAdder readWaitNanos = new LongAdder();
+		final LongAdder writeWaitNanos = new LongAdder();
+		final LongAdder writeHoldNanos = new LongAdder();
+		final AtomicInteger waitingReaders = new AtomicInteger();
+		final AtomicInteger waitingWriters = new AtomicInteger();
+		final AtomicInteger peakWaitingReaders = new AtomicInteger();
+		final AtomicInteger peakWaitingWriters = new AtomicInteger();
+
+		long beginWait(boolean write) {
+			if (write)
+				peakWaitingWriters.accumulateAndGet(
+						waitingWriters.incrementAndGet(), Math::max);
+			else
+				peakWaitingReaders.accumulateAndGet(
+						waitingReaders.incrementAndGet(), Math::max);
+			return System.nanoTime();
+		}
+
+		void endWait(boolean write, long start, boolean acquired) {
+			long waited = System.nanoTime() - start;
+			if (write) {
+				waitingWriters.decrementAndGet();
+				writeWaitNanos.add(waited);
+			} else {
+				waitingReaders.decrementAndGet();
+				readWaitNanos.add(waited);
+			}
+			if (acquired)
+				acquired(write);
+		}
+
+		void acquired(boolean write) {
+			if (write)
+				writeAcquires.increment();
+			else
+				readAcquires.increment();
+		}
+
+		void released(long heldNanos) {
+			writeHoldNanos.add(heldNanos);
+		}
+
+		void reset() {
+			readAcquires.reset();
+			writeAcquires.reset();
+			readWaitNanos.reset();
+			writeWaitNanos.reset();
+			writeHoldNanos.reset();
+			peakWaitingReaders.set(waitingReaders.get());
+			peakWaitingWriters.set(waitingWriters.get());
+		}
+	}
+
+	/**
+	 * Statistics of one stripe at the time of the snapshot
+	 */
+	public static final class StripeSnapshot {
+		public final String map;
+		public final int stripe;
+		public final long readAcquires;
+		public final long writeAcquires;
+		public final long readWaitNanos;
+		public final long writeWaitNanos;
+		public final long writeHoldNanos;
+		public final int waitingReaders;
+		public final int waitingWriters;
+		public final int peakWaitingReaders;
+		public final int peakWaitingWriters;
+
+		StripeSnapshot(String map, int stripe, Counters c) {
+			this.map = map;
+			this.stripe = stripe;
+			this.readAcquires = c.readAcquires.sum();
+			this.writeAcquires = c.writeAcquires.sum();
+			this.readWaitNanos = c.readWaitNanos.sum();
+			this.writeWaitNanos = c.writeWaitNanos.sum();
+			this.writeHoldNanos = c.writeHoldNanos.sum();
+			this.waitingReaders = c.waitingReaders.get();
+			this.waitingWriters = c.waitingWriters.get();
+			this.peakWaitingReaders = c.peakWaitingReaders.get();
+			this.peakWaitingWriters = c.peakWaitingWriters.get();
+		}
+
+		public long getAcquires() {
+			return readAcquires + writeAcquires;
+		}
+
+		public long getWaitNanos() {
+			return readWaitNanos + writeWaitNanos;
+		}
+	}
+
+	/**
+	 * Makes the stripes of the map part of the statistics; does nothing when
+	 * they are disabled
+	 */
+	public static void register(String name, IntMap<?> map) {
+		if (!ENABLED)
+			return;
+
+		VersionedLock[] locks = new VersionedLock[map.getStripes()];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = map.getStripeLock(i);
+		register(name, locks);
+	}
+
+	public static void register(String name, Map<?, ?> map) {
+		if (!ENABLED)
+			return;
+
+		VersionedLock[] locks = new VersionedLock[map.getStripes()];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = map.getStripeLock(i);
+		register(name, locks);
+	}
+
+	private static synchronized void register(String name,
+			VersionedLock[] locks) {
+		String unique = name;
+		for (int n = 2; isRegistered(unique); n++)
+			unique = name + "#" + n;
+		names.addLast(unique);
+		maps.addLast(locks);
+	}
+
+	private static boolean isRegistered(String name) {
+		Iterator<String> it = names.iterator();
+		while (it.hasNext()) {
+			if (it.next().equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Unregisters every map, e.g. before running on a new repository
+	 */
+	public static synchronized void clear() {
+		while (names.size() > 0) {
+			names.remove(0);
+			maps.remove(0);
+		}
+	}
+
+	/**
+	 * @return the statistics of every registered stripe, map by map; empty
+	 *         when disabled
+	 */
+	public static synchronized List<StripeSnapshot> snapshot() {
+		List<StripeSnapshot> res = new LinkedList<StripeSnapshot>();
+		Iterator<String> nit = names.iterator();
+		Iterator<VersionedLock[]> mit = maps.iterator();
+		while (nit.hasNext()) {
+			String name = nit.next();
+			VersionedLock[] locks = mit.next();
+			for (int i = 0; i < locks.length; i++)
+				res.addLast(new StripeSnapshot(name, i, locks[i].stats));
+		}
+		return res;
+	}
+
+	/**
+	 * Clears the counters of every registered stripe, e.g. after a warmup
+	 */
+	public static synchronized void reset() {
+		Iterator<VersionedLock[]> mit = maps.iterator();
+		while (mit.hasNext()) {
+			VersionedLock[] locks = mit.next();
+			for (int i = 0; i < locks.length; i++)
+				locks[i].stats.reset();
+		}
+	}
+
+	/**
+	 * Prints, for each map, its totals, how skewed the acquisitions are over
+	 * its stripes and its hottest stripes
+	 */
+	public static void dump(PrintStream out) {
+		if (!ENABLED)
+			return;
+
+		List<StripeSnapshot> all = snapshot();
+		Iterator<StripeSnapshot> it = all.iterator();
+		StripeSnapshot next = it.hasNext() ? it.next() : null;
+
+		while (next != null) {
+			String map = next.map;
+			List<StripeSnapshot> stripes = new LinkedList<StripeSnapshot>();
+			while (next != null && next.map.equals(map)) {
+				stripes.addLast(next);
+				next = it.hasNext() ? it.next() : null;
+			}
+			dumpMap(out, map, stripes);
+		}
+	}
+
+	private static void dumpMap(PrintStream out, String map,
+			List<StripeSnapshot> stripes) {
+		int n = stripes.size();
+		StripeSnapshot[] sorted = new StripeSnapshot[n];
+		long reads = 0, writes = 0, readWait = 0, writeWait = 0, hold = 0;
+		int peakReaders = 0, peakWriters = 0;
+
+		int i = 0;
+		Iterator<StripeSnapshot> it = stripes.iterator();
+		while (it.hasNext()) {
+			StripeSnapshot s = it.next();
+			sorted[i++] = s;
+			reads += s.readAcquires;
+			writes += s.writeAcquires;
+			readWait += s.readWaitNanos;
+			writeWait += s.writeWaitNanos;
+			hold += s.writeHoldNanos;
+			peakReaders = Math.max(peakReaders, s.peakWaitingReaders);
+			peakWriters = Math.max(peakWriters, s.peakWaitingWriters);
+		}
+		Arrays.sort(sorted, new Comparator<StripeSnapshot>() {
+			@Override
+			public int compare(StripeSnapshot a, StripeSnapshot b) {
+				return Long.compare(b.getAcquires(), a.getAcquires());
+			}
+		});
+
+		double mean = (double) (reads + writes) / n;
+		out.println(String.format(
+				"[locks] %s: %d stripes, %d reads (wait %.1f us avg), "
+						+ "%d writes (wait %.1f us, hold %.1f us avg), "
+						+ "peak waiting %d readers %d writers, hottest/mean %.2f",
+				map, n, reads, avgMicros(readWait, reads), writes,
+				avgMicros(writeWait, writes), avgMicros(hold, writes),
+				peakReaders, peakWriters,
+				mean == 0 ? 0 : sorted[0].getAcquires() / mean));
+
+		for (i = 0; i < Math.min(TOP_STRIPES, n); i++) {
+			StripeSnapshot s = sorted[i];
+			if (s.getAcquires() == 0)
+				break;
+			out.println(String.format(
+					"[locks]   stripe %d: %d reads %d writes, wait %.1f us avg, "
+							+ "peak waiting %d/%d", s.stripe,
+					s.readAcquires, s.writeAcquires,
+					avgMicros(s.getWaitNanos(), s.getAcquires()),
+					s.peakWaitingReaders, s.peakWaitingWriters));
+		}
+	}
+
+	private static double avgMicros(long nanos, long count) {
+		return count == 0 ? 0 : nanos / 1000.0 / count;
+	}
+
+	/**
+	 * Starts a daemon thread that calls {@link #dump(PrintStream)} every
+	 * period
+	 */
+	public static Thread startDump(final long periodMillis,
+			final PrintStream out) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(periodMillis);
+						dump(out);
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, "lockstats-dump");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+}
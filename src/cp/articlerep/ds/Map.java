@@ -1,7 +1,5 @@
 package cp.articlerep.ds;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 /**
  * @author Ricardo Dias
  */
@@ -18,7 +16,11 @@ public interface Map<K extends Comparable<K>, V> {
 
 	public Iterator<K> keys();
 
-	public ReentrantReadWriteLock getLock(K key);
+	public VersionedLock getLock(K key);
+
+	public List<VersionedLock> getLocks(List<K> keys);
+
+	public int getStripes();
 
-	public List<ReentrantReadWriteLock> getLocks(List<K> keys);
+	public VersionedLock getStripeLock(int stripe);
 }
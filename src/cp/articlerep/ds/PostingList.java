@@ -0,0 +1,262 @@
+package cp.articlerep.ds;
+
+/**
+ * Unordered list of values identified by a unique int id, backed by a
+ * growable array.
+ *
+ * Removal moves the last entry into the freed slot, so add, remove, size and
+ * isEmpty are all O(1). Lists longer than {@link #INDEX_THRESHOLD} also keep
+ * an open-addressed id to slot index, shorter ones are simply scanned.
+ *
+ * Not thread-safe: writers must be serialized by the caller. A reader
+ * holding an optimistic stamp may iterate it concurrently with a writer; it
+ * may then see stale or null values, which it discards when the stamp fails
+ * to validate.
+ */
+public class PostingList<V> {
+
+	private static final int INDEX_THRESHOLD = 8;
+
+	private int[] ids;
+	private Object[] values;
+	private int size;
+
+	/**
+	 * Slot + 1 of each id, 0 for an empty entry. Null while the list is
+	 * short.
+	 */
+	private int[] index;
+
+	/**
+	 * Bumped on every add and remove
+	 */
+	private int modCount;
+
+	/**
+	 * Sorted view and the modCount it was built at, published together
+	 */
+	private static class Sorted<V> {
+		final SortedPostings<V> view;
+		final int modCount;
+
+		Sorted(SortedPostings<V> view, int modCount) {
+			this.view = view;
+			this.modCount = modCount;
+		}
+	}
+
+	private volatile Sorted<V> sorted;
+
+	public PostingList() {
+		this(4);
+	}
+
+	public PostingList(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.ids = new int[capacity];
+		this.values = new Object[capacity];
+		this.size = 0;
+		this.index = null;
+		this.modCount = 0;
+		this.sorted = null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Appends a value whose id is not yet on the list
+	 */
+	public void add(int id, V value) {
+		if (size == ids.length) {
+			int[] nids = new int[size * 2];
+			Object[] nvalues = new Object[size * 2];
+			System.arraycopy(ids, 0, nids, 0, size);
+			System.arraycopy(values, 0, nvalues, 0, size);
+			ids = nids;
+			values = nvalues;
+		}
+
+		ids[size] = id;
+		values[size] = value;
+		size++;
+		modCount++;
+
+		if (index != null && size * 2 <= index.length)
+			indexPut(size - 1);
+		else if (size > INDEX_THRESHOLD)
+			rebuildIndex();
+	}
+
+	/**
+	 * @return the value removed, or null if the id is not on the list
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int id) {
+		int entry = -1;
+		int slot;
+		if (index != null) {
+			entry = indexFind(id);
+			slot = entry < 0 ? -1 : index[entry] - 1;
+		} else {
+			slot = scan(id);
+		}
+
+		if (slot < 0)
+			return null;
+
+		V res = (V) values[slot];
+		int last = size - 1;
+
+		if (slot != last) {
+			if (index != null)
+				index[indexFind(ids[last])] = slot + 1;
+			ids[slot] = ids[last];
+			values[slot] = values[last];
+		}
+		values[last] = null;
+		size = last;
+		modCount++;
+
+		if (index != null)
+			indexDelete(entry);
+
+		return res;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V find(int id) {
+		int slot = slotOf(id);
+		return slot < 0 ? null : (V) values[slot];
+	}
+
+	public boolean contains(int id) {
+		return slotOf(id) >= 0;
+	}
+
+	public int idAt(int slot) {
+		return ids[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	/**
+	 * Returns the entries sorted by id. The view is cached until the next
+	 * add or remove, so repeated queries over an unchanged list do not sort
+	 * it again. Callers must hold at least the read lock guarding the list:
+	 * a view built inside an optimistic read could be cached torn.
+	 */
+	public SortedPostings<V> sorted() {
+		Sorted<V> s = sorted;
+		if (s != null && s.modCount == modCount)
+			return s.view;
+
+		s = new Sorted<V>(SortedPostings.sort(ids, values, size), modCount);
+		sorted = s;
+		return s.view;
+	}
+
+	public Iterator<V> iterator() {
+		return iterator(0);
+	}
+
+	/**
+	 * Iterates the entries from the given slot on, in slot order. The array
+	 * and size are read once, so the iterator stays in bounds even if a
+	 * writer races with an optimistic reader.
+	 */
+	public Iterator<V> iterator(final int from) {
+		final Object[] vs = values;
+		final int n = Math.min(size, vs.length);
+
+		return new Iterator<V>() {
+
+			private int pos = Math.max(from, 0);
+
+			public boolean hasNext() {
+				return pos < n;
+			}
+
+			@SuppressWarnings("unchecked")
+			public V next() {
+				return (V) vs[pos++];
+			}
+		};
+	}
+
+	private int slotOf(int id) {
+		if (index == null)
+			return scan(id);
+
+		int entry = indexFind(id);
+		return entry < 0 ? -1 : index[entry] - 1;
+	}
+
+	private int scan(int id) {
+		for (int i = 0; i < size; i++) {
+			if (ids[i] == id)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexFind(int id) {
+		int mask = index.length - 1;
+		int i = hash(id) & mask;
+		while (index[i] != 0) {
+			if (ids[index[i] - 1] == id)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void indexPut(int slot) {
+		int mask = index.length - 1;
+		int i = hash(ids[slot]) & mask;
+		while (index[i] != 0)
+			i = (i + 1) & mask;
+		index[i] = slot + 1;
+	}
+
+	/**
+	 * Backward-shift deletion, so lookups never need tombstones
+	 */
+	private void indexDelete(int entry) {
+		int mask = index.length - 1;
+		int hole = entry;
+		int j = (entry + 1) & mask;
+		while (index[j] != 0) {
+			int home = hash(ids[index[j] - 1]) & mask;
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				index[hole] = index[j];
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		index[hole] = 0;
+	}
+
+	private void rebuildIndex() {
+		int capacity = 4;
+		while (capacity < size * 4)
+			capacity <<= 1;
+
+		index = new int[capacity];
+		for (int i = 0; i < size; i++)
+			indexPut(i);
+	}
+}
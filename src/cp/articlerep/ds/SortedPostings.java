@@ -0,0 +1,191 @@
+package cp.articlerep.ds;
+
+import java.util.Arrays;
+
+/**
+ * Immutable list of values sorted by their int id, used to evaluate set
+ * operations over posting lists.
+ *
+ * Intersections and differences gallop through the other list, so their
+ * cost is O(n log(m / n)) for a list of n entries against one of m: it
+ * tracks the shorter list rather than the sum of both.
+ */
+public class SortedPostings<V> {
+
+	@SuppressWarnings("rawtypes")
+	private static final SortedPostings EMPTY = new SortedPostings<Object>(
+			new int[0], new Object[0], 0);
+
+	private final int[] ids;
+	private final Object[] values;
+	private final int size;
+
+	SortedPostings(int[] ids, Object[] values, int size) {
+		this.ids = ids;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * @return a sorted copy of the first size entries of the arrays, which
+	 *         are left untouched
+	 */
+	public static <V> SortedPostings<V> sort(int[] ids, Object[] values,
+			int size) {
+		/*
+		 * Sorts id and position packed in a long, so values follow their ids
+		 */
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) ids[i] << 32) | i;
+		Arrays.sort(keys);
+
+		int[] sids = new int[size];
+		Object[] svalues = new Object[size];
+		for (int i = 0; i < size; i++) {
+			sids[i] = (int) (keys[i] >> 32);
+			svalues[i] = values[(int) keys[i]];
+		}
+		return new SortedPostings<V>(sids, svalues, size);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <V> SortedPostings<V> empty() {
+		return (SortedPostings<V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int idAt(int pos) {
+		return ids[pos];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int pos) {
+		return (V) values[pos];
+	}
+
+	/**
+	 * @return the position of the id, or -1 if it is not on the list
+	 */
+	public int indexOf(int id) {
+		int pos = gallop(ids, 0, size, id);
+		return pos < size && ids[pos] == id ? pos : -1;
+	}
+
+	/**
+	 * @return the first position in [from, to) whose id is not lower than
+	 *         the key, or to if there is none
+	 */
+	public static int gallop(int[] ids, int from, int to, int key) {
+		int step = 1;
+		int hi = from;
+		while (hi < to && ids[hi] < key) {
+			from = hi + 1;
+			hi += step;
+			step <<= 1;
+		}
+		if (hi > to)
+			hi = to;
+
+		while (from < hi) {
+			int mid = (from + hi) >>> 1;
+			if (ids[mid] < key)
+				from = mid + 1;
+			else
+				hi = mid;
+		}
+		return from;
+	}
+
+	/**
+	 * @return the entries of this list that are also on the other one
+	 */
+	public SortedPostings<V> retainAll(SortedPostings<?> other) {
+		return filter(new SortedPostings<?>[] { other }, true);
+	}
+
+	/**
+	 * @return the entries of this list that are on at least one of the others
+	 */
+	public SortedPostings<V> retainAny(SortedPostings<?>[] others) {
+		return filter(others, true);
+	}
+
+	/**
+	 * @return the entries of this list that are on none of the others
+	 */
+	public SortedPostings<V> removeAny(SortedPostings<?>[] others) {
+		return filter(others, false);
+	}
+
+	private SortedPostings<V> filter(SortedPostings<?>[] others, boolean keep) {
+		int[] rids = new int[size];
+		Object[] rvalues = new Object[size];
+		int n = 0;
+
+		int[] cursors = new int[others.length];
+		for (int i = 0; i < size; i++) {
+			int id = ids[i];
+			boolean found = false;
+			for (int j = 0; j < others.length && !found; j++) {
+				SortedPostings<?> o = others[j];
+				int c = gallop(o.ids, cursors[j], o.size, id);
+				cursors[j] = c;
+				found = c < o.size && o.ids[c] == id;
+			}
+			if (found == keep) {
+				rids[n] = id;
+				rvalues[n] = values[i];
+				n++;
+			}
+		}
+		return new SortedPostings<V>(rids, rvalues, n);
+	}
+
+	/**
+	 * @return every entry on at least one of the lists, once
+	 */
+	public static <V> SortedPostings<V> union(SortedPostings<V>[] lists) {
+		if (lists.length == 0)
+			return empty();
+		if (lists.length == 1)
+			return lists[0];
+
+		int total = 0;
+		for (int j = 0; j < lists.length; j++)
+			total += lists[j].size;
+
+		int[] rids = new int[total];
+		Object[] rvalues = new Object[total];
+		int n = 0;
+
+		int[] cursors = new int[lists.length];
+		while (true) {
+			int min = Integer.MAX_VALUE;
+			int from = -1;
+			for (int j = 0; j < lists.length; j++) {
+				SortedPostings<V> l = lists[j];
+				if (cursors[j] < l.size && (from < 0 || l.ids[cursors[j]] < min)) {
+					min = l.ids[cursors[j]];
+					from = j;
+				}
+			}
+			if (from < 0)
+				break;
+
+			rids[n] = min;
+			rvalues[n] = lists[from].values[cursors[from]];
+			n++;
+
+			for (int j = 0; j < lists.length; j++) {
+				SortedPostings<V> l = lists[j];
+				if (cursors[j] < l.size && l.ids[cursors[j]] == min)
+					cursors[j]++;
+			}
+		}
+		return new SortedPostings<V>(rids, rvalues, n);
+	}
+}
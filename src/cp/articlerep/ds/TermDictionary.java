@@ -0,0 +1,108 @@
+package cp.articlerep.ds;
+
+import java.util.Arrays;
+
+/**
+ * Concurrent dictionary that maps each distinct string to a dense int id,
+ * assigned in order of first {@link #intern(String)} from 0 on.
+ *
+ * Lookups of terms already known read the string table optimistically and
+ * only lock its stripe if a concurrent intern invalidates the stamp. Ids are
+ * never reassigned nor removed.
+ */
+public class TermDictionary {
+
+	private HashTable<String, Integer> ids;
+
+	private volatile String[] terms;
+	private int count;
+
+	public TermDictionary() {
+		this(1024);
+	}
+
+	public TermDictionary(int capacity) {
+		capacity = Math.max(capacity, 16);
+		this.ids = new HashTable<String, Integer>(capacity * 2);
+		this.terms = new String[capacity];
+		this.count = 0;
+	}
+
+	/**
+	 * @return the id of the term, or -1 if it was never interned
+	 */
+	public int lookup(String term) {
+		VersionedLock lock = ids.getLock(term);
+
+		long stamp = lock.tryOptimisticRead();
+		if ((stamp & 1) == 0) {
+			Integer id = ids.get(term);
+			if (lock.validate(stamp))
+				return id != null ? id : -1;
+		}
+
+		lock.readLock().lock();
+		Integer id = ids.get(term);
+		lock.readLock().unlock();
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * @return the id of the term, assigning the next free one if the term is
+	 *         new
+	 */
+	public int intern(String term) {
+		int id = lookup(term);
+		if (id >= 0)
+			return id;
+
+		VersionedLock lock = ids.getLock(term);
+		lock.writeLock().lock();
+
+		Integer known = ids.get(term);
+		if (known != null) {
+			id = known;
+		} else {
+			id = append(term);
+			ids.put(term, id);
+		}
+
+		lock.writeLock().unlock();
+		return id;
+	}
+
+	private synchronized int append(String term) {
+		String[] t = terms;
+		if (count == t.length)
+			t = Arrays.copyOf(t, count * 2);
+		t[count] = term;
+		terms = t;
+		return count++;
+	}
+
+	/**
+	 * @return the term of an id returned by {@link #intern(String)}
+	 */
+	public String term(int id) {
+		return terms[id];
+	}
+
+	/**
+	 * Interns every term of the list, returning their ids in the same order;
+	 * unknown terms are added when create is true and mapped to -1 otherwise
+	 */
+	public int[] toIds(List<String> list, boolean create) {
+		int[] res = new int[list.size()];
+		int i = 0;
+		Iterator<String> it = list.iterator();
+		while (it.hasNext()) {
+			String term = it.next();
+			res[i++] = create ? intern(term) : lookup(term);
+		}
+		return res;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+}
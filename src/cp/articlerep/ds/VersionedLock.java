@@ -0,0 +1,259 @@
+package cp.articlerep.ds;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fair read-write lock that also keeps a version counter, so readers can
+ * run optimistically without acquiring the lock.
+ *
+ * The version is odd while a writer holds the lock and even otherwise. A
+ * reader takes a stamp with {@link #tryOptimisticRead()}, reads the
+ * protected state and then calls {@link #validate(long)}. If no writer
+ * acquired the lock in between the read is consistent, otherwise the reader
+ * must retry holding the read lock.
+ *
+ * As with {@link java.util.concurrent.locks.StampedLock}, the protected
+ * state may live in plain fields. The odd bump is fenced before the writer
+ * stores anything else and validation fences the reads before rechecking the
+ * version, so a reader that saw any store of a writer fails to validate. Until
+ * then it may observe the state stale or half-updated, so the code it runs
+ * must not loop or index out of bounds on such a view (see
+ * {@link IntHashTable#get(int)} and {@link PostingList#iterator(int)}) and
+ * must not publish anything it built from it.
+ *
+ * With {@link LockStats#ENABLED} the lock also counts its acquisitions, wait
+ * and hold times (see {@link LockStats}); otherwise those paths are compiled
+ * away.
+ */
+public class VersionedLock extends ReentrantReadWriteLock {
+
+	private static final long serialVersionUID = 1L;
+
+	private volatile long version;
+
+	private final VersionedReadLock reader;
+	private final VersionedWriteLock writer;
+
+	/*
+	 * Null unless LockStats.ENABLED
+	 */
+	final LockStats.Counters stats;
+
+	/*
+	 * Time of the outermost write acquire, only touched by the writer
+	 */
+	private long writeStart;
+
+	public VersionedLock() {
+		this(true);
+	}
+
+	public VersionedLock(boolean fair) {
+		super(fair);
+		this.version = 0;
+		this.stats = LockStats.ENABLED ? new LockStats.Counters() : null;
+		this.reader = new VersionedReadLock(this);
+		this.writer = new VersionedWriteLock(this);
+	}
+
+	@Override
+	public ReentrantReadWriteLock.ReadLock readLock() {
+		return reader;
+	}
+
+	@Override
+	public ReentrantReadWriteLock.WriteLock writeLock() {
+		return writer;
+	}
+
+	/**
+	 * @return a stamp for an optimistic read, which never validates if a
+	 *         writer currently holds the lock
+	 */
+	public long tryOptimisticRead() {
+		return version;
+	}
+
+	/**
+	 * @return true if no writer held the lock since the stamp was taken
+	 */
+	public boolean validate(long stamp) {
+		VarHandle.acquireFence();
+		return (stamp & 1) == 0 && version == stamp;
+	}
+
+	/**
+	 * Bumps the version on the outermost acquire and release of the write
+	 * lock, making it odd for the whole time the lock is held.
+	 */
+	private static class VersionedWriteLock extends
+			ReentrantReadWriteLock.WriteLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final VersionedLock owner;
+
+		protected VersionedWriteLock(VersionedLock lock) {
+			super(lock);
+			this.owner = lock;
+		}
+
+		private void acquired() {
+			if (getHoldCount() == 1) {
+				owner.version++;
+				/*
+				 * A volatile write only orders the accesses before it, the
+				 * fence keeps the stores that follow from being seen first
+				 */
+				VarHandle.storeStoreFence();
+				if (owner.stats != null)
+					owner.writeStart = System.nanoTime();
+			}
+		}
+
+		@Override
+		public void lock() {
+			if (owner.stats == null) {
+				super.lock();
+			} else {
+				long start = owner.stats.beginWait(true);
+				try {
+					super.lock();
+				} finally {
+					owner.stats.endWait(true, start, true);
+				}
+			}
+			acquired();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			if (owner.stats == null) {
+				super.lockInterruptibly();
+			} else {
+				long start = owner.stats.beginWait(true);
+				boolean ok = false;
+				try {
+					super.lockInterruptibly();
+					ok = true;
+				} finally {
+					owner.stats.endWait(true, start, ok);
+				}
+			}
+			acquired();
+		}
+
+		@Override
+		public boolean tryLock() {
+			if (super.tryLock()) {
+				if (owner.stats != null)
+					owner.stats.acquired(true);
+				acquired();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean tryLock(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			boolean ok;
+			if (owner.stats == null) {
+				ok = super.tryLock(timeout, unit);
+			} else {
+				long start = owner.stats.beginWait(true);
+				ok = false;
+				try {
+					ok = super.tryLock(timeout, unit);
+				} finally {
+					owner.stats.endWait(true, start, ok);
+				}
+			}
+			if (ok)
+				acquired();
+			return ok;
+		}
+
+		@Override
+		public void unlock() {
+			if (getHoldCount() == 1) {
+				owner.version++;
+				if (owner.stats != null)
+					owner.stats.released(System.nanoTime() - owner.writeStart);
+			}
+			super.unlock();
+		}
+	}
+
+	/**
+	 * Only differs from its superclass when counting statistics
+	 */
+	private static class VersionedReadLock extends
+			ReentrantReadWriteLock.ReadLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final VersionedLock owner;
+
+		protected VersionedReadLock(VersionedLock lock) {
+			super(lock);
+			this.owner = lock;
+		}
+
+		@Override
+		public void lock() {
+			if (owner.stats == null) {
+				super.lock();
+				return;
+			}
+			long start = owner.stats.beginWait(false);
+			try {
+				super.lock();
+			} finally {
+				owner.stats.endWait(false, start, true);
+			}
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			if (owner.stats == null) {
+				super.lockInterruptibly();
+				return;
+			}
+			long start = owner.stats.beginWait(false);
+			boolean ok = false;
+			try {
+				super.lockInterruptibly();
+				ok = true;
+			} finally {
+				owner.stats.endWait(false, start, ok);
+			}
+		}
+
+		@Override
+		public boolean tryLock() {
+			boolean ok = super.tryLock();
+			if (ok && owner.stats != null)
+				owner.stats.acquired(false);
+			return ok;
+		}
+
+		@Override
+		public boolean tryLock(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			if (owner.stats == null)
+				return super.tryLock(timeout, unit);
+
+			long start = owner.stats.beginWait(false);
+			boolean ok = false;
+			try {
+				ok = super.tryLock(timeout, unit);
+			} finally {
+				owner.stats.endWait(false, start, ok);
+			}
+			return ok;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package cp.articlerep.ds;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The lines of a text file, kept as UTF-8 bytes in a single array with the
+ * offset of each line in another, so loading allocates no object per line.
+ * Strings are only created by {@link #word(int)}.
+ *
+ * {@link #load(String, int, int)} maps the file and splits it into one
+ * chunk per thread on line boundaries. A first parallel pass counts the
+ * lines and bytes of each chunk, which gives every chunk its place in the
+ * arrays, and a second one copies the lines there. Lines end in '\n',
+ * optionally preceded by '\r', like {@link java.io.BufferedReader#readLine()}
+ * reads them.
+ */
+public class WordArena {
+
+	private final byte[] data;
+	private final int[] offsets;
+	private final int size;
+
+	private WordArena(byte[] data, int[] offsets, int size) {
+		this.data = data;
+		this.offsets = offsets;
+		this.size = size;
+	}
+
+	public static WordArena load(String path, int maxWords) throws IOException {
+		return load(path, maxWords, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param maxWords
+	 *            only the first maxWords lines are kept
+	 */
+	public static WordArena load(String path, int maxWords, int threads)
+			throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path),
+				StandardOpenOption.READ);
+		final MappedByteBuffer map;
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(path + " is larger than 2 GB");
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			channel.close();
+		}
+
+		final int length = map.capacity();
+		final int chunks = Math.max(1, Math.min(threads, length / 4096 + 1));
+
+		/*
+		 * Each chunk starts right after a newline, or at 0
+		 */
+		final int[] starts = new int[chunks + 1];
+		starts[chunks] = length;
+		for (int k = 1; k < chunks; k++) {
+			int pos = Math.max((int) ((long) length * k / chunks),
+					starts[k - 1]);
+			while (pos < length && map.get(pos - 1) != '\n')
+				pos++;
+			starts[k] = pos;
+		}
+
+		final int[] lines = new int[chunks];
+		final int[] bytes = new int[chunks];
+		parallel(chunks, new Chunk() {
+			public void run(int k) {
+				int n = 0, b = 0;
+				int pos = starts[k];
+				while (pos < starts[k + 1]) {
+					int end = lineEnd(map, pos, starts[k + 1]);
+					b += trim(map, pos, end) - pos;
+					n++;
+					pos = end + 1;
+				}
+				lines[k] = n;
+				bytes[k] = b;
+			}
+		});
+
+		/*
+		 * First line and first byte of each chunk, dropping the chunks past
+		 * maxWords
+		 */
+		final int[] lineBase = new int[chunks + 1];
+		final int[] byteBase = new int[chunks + 1];
+		int used = 0;
+		while (used < chunks && lineBase[used] < maxWords) {
+			lineBase[used + 1] = lineBase[used] + lines[used];
+			long b = (long) byteBase[used] + bytes[used];
+			if (b > Integer.MAX_VALUE)
+				throw new IOException(path + " has too many words");
+			byteBase[used + 1] = (int) b;
+			used++;
+		}
+
+		final int size = Math.min(lineBase[used], Math.max(maxWords, 0));
+		final byte[] data = new byte[byteBase[used]];
+		final int[] offsets = new int[size + 1];
+		parallel(used, new Chunk() {
+			public void run(int k) {
+				int line = lineBase[k];
+				int at = byteBase[k];
+				int pos = starts[k];
+				while (pos < starts[k + 1] && line < size) {
+					int end = lineEnd(map, pos, starts[k + 1]);
+					int n = trim(map, pos, end) - pos;
+					map.get(pos, data, at, n);
+					offsets[line++] = at;
+					at += n;
+					pos = end + 1;
+				}
+				if (line == size)
+					offsets[size] = at;
+			}
+		});
+
+		return new WordArena(data, offsets, size);
+	}
+
+	/**
+	 * @return the position of the newline ending the line at pos, or limit
+	 */
+	private static int lineEnd(MappedByteBuffer map, int pos, int limit) {
+		while (pos < limit && map.get(pos) != '\n')
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * @return the end of the line without a trailing '\r'
+	 */
+	private static int trim(MappedByteBuffer map, int start, int end) {
+		return end > start && map.get(end - 1) == '\r' ? end - 1 : end;
+	}
+
+	private interface Chunk {
+		public void run(int k);
+	}
+
+	/**
+	 * Runs the chunks on a thread each, the first one on the caller's
+	 */
+	private static void parallel(int chunks, final Chunk chunk) {
+		Thread[] threads = new Thread[chunks];
+		for (int k = 1; k < chunks; k++) {
+			final int c = k;
+			threads[k] = new Thread(new Runnable() {
+				public void run() {
+					chunk.run(c);
+				}
+			}, "word-loader-" + k);
+			threads[k].start();
+		}
+
+		if (chunks > 0)
+			chunk.run(0);
+
+		for (int k = 1; k < chunks; k++) {
+			try {
+				threads[k].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of words
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new String with the i-th word
+	 */
+	public String word(int i) {
+		return new String(data, offsets[i], offsets[i + 1] - offsets[i],
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the length of the i-th word in UTF-8 bytes
+	 */
+	public int length(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+}